@@ -0,0 +1,71 @@
+package dk.kb.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.kb.deeplearning4j.Result;
+import dk.kb.tensorflow.TensorFlowResult;
+
+/**
+ * Benchmarks turning the output of a model into a result: {@link Result#getResult(INDArray, String)},
+ * {@link Result#getResult(float[], String)} and {@link TensorFlowResult#getResult(List, float[], String)},
+ * for the two labels of the front/back models and the 1000 labels of an Inception model.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResultBenchmark {
+
+    @Param({"2", "1000"})
+    public int labels;
+
+    private float[] probabilities;
+    private INDArray output;
+    private List<String> labelList;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        probabilities = new float[labels];
+        labelList = new ArrayList<String>(labels);
+        for (int i = 0; i < labels; i++) {
+            probabilities[i] = random.nextFloat();
+            labelList.add("label" + i);
+        }
+        output = Nd4j.create(probabilities, new int[] {1, labels});
+    }
+
+    @Benchmark
+    public Result resultFromINDArray() {
+        return Result.getResult(output, "sample.jpg");
+    }
+
+    @Benchmark
+    public Result resultFromFloats() {
+        return Result.getResult(probabilities, "sample.jpg");
+    }
+
+    @Benchmark
+    public TensorFlowResult tensorFlowResult() {
+        return TensorFlowResult.getResult(labelList, probabilities, "sample.jpg");
+    }
+}
@@ -0,0 +1,54 @@
+package dk.kb.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The sample corpus used by the benchmarks: jpeg images in the resources directory samples/, named
+ * sample0.jpg, sample1.jpg and so on. Half of them are picture-like (front), half are lines of text (back).
+ */
+public class Samples {
+
+    /**
+     * Copies the sample images to a temporary directory, as the classifiers read files.
+     * The files are deleted when the JVM exits.
+     * @return the sample images
+     */
+    public static List<File> extract() throws IOException {
+        File dir = Files.createTempDirectory("samples").toFile();
+        dir.deleteOnExit();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; ; i++) {
+            String name = "sample" + i + ".jpg";
+            try (InputStream in = Samples.class.getResourceAsStream("/samples/" + name)) {
+                if (in == null) {
+                    break;
+                }
+                File file = new File(dir, name);
+                Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                file.deleteOnExit();
+                files.add(file);
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IllegalStateException("No sample images found on the classpath");
+        }
+        return files;
+    }
+
+    /**
+     * @return the contents of the sample images
+     */
+    public static List<byte[]> read() throws IOException {
+        List<byte[]> images = new ArrayList<byte[]>();
+        for (File file: extract()) {
+            images.add(Files.readAllBytes(file.toPath()));
+        }
+        return images;
+    }
+}
@@ -0,0 +1,60 @@
+package dk.kb.deeplearning4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.datavec.image.loader.NativeImageLoader;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.kb.benchmarks.Samples;
+
+/**
+ * Benchmarks {@link UseModel#evaluateImage(MultiLayerNetwork, NativeImageLoader, File)} with an untrained
+ * {@link Models#lenetModel(int, int, int, int, int, int)} network of the size made by TrainFrontBackNetwork,
+ * and the image loading alone with {@link NativeImageLoader#asMatrix(File)}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UseModelBenchmark {
+    private MultiLayerNetwork network;
+    private NativeImageLoader loader;
+    private List<File> images;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        images = Samples.extract();
+        network = Models.lenetModel(42, 1, 1, 2, 600, 400);
+        network.init();
+        loader = new NativeImageLoader(600, 400, 1);
+    }
+
+    @Benchmark
+    public INDArray evaluateImage() throws IOException {
+        next = (next + 1) % images.size();
+        return UseModel.evaluateImage(network, loader, images.get(next));
+    }
+
+    @Benchmark
+    public INDArray asMatrix() throws IOException {
+        next = (next + 1) % images.size();
+        return loader.asMatrix(images.get(next));
+    }
+}
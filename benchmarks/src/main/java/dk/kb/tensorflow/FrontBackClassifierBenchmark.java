@@ -0,0 +1,107 @@
+package dk.kb.tensorflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.Graph;
+import org.tensorflow.Output;
+
+import dk.kb.benchmarks.Samples;
+
+/**
+ * Benchmarks {@link FrontBackClassifier#evaluate(File)} on single images and
+ * {@link FrontBackClassifier#evaluateBatch(List)} on the whole sample corpus as one batch.
+ * The model is read from the directory given by the system property model.dir, by default
+ * ../models/frontbackModel-tensorflow. If it has no graph.pb, a tiny stand-in model with the same
+ * input and output is used, so the decoding, normalization and session overhead are measured, but
+ * not the retrained Inception model.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrontBackClassifierBenchmark {
+
+    @Param({"false", "true"})
+    public boolean fused;
+
+    private FrontBackClassifier fbc;
+    private List<File> images;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        images = Samples.extract();
+        fbc = new FrontBackClassifier(modelDir(), fused);
+        fbc.setBatchSize(images.size());
+    }
+
+    @TearDown
+    public void tearDown() {
+        fbc.close();
+    }
+
+    @Benchmark
+    public TensorFlowResult evaluate() {
+        next = (next + 1) % images.size();
+        return fbc.evaluate(images.get(next));
+    }
+
+    @Benchmark
+    public List<TensorFlowResult> evaluateBatch() {
+        return fbc.evaluateBatch(images);
+    }
+
+    /**
+     * @return the model directory given by model.dir, or a stand-in model if it has no graph.pb
+     */
+    static File modelDir() throws IOException {
+        File dir = new File(System.getProperty("model.dir", "../models/frontbackModel-tensorflow"));
+        if (new File(dir, "graph.pb").isFile()) {
+            return dir;
+        }
+        File standIn = Files.createTempDirectory("model").toFile();
+        System.err.println("No graph.pb in '" + dir.getAbsolutePath() + "'. Using a stand-in model in '" + standIn + "'");
+        createStandInModel(standIn);
+        return standIn;
+    }
+
+    /**
+     * Writes a model taking a [N,224,224,3] input and giving the probabilities of two labels
+     */
+    private static void createStandInModel(File dir) throws IOException {
+        try (Graph g = new Graph()) {
+            GraphBuilder b = new GraphBuilder(g);
+            Output<Float> input = b.placeholder("input", Float.class);
+            Output<Float> mean = g.opBuilder("Mean", "Mean")
+                    .addInput(input).addInput(b.constant("axes", new int[] {1, 2, 3})).build().<Float>output(0);
+            Output<Float> column = b.expandDims(mean, b.constant("dim", 1));
+            Output<Float> logits = g.opBuilder("MatMul", "MatMul")
+                    .addInput(column).addInput(b.constant("weights", new float[][] {{0.01f, -0.01f}}, Float.class))
+                    .build().<Float>output(0);
+            g.opBuilder("Softmax", "final_result").addInput(logits).build();
+            Files.write(new File(dir, "graph.pb").toPath(), g.toGraphDef());
+        }
+        Files.write(new File(dir, "labels.txt").toPath(), "back\nfront\n".getBytes("UTF-8"));
+        for (File f: new File[] {dir, new File(dir, "graph.pb"), new File(dir, "labels.txt")}) {
+            f.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package dk.kb.tensorflow;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.Graph;
+import org.tensorflow.Output;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+import org.tensorflow.Tensors;
+
+import dk.kb.benchmarks.Samples;
+import dk.kb.util.JpegScale;
+
+/**
+ * Benchmarks the normalization graph built by {@link GraphBuilder}: building it, and running it on
+ * the sample images (jpeg decoding, resizing to 224x224 and scaling) with the chain decoding at
+ * 1/denominator of the image size.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PreprocessingBenchmark {
+    /** One of {@link JpegScale#DENOMINATORS} */
+    @Param({"1", "2", "4", "8"})
+    public int denominator;
+
+    private Graph graph;
+    private Session session;
+    private Output<Float> output;
+    private List<byte[]> images;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        images = Samples.read();
+        graph = new Graph();
+        int index = Arrays.binarySearch(JpegScale.DENOMINATORS, denominator);
+        if (index < 0) {
+            throw new IllegalArgumentException("The denominator " + denominator + " is not one of " + Arrays.toString(JpegScale.DENOMINATORS));
+        }
+        output = FrontBackClassifier.constructGraphToNormalizeImage(new GraphBuilder(graph)).get(index);
+        session = new Session(graph);
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.close();
+        graph.close();
+    }
+
+    @Benchmark
+    public List<Output<Float>> buildGraph() {
+        try (Graph g = new Graph()) {
+            return FrontBackClassifier.constructGraphToNormalizeImage(new GraphBuilder(g));
+        }
+    }
+
+    @Benchmark
+    public long normalize() {
+        next = (next + 1) % images.size();
+        try (Tensor<String> jpeg = Tensors.create(images.get(next));
+                Tensor<?> image = session.runner().feed(FrontBackClassifier.JpegInputOperationName, jpeg).fetch(output).run().get(0)) {
+            return image.numElements();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package dk.kb.deeplearning4j;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.deeplearning4j.api.storage.Persistable;
+import org.deeplearning4j.api.storage.StatsStorageRouter;
+import org.deeplearning4j.api.storage.StorageMetaData;
+
+/**
+ * Passes the stats of a training to a stats storage, e.g. a FileStatsStorage, on a background thread, so the
+ * training does not wait for the serialization and the writes. Up to queueSize writes can wait; if the storage
+ * falls further behind, updates are dropped and counted instead of slowing down the training. Metadata and
+ * static info are never dropped.
+ */
+public class AsyncStatsStorageRouter implements StatsStorageRouter, Closeable {
+    private static final Runnable Stop = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private StatsStorageRouter storage;
+    private BlockingQueue<Runnable> queue;
+    private Thread writer;
+    private AtomicLong written = new AtomicLong();
+    private AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param storage the storage to pass the stats to
+     * @param queueSize the maximum number of writes waiting for the storage
+     */
+    public AsyncStatsStorageRouter(StatsStorageRouter storage, int queueSize) {
+        this.storage = storage;
+        this.queue = new ArrayBlockingQueue<Runnable>(queueSize);
+        this.writer = new Thread("stats-writer") {
+            @Override
+            public void run() {
+                try {
+                    Runnable write;
+                    while ((write = queue.take()) != Stop) {
+                        try {
+                            write.run();
+                            written.incrementAndGet();
+                        } catch (RuntimeException e) {
+                            System.err.println("Failed to write training stats: " + e);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Waits for room in the queue, for writes that must not be dropped
+    private void put(Runnable write) {
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queueing training stats", e);
+        }
+    }
+
+    @Override
+    public void putStorageMetaData(final StorageMetaData storageMetaData) {
+        put(new Runnable() {
+            @Override
+            public void run() {
+                storage.putStorageMetaData(storageMetaData);
+            }
+        });
+    }
+
+    @Override
+    public void putStorageMetaData(final Collection<? extends StorageMetaData> storageMetaData) {
+        put(new Runnable() {
+            @Override
+            public void run() {
+                storage.putStorageMetaData(storageMetaData);
+            }
+        });
+    }
+
+    @Override
+    public void putStaticInfo(final Persistable staticInfo) {
+        put(new Runnable() {
+            @Override
+            public void run() {
+                storage.putStaticInfo(staticInfo);
+            }
+        });
+    }
+
+    @Override
+    public void putStaticInfo(final Collection<? extends Persistable> staticInfo) {
+        put(new Runnable() {
+            @Override
+            public void run() {
+                storage.putStaticInfo(staticInfo);
+            }
+        });
+    }
+
+    @Override
+    public void putUpdate(final Persistable update) {
+        offer(new Runnable() {
+            @Override
+            public void run() {
+                storage.putUpdate(update);
+            }
+        });
+    }
+
+    @Override
+    public void putUpdate(final Collection<? extends Persistable> updates) {
+        offer(new Runnable() {
+            @Override
+            public void run() {
+                storage.putUpdate(updates);
+            }
+        });
+    }
+
+    private void offer(Runnable write) {
+        if (!queue.offer(write)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of writes passed to the storage
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of updates dropped because the storage could not keep up
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits for the queued writes to be passed to the storage. The storage itself is not closed
+     */
+    @Override
+    public void close() {
+        put(Stop);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package dk.kb.deeplearning4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.datavec.api.io.labels.PathLabelGenerator;
+import org.datavec.api.split.InputSplit;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * The training images decoded and resized once, and kept on disk as raw pixels, so the epochs and the
+ * augmentations of a training run, and later runs on the same images, do not decode the JPEG files again.
+ *
+ * Each image is a fixed size record of channels*height*width bytes, in the [channels,height,width] order of
+ * the network input, in shard files of at most 1GB (shard-00000.bin, shard-00001.bin, ...). The shards are
+ * memory-mapped when read. The index file lists the records in order with the size, the modification time,
+ * the label and the URI of the image, so an image changed since it was decoded is decoded again.
+ *
+ * Records can be read from several threads at once, but images must not be added while records are read.
+ */
+public class ImageShards implements Closeable {
+    private static final String IndexName = "shards.index";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long MaxShardBytes = 1L << 30;
+    private static final int ReportInterval = 1000;
+
+    private File dir;
+    private int height;
+    private int width;
+    private int channels;
+    private int recordBytes;
+    private int recordsPerShard;
+    private int size = 0;
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+    private String[] labels = new String[0];
+    private MappedByteBuffer[] mapped = new MappedByteBuffer[0];
+    private Writer index;
+    private ScaledImageLoader loader;
+
+    private static class Entry {
+        final int record;
+        final long length;
+        final long lastModified;
+
+        Entry(int record, long length, long lastModified) {
+            this.record = record;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Opens the shards in the directory, or creates them if the directory is new.
+     * @throws IOException if the shards in the directory are of images of another size
+     */
+    public ImageShards(File dir, int height, int width, int channels) throws IOException {
+        this.dir = dir;
+        this.height = height;
+        this.width = width;
+        this.channels = channels;
+        this.recordBytes = channels * height * width;
+        this.recordsPerShard = (int) Math.max(1, MaxShardBytes / recordBytes);
+        this.loader = new ScaledImageLoader(height, width, channels);
+        dir.mkdirs();
+        File indexFile = new File(dir, IndexName);
+        String header = "#ImageShards " + height + " " + width + " " + channels;
+        if (indexFile.exists()) {
+            readIndex(indexFile, header);
+        }
+        index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), UTF8));
+        if (size == 0 && indexFile.length() == 0) {
+            index.write(header + "\n");
+            index.flush();
+        }
+    }
+
+    /**
+     * Opens the shards in the default directory for a dataset, named as the dataset with the suffix
+     * .shards-HEIGHTxWIDTHxCHANNELS next to it.
+     */
+    public static ImageShards forDataset(File datasetDir, int height, int width, int channels) throws IOException {
+        return new ImageShards(new File(datasetDir.getParentFile(), datasetDir.getName() + ".shards-" + height + "x"
+                + width + "x" + channels), height, width, channels);
+    }
+
+    private void readIndex(File indexFile, String header) throws IOException {
+        long valid = 0; // the bytes of the index up to the last complete entry
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF8))) {
+            String line = in.readLine();
+            if (line == null) {
+                return;
+            }
+            if (!header.equals(line)) {
+                throw new IOException("The shards in '" + dir.getAbsolutePath() + "' are not of " + height + "x" + width
+                        + "x" + channels + " images: " + line);
+            }
+            valid = line.length() + 1;
+            long available = shardedBytes();
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4 || (long) (size + 1) * recordBytes > available) {
+                    break; // the end of a run that was stopped
+                }
+                addEntry(fields[3], Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]);
+                valid += line.getBytes(UTF8).length + 1;
+            }
+        }
+        if (valid < indexFile.length()) {
+            // Drops the incomplete entry, so the entries added next start on a line of their own
+            try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    // The number of bytes in the shards, counting only the records in full shards and the last shard
+    private long shardedBytes() {
+        long bytes = 0;
+        for (int shard = 0; ; shard++) {
+            File file = shardFile(shard);
+            if (!file.exists()) {
+                return bytes;
+            }
+            bytes += file.length();
+            if (file.length() < (long) recordsPerShard * recordBytes) {
+                return bytes;
+            }
+        }
+    }
+
+    private void addEntry(String uri, long length, long lastModified, String label) {
+        entries.put(uri, new Entry(size, length, lastModified));
+        if (size == labels.length) {
+            labels = Arrays.copyOf(labels, Math.max(16, size * 2));
+        }
+        labels[size++] = label;
+    }
+
+    /**
+     * Decodes the images of the split that are not in the shards, or have changed since they were decoded,
+     * and adds them to the shards. Images that can not be decoded are reported and skipped.
+     * @param labelMaker gives the label of each image
+     * @return the records of the images of the split, in the order of the split
+     */
+    public int[] add(InputSplit split, PathLabelGenerator labelMaker) throws IOException {
+        URI[] locations = split.locations();
+        int[] records = new int[locations.length];
+        int found = 0;
+        int decoded = 0;
+        long started = System.currentTimeMillis();
+        for (URI location: locations) {
+            File file = new File(location);
+            String uri = location.toString();
+            Entry entry = entries.get(uri);
+            if (entry == null || entry.length != file.length() || entry.lastModified != file.lastModified()) {
+                INDArray image;
+                try {
+                    image = loader.asMatrix(Files.readAllBytes(file.toPath()));
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Ignoring file '" + file.getAbsolutePath() + "'. It could not be decoded: " + e);
+                    continue;
+                }
+                append(image, uri, file, labelMaker.getLabelForPath(location).toString());
+                entry = entries.get(uri);
+                if (++decoded % ReportInterval == 0) {
+                    System.out.println("Decoded " + decoded + " images into " + dir.getAbsolutePath());
+                }
+            }
+            records[found++] = entry.record;
+        }
+        index.flush();
+        if (decoded > 0) {
+            System.out.println("Decoded " + decoded + " images into " + dir.getAbsolutePath() + " in "
+                    + (System.currentTimeMillis() - started) / 1000.0 + " secs. " + (found - decoded) + " were decoded already");
+        }
+        return found == records.length ? records : Arrays.copyOf(records, found);
+    }
+
+    private void append(INDArray image, String uri, File file, String label) throws IOException {
+        float[] pixels = image.data().asFloat();
+        if (pixels.length != recordBytes) {
+            throw new IOException("Expected " + recordBytes + " values from '" + uri + "', got " + pixels.length);
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordBytes);
+        for (float pixel: pixels) {
+            record.put((byte) Math.max(0, Math.min(255, Math.round(pixel))));
+        }
+        record.flip();
+        int shard = size / recordsPerShard;
+        try (FileChannel channel = FileChannel.open(shardFile(shard).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = (long) (size % recordsPerShard) * recordBytes;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+        }
+        if (shard < mapped.length) {
+            mapped[shard] = null; // the shard has grown, so it is mapped again when read
+        }
+        index.write(file.length() + "\t" + file.lastModified() + "\t" + label.replace('\t', ' ').replace('\n', ' ') + "\t" + uri + "\n");
+        addEntry(uri, file.length(), file.lastModified(), label);
+    }
+
+    /**
+     * @return a read-only view of the pixels of the record, as channels*height*width unsigned bytes
+     */
+    public synchronized ByteBuffer read(int record) throws IOException {
+        if (record < 0 || record >= size) {
+            throw new IndexOutOfBoundsException("No record " + record + " among " + size + " records");
+        }
+        int shard = record / recordsPerShard;
+        if (shard >= mapped.length) {
+            mapped = Arrays.copyOf(mapped, shard + 1);
+        }
+        if (mapped[shard] == null) {
+            try (FileChannel channel = FileChannel.open(shardFile(shard).toPath(), StandardOpenOption.READ)) {
+                mapped[shard] = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        ByteBuffer view = mapped[shard].duplicate();
+        view.position((record % recordsPerShard) * recordBytes);
+        view.limit(view.position() + recordBytes);
+        return view.slice();
+    }
+
+    /**
+     * @return the label of the image of the record, as given by the label generator when it was added
+     */
+    public String getLabel(int record) {
+        if (record < 0 || record >= size) {
+            throw new IndexOutOfBoundsException("No record " + record + " among " + size + " records");
+        }
+        return labels[record];
+    }
+
+    /**
+     * @return the number of records in the shards
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    private File shardFile(int shard) {
+        return new File(dir, String.format(Locale.ROOT, "shard-%05d.bin", shard));
+    }
+
+    @Override
+    public void close() throws IOException {
+        index.close();
+        mapped = new MappedByteBuffer[0]; // the mappings are released when garbage collected
+    }
+}
@@ -0,0 +1,51 @@
+package dk.kb.deeplearning4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+/**
+ * A pool of replicas of a network, so several threads can run it at the same time.
+ * A MultiLayerNetwork keeps the activations of the last input, so it can only be used by one thread at a time,
+ * but the parameters are only read when running it. The replicas therefore share the parameter array of the
+ * original network, and only the configuration and layer state are copied: K replicas take little more memory
+ * than one. The replicas must not be trained.
+ */
+public class NetworkReplicas {
+    private BlockingQueue<MultiLayerNetwork> available;
+    private int size;
+
+    /**
+     * @param network the network to replicate. It is used as the first replica
+     * @param size the number of replicas
+     */
+    public NetworkReplicas(MultiLayerNetwork network, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The number of replicas must be at least 1. Was " + size);
+        }
+        this.size = size;
+        this.available = new ArrayBlockingQueue<MultiLayerNetwork>(size);
+        available.add(network);
+        for (int i = 1; i < size; i++) {
+            MultiLayerNetwork replica = new MultiLayerNetwork(network.getLayerWiseConfigurations().clone());
+            replica.init(network.params(), false);
+            available.add(replica);
+        }
+    }
+
+    /**
+     * Waits until a replica is free, and hands it to the caller until {@link #release(MultiLayerNetwork)}
+     */
+    public MultiLayerNetwork acquire() throws InterruptedException {
+        return available.take();
+    }
+
+    public void release(MultiLayerNetwork replica) {
+        available.add(replica);
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,203 @@
+package dk.kb.deeplearning4j;
+
+import java.io.Closeable;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+/**
+ * Trains a network on several cores by data parallelism with parameter averaging: each worker thread fits its
+ * own replica of the network on its own minibatches, and every averagingFrequency minibatches per worker the
+ * parameters and the updater state (e.g. the momentum) of the replicas are averaged and given to all of them.
+ *
+ * The network itself is the replica of the first worker, so its listeners see the iterations of that worker,
+ * and after {@link #fit(DataSetIterator)} it has the averaged parameters. The other replicas are copies with
+ * their own parameters, so K workers take K times the memory of the parameters.
+ *
+ * ND4J also runs each operation on several threads, so with many workers it may help to limit that, e.g.
+ * OMP_NUM_THREADS=cores/workers.
+ */
+public class ParallelTrainer implements Closeable {
+    private MultiLayerNetwork[] replicas;
+    private int averagingFrequency;
+    private Thread[] threads;
+    private BlockingQueue<DataSet>[] queues;
+    private Semaphore done = new Semaphore(0);
+    private volatile Throwable failure;
+    private long minibatches = 0;
+    private long examples = 0;
+    private long averagings = 0;
+
+    /**
+     * @param network the network to train
+     * @param workers the number of replicas trained in parallel
+     * @param averagingFrequency the number of minibatches each worker fits between the averagings
+     */
+    @SuppressWarnings("unchecked")
+    public ParallelTrainer(MultiLayerNetwork network, int workers, int averagingFrequency) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("There must be at least 1 worker. Was " + workers);
+        }
+        if (averagingFrequency < 1) {
+            throw new IllegalArgumentException("The averaging frequency must be at least 1. Was " + averagingFrequency);
+        }
+        this.averagingFrequency = averagingFrequency;
+        this.replicas = new MultiLayerNetwork[workers];
+        this.threads = new Thread[workers];
+        this.queues = new BlockingQueue[workers];
+        replicas[0] = network;
+        for (int i = 0; i < workers; i++) {
+            if (i > 0) {
+                replicas[i] = network.clone();
+            }
+            queues[i] = new ArrayBlockingQueue<DataSet>(1);
+            final MultiLayerNetwork replica = replicas[i];
+            final BlockingQueue<DataSet> queue = queues[i];
+            threads[i] = new Thread("trainer-" + (i + 1)) {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            DataSet batch = queue.take();
+                            try {
+                                if (failure == null) {
+                                    replica.fit(batch);
+                                }
+                            } catch (Throwable t) {
+                                failure = t;
+                            } finally {
+                                done.release();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // stopped
+                    }
+                }
+            };
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Fits the network on all the minibatches of the iterator, handing them to the workers in turn.
+     * The iterator is read by the calling thread only.
+     */
+    public void fit(DataSetIterator iterator) {
+        synchronize(replicas[0].params(), stateView(replicas[0]));
+        int dispatched = 0;
+        try {
+            while (iterator.hasNext()) {
+                DataSet batch = iterator.next();
+                queues[dispatched % replicas.length].put(batch);
+                minibatches++;
+                examples += batch.numExamples();
+                if (++dispatched == replicas.length * averagingFrequency) {
+                    awaitAndAverage(dispatched);
+                    dispatched = 0;
+                }
+            }
+            awaitAndAverage(dispatched);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while training", e);
+        }
+    }
+
+    // Waits for the workers to fit the dispatched minibatches, and averages the replicas
+    private void awaitAndAverage(int dispatched) throws InterruptedException {
+        done.acquire(dispatched);
+        if (failure != null) {
+            throw new RuntimeException("A training worker failed", failure);
+        }
+        if (dispatched == 0 || replicas.length == 1) {
+            return;
+        }
+        INDArray params = average(dispatched, new Extractor() {
+            @Override
+            public INDArray get(MultiLayerNetwork replica) {
+                return replica.params();
+            }
+        });
+        INDArray state = average(dispatched, new Extractor() {
+            @Override
+            public INDArray get(MultiLayerNetwork replica) {
+                return stateView(replica);
+            }
+        });
+        synchronize(params, state);
+        averagings++;
+    }
+
+    private interface Extractor {
+        INDArray get(MultiLayerNetwork replica);
+    }
+
+    // The mean of the arrays of the replicas that fitted a minibatch in this round
+    private INDArray average(int dispatched, Extractor extractor) {
+        int trained = Math.min(dispatched, replicas.length);
+        INDArray first = extractor.get(replicas[0]);
+        if (first == null) {
+            return null;
+        }
+        INDArray sum = first.dup();
+        for (int i = 1; i < trained; i++) {
+            sum.addi(extractor.get(replicas[i]));
+        }
+        return sum.divi(trained);
+    }
+
+    // Gives all replicas the parameters and updater state
+    private void synchronize(INDArray params, INDArray state) {
+        for (MultiLayerNetwork replica: replicas) {
+            if (replica.params() != params) {
+                replica.setParams(params);
+            }
+            INDArray view = stateView(replica);
+            if (state != null && view != null && view != state) {
+                view.assign(state);
+            }
+        }
+    }
+
+    private static INDArray stateView(MultiLayerNetwork replica) {
+        Updater updater = replica.getUpdater();
+        return updater == null ? null : updater.getStateViewArray();
+    }
+
+    public int getWorkers() {
+        return replicas.length;
+    }
+
+    /**
+     * @return the number of examples fitted by all workers
+     */
+    public long getExamples() {
+        return examples;
+    }
+
+    /**
+     * @return the minibatches fitted and the number of averagings
+     */
+    public String summary() {
+        return String.format(Locale.ROOT, "Parallel training: %d minibatches of %d examples on %d workers, averaged %d times (every %d minibatches per worker)",
+                minibatches, examples, replicas.length, averagings, averagingFrequency);
+    }
+
+    /**
+     * Stops the workers. The network keeps the parameters of the last averaging
+     */
+    @Override
+    public void close() {
+        for (Thread thread: threads) {
+            thread.interrupt();
+        }
+    }
+}
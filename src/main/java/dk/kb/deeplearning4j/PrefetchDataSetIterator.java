@@ -0,0 +1,312 @@
+package dk.kb.deeplearning4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import dk.kb.util.Histogram;
+
+/**
+ * Loads the minibatches of a {@link ShardDataSetIterator} ahead of the trainer: a pool of workers reads,
+ * transforms and normalizes the upcoming minibatches into a bounded queue, so the network is fitted while
+ * the next minibatches are prepared. The minibatches are delivered in the order of the underlying iterator.
+ *
+ * The time the trainer waits in {@link #next()} for a minibatch that is not ready yet is measured, so it can
+ * be seen whether the network or the input is the bottleneck; see {@link #summary()}.
+ *
+ * Each epoch is started when its first minibatch is asked for, and {@link #reset()} abandons the minibatches
+ * of the current epoch. The workers are daemon threads, stopped by {@link #close()}.
+ */
+public class PrefetchDataSetIterator implements DataSetIterator, Closeable {
+    private static final long serialVersionUID = 1L;
+
+    private ShardDataSetIterator source;
+    private int workers;
+    private int queueSize;
+    private ExecutorService executor;
+    private DataSetPreProcessor preProcessor;
+    private Epoch epoch;
+    private Histogram loadNanos = new Histogram();
+    private Histogram starvedNanos = new Histogram();
+    private long starvedTotal = 0;
+    private long startedNanos = 0;
+    private long elapsedTotal = 0;
+
+    /**
+     * The minibatches of one pass over the source, loaded by the workers and taken in order by next()
+     */
+    private class Epoch implements Runnable {
+        final int batches;
+        final AtomicInteger claimed = new AtomicInteger();
+        final Semaphore free;
+        final Map<Integer, DataSet> loaded = new HashMap<Integer, DataSet>();
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        volatile boolean cancelled = false;
+        Throwable failure;
+        int delivered = 0;
+
+        Epoch() {
+            int examples = source.totalExamples();
+            batches = (examples + source.batch() - 1) / source.batch();
+            free = new Semaphore(queueSize);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!cancelled) {
+                    free.acquire();
+                    int index = claimed.getAndIncrement();
+                    if (index >= batches || cancelled) {
+                        free.release(); // lets the other workers see that the epoch is done
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    int from = index * source.batch();
+                    DataSet batch = source.load(from, Math.min(source.batch(), source.totalExamples() - from));
+                    if (preProcessor != null) {
+                        preProcessor.preProcess(batch);
+                    }
+                    loadNanos.record(System.nanoTime() - start);
+                    synchronized (this) {
+                        loaded.put(index, batch);
+                        notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // cancelled
+            } catch (Throwable t) {
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = t;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized DataSet take() throws InterruptedException {
+            while (!loaded.containsKey(delivered) && failure == null) {
+                wait();
+            }
+            if (!loaded.containsKey(delivered)) {
+                throw new RuntimeException("Failed to load minibatch " + delivered + " of " + batches, failure);
+            }
+            free.release();
+            return loaded.remove(delivered++);
+        }
+
+        synchronized boolean isReady() {
+            return loaded.containsKey(delivered);
+        }
+
+        void cancel() {
+            cancelled = true;
+            for (Future<?> future: futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @param source the iterator to load the minibatches of. Its preprocessor is not used
+     * @param workers the number of threads loading minibatches
+     * @param queueSize the maximum number of minibatches loaded ahead of the trainer
+     */
+    public PrefetchDataSetIterator(ShardDataSetIterator source, int workers, int queueSize) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("There must be at least 1 worker. Was " + workers);
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("The queue size must be at least 1. Was " + queueSize);
+        }
+        this.source = source;
+        this.workers = workers;
+        this.queueSize = queueSize;
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "prefetch-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // Starts the workers on a new epoch if none is running
+    private Epoch epoch() {
+        if (epoch == null) {
+            epoch = new Epoch();
+            for (int i = 0; i < workers; i++) {
+                epoch.futures.add(executor.submit(epoch));
+            }
+        }
+        return epoch;
+    }
+
+    @Override
+    public boolean hasNext() {
+        Epoch current = epoch();
+        return current.delivered < current.batches;
+    }
+
+    @Override
+    public DataSet next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("All " + epoch.batches + " minibatches have been read");
+        }
+        long start = System.nanoTime();
+        if (startedNanos == 0) {
+            startedNanos = start;
+        }
+        boolean starved = !epoch.isReady();
+        DataSet batch;
+        try {
+            batch = epoch.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for minibatch " + epoch.delivered, e);
+        }
+        long waited = System.nanoTime() - start;
+        if (starved) {
+            starvedNanos.record(waited);
+            starvedTotal += waited;
+        }
+        if (!hasNext()) {
+            elapsedTotal += System.nanoTime() - startedNanos;
+            startedNanos = 0;
+        }
+        return batch;
+    }
+
+    /**
+     * @param num must be the batch size of the source, as the minibatches are loaded ahead
+     */
+    @Override
+    public DataSet next(int num) {
+        if (num != source.batch()) {
+            throw new UnsupportedOperationException("The minibatches are prefetched with " + source.batch()
+                    + " images. Can not give " + num);
+        }
+        return next();
+    }
+
+    /**
+     * @return the total time the trainer has waited for minibatches that were not loaded yet
+     */
+    public long getStarvedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(starvedTotal);
+    }
+
+    /**
+     * @return the minibatches delivered, the time spent loading them and the time the trainer waited for them
+     */
+    public String summary() {
+        long elapsed = elapsedTotal + (startedNanos == 0 ? 0 : System.nanoTime() - startedNanos);
+        return String.format(Locale.ROOT, "Prefetch: %d minibatches loaded by %d workers (mean %.1fms, p99 %.1fms). "
+                + "Trainer starved %d times for %.1f secs of %.1f secs (%.1f%%), longest %.1fms",
+                loadNanos.getCount(), workers, loadNanos.getMean() / 1e6, loadNanos.getPercentile(99) / 1e6,
+                starvedNanos.getCount(), starvedTotal / 1e9, elapsed / 1e9,
+                elapsed == 0 ? 0 : 100.0 * starvedTotal / elapsed, starvedNanos.getMax() / 1e6);
+    }
+
+    @Override
+    public int totalExamples() {
+        return source.totalExamples();
+    }
+
+    @Override
+    public int inputColumns() {
+        return source.inputColumns();
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return source.totalOutcomes();
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    /**
+     * @return false, as the minibatches are already loaded asynchronously
+     */
+    @Override
+    public boolean asyncSupported() {
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        if (epoch != null) {
+            epoch.cancel();
+            epoch = null;
+        }
+        if (startedNanos != 0) {
+            elapsedTotal += System.nanoTime() - startedNanos;
+            startedNanos = 0;
+        }
+    }
+
+    @Override
+    public int batch() {
+        return source.batch();
+    }
+
+    @Override
+    public int cursor() {
+        return epoch == null ? 0 : Math.min(source.totalExamples(), epoch.delivered * source.batch());
+    }
+
+    @Override
+    public int numExamples() {
+        return totalExamples();
+    }
+
+    /**
+     * @param preProcessor applied by the workers to each minibatch as it is loaded
+     */
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return source.getLabels();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        reset();
+        executor.shutdownNow();
+    }
+}
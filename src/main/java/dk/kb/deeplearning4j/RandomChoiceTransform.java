@@ -0,0 +1,107 @@
+package dk.kb.deeplearning4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.datavec.image.data.ImageWritable;
+import org.datavec.image.transform.FlipImageTransform;
+import org.datavec.image.transform.ImageTransform;
+import org.datavec.image.transform.WarpImageTransform;
+
+/**
+ * Applies one transform, chosen at random by weight, to each image, so a single pass over the images sees a
+ * mix of augmentations instead of one pass per transform. The choice may be to leave the image unchanged.
+ *
+ * Like the DataVec transforms it is not thread safe; give each thread its own.
+ */
+public class RandomChoiceTransform implements ImageTransform {
+    /**
+     * The default mix: as often unchanged as warped, and flipped twice as often
+     */
+    public static final String DEFAULT_MIX = "none:1,flip:2,warp:1";
+
+    private Random random;
+    private List<ImageTransform> transforms = new ArrayList<ImageTransform>();
+    private List<Double> weights = new ArrayList<Double>();
+    private double total = 0;
+
+    public RandomChoiceTransform(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * @param transform the transform, or null to leave the image unchanged
+     * @param weight the relative frequency of the transform
+     * @return this, so transforms can be chained
+     */
+    public RandomChoiceTransform add(ImageTransform transform, double weight) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("The weight must be positive. Was " + weight);
+        }
+        transforms.add(transform);
+        weights.add(weight);
+        total += weight;
+        return this;
+    }
+
+    /**
+     * Makes the transforms of a mix such as "none:1,flip:2,warp:1", of the transforms none, flip (randomly
+     * around either or both axes) and warp (the corners moved up to 42 pixels), each with its weight.
+     * @param random the random generator for the choice and the transforms
+     */
+    public static RandomChoiceTransform parse(String mix, Random random) {
+        RandomChoiceTransform choice = new RandomChoiceTransform(random);
+        for (String entry: mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            double weight;
+            try {
+                weight = parts.length == 1 ? 1 : Double.parseDouble(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid weight in '" + entry + "' of the transform mix '" + mix + "'");
+            }
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            if ("none".equals(name)) {
+                choice.add(null, weight);
+            } else if ("flip".equals(name)) {
+                choice.add(new FlipImageTransform(random), weight);
+            } else if ("warp".equals(name)) {
+                choice.add(new WarpImageTransform(random, 42), weight);
+            } else {
+                throw new IllegalArgumentException("Unknown transform '" + parts[0] + "' in the transform mix '" + mix
+                        + "'. Known transforms are none, flip and warp");
+            }
+        }
+        return choice;
+    }
+
+    /**
+     * @return the image transformed by a transform chosen at random, which uses its own random generator
+     */
+    @Override
+    public ImageWritable transform(ImageWritable image) {
+        ImageTransform transform = choose(random);
+        return transform == null ? image : transform.transform(image);
+    }
+
+    @Override
+    public ImageWritable transform(ImageWritable image, Random random) {
+        ImageTransform transform = choose(random);
+        return transform == null ? image : transform.transform(image, random);
+    }
+
+    private ImageTransform choose(Random random) {
+        if (transforms.isEmpty()) {
+            return null;
+        }
+        double pick = (random == null ? Math.random() : random.nextDouble()) * total;
+        for (int i = 0; i < transforms.size() - 1; i++) {
+            pick -= weights.get(i);
+            if (pick < 0) {
+                return transforms.get(i);
+            }
+        }
+        return transforms.get(transforms.size() - 1);
+    }
+}
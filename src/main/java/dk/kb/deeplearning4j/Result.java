@@ -1,16 +1,28 @@
 package dk.kb.deeplearning4j;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.nd4j.linalg.api.ndarray.INDArray;
 
 public class Result {
     private int labelIndex;
     private double accuracy;
     private String objectName;
+    private float[] probabilities;
 
     public Result(int labelindex, double accuracy, String objectName) {
+        this(labelindex, accuracy, objectName, null);
+    }
+
+    /**
+     * @param probabilities the probabilities of all the labels, or null if not known
+     */
+    public Result(int labelindex, double accuracy, String objectName, float[] probabilities) {
         this.labelIndex = labelindex;
         this.accuracy = accuracy;
         this.objectName = objectName;
+        this.probabilities = probabilities;
     }
  
     public int getLabelIndex() {
@@ -22,16 +34,37 @@ public class Result {
     }
     
     public static Result getResult(INDArray output, String objectName) {
-        double[] resultArray = output.data().asDouble();
+        return getResult(output.data().asFloat(), objectName);
+    }
+
+    /**
+     * @param output the [N,labels] output of a network for a batch of N objects
+     * @param objectNames the names of the objects, in the order of the rows
+     * @return a result per row
+     */
+    public static List<Result> getResults(INDArray output, List<String> objectNames) {
+        int labels = output.columns();
+        // dup in c order, so the data buffer holds exactly the rows in order, even if the output is a view
+        float[] data = output.dup('c').data().asFloat();
+        List<Result> results = new ArrayList<Result>(objectNames.size());
+        for (int i = 0; i < objectNames.size(); i++) {
+            float[] probabilities = new float[labels];
+            System.arraycopy(data, i * labels, probabilities, 0, labels);
+            results.add(getResult(probabilities, objectNames.get(i)));
+        }
+        return results;
+    }
+
+    public static Result getResult(float[] probabilities, String objectName) {
         double max = 0L;
         int maxIndex = -1;
-        for (int i=0; i < resultArray.length; i++) {
-            if (resultArray[i] > max) {
-                max = resultArray[i];
+        for (int i=0; i < probabilities.length; i++) {
+            if (probabilities[i] > max) {
+                max = probabilities[i];
                 maxIndex = i;
             }
         }
-        return new Result(maxIndex, max, objectName);
+        return new Result(maxIndex, max, objectName, probabilities);
     }
 
     public String getObjectName() {
@@ -41,6 +74,13 @@ public class Result {
     public void setObjectName(String objectName) {
         this.objectName = objectName;
     }
+
+    /**
+     * @return the probabilities of all the labels, or null if not known
+     */
+    public float[] getProbabilities() {
+        return probabilities;
+    }
     
     
 }
@@ -0,0 +1,207 @@
+package dk.kb.deeplearning4j;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.deeplearning4j.api.storage.StatsStorageRouter;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.ui.stats.StatsListener;
+import org.deeplearning4j.ui.stats.api.StatsType;
+import org.deeplearning4j.ui.stats.api.StatsUpdateConfiguration;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import dk.kb.util.Histogram;
+
+/**
+ * A StatsListener that samples: the score, the learning rates and the performance are reported every
+ * scoreInterval iterations, the histograms, means and standard deviations of the parameters and updates every
+ * histogramInterval iterations, and the memory and garbage collection every memoryInterval iterations.
+ * Gradients and activations are not collected. The other intervals are rounded up to multiples of the score
+ * interval, as stats are only collected when a report is made.
+ *
+ * The time spent in the listener is measured, so the overhead of the monitoring can be seen; see
+ * {@link #summary()}. Use it with an {@link AsyncStatsStorageRouter} to keep the writes out of the training.
+ */
+public class SampledStatsListener extends StatsListener {
+    private static final long serialVersionUID = 1L;
+    private static final int HistogramBins = 20;
+
+    private Sampling sampling;
+    private int iterations = 0;
+    private int reports = 0;
+    private Histogram overheadNanos = new Histogram();
+    private long overheadTotal = 0;
+    private long firstNanos = 0;
+    private long lastNanos = 0;
+
+    /**
+     * Decides what to collect from the number of the current iteration, which the listener counts itself,
+     * as DL4J gives the number of the iteration within the minibatch
+     */
+    private static class Sampling implements StatsUpdateConfiguration {
+        private static final long serialVersionUID = 1L;
+
+        final int scoreInterval;
+        final int histogramInterval;
+        final int memoryInterval;
+        int iteration = 0;
+
+        Sampling(int scoreInterval, int histogramInterval, int memoryInterval) {
+            if (scoreInterval < 1 || histogramInterval < 1 || memoryInterval < 1) {
+                throw new IllegalArgumentException("The intervals must be at least 1. Were " + scoreInterval + ", "
+                        + histogramInterval + " and " + memoryInterval);
+            }
+            this.scoreInterval = scoreInterval;
+            this.histogramInterval = roundUp(histogramInterval, scoreInterval);
+            this.memoryInterval = roundUp(memoryInterval, scoreInterval);
+        }
+
+        private static int roundUp(int interval, int multiple) {
+            return (interval + multiple - 1) / multiple * multiple;
+        }
+
+        boolean histogramsDue() {
+            return iteration % histogramInterval == 0;
+        }
+
+        boolean memoryDue() {
+            return iteration % memoryInterval == 0;
+        }
+
+        private static boolean sampled(StatsType type) {
+            return type == StatsType.Parameters || type == StatsType.Updates;
+        }
+
+        @Override
+        public int reportingFrequency() {
+            return scoreInterval;
+        }
+
+        @Override
+        public boolean collectPerformanceStats() {
+            return true;
+        }
+
+        @Override
+        public boolean collectMemoryStats() {
+            return memoryDue();
+        }
+
+        @Override
+        public boolean collectGarbageCollectionStats() {
+            return memoryDue();
+        }
+
+        @Override
+        public boolean collectLearningRates() {
+            return true;
+        }
+
+        @Override
+        public boolean collectHistograms(StatsType type) {
+            return sampled(type) && histogramsDue();
+        }
+
+        @Override
+        public int numHistogramBins(StatsType type) {
+            return HistogramBins;
+        }
+
+        @Override
+        public boolean collectMean(StatsType type) {
+            return sampled(type) && histogramsDue();
+        }
+
+        @Override
+        public boolean collectStdev(StatsType type) {
+            return sampled(type) && histogramsDue();
+        }
+
+        // Cheap and needed for the update:parameter ratio chart, so with every report
+        @Override
+        public boolean collectMeanMagnitudes(StatsType type) {
+            return sampled(type);
+        }
+    }
+
+    /**
+     * @param router where the stats are written, e.g. an {@link AsyncStatsStorageRouter}
+     */
+    public SampledStatsListener(StatsStorageRouter router, int scoreInterval, int histogramInterval, int memoryInterval) {
+        this(router, new Sampling(scoreInterval, histogramInterval, memoryInterval));
+    }
+
+    private SampledStatsListener(StatsStorageRouter router, Sampling sampling) {
+        super(router, null, sampling, null, null);
+        this.sampling = sampling;
+    }
+
+    @Override
+    public void iterationDone(Model model, int iteration) {
+        long start = System.nanoTime();
+        if (firstNanos == 0) {
+            firstNanos = start;
+        }
+        sampling.iteration = ++iterations;
+        if (iterations % sampling.scoreInterval == 0) {
+            reports++;
+        }
+        super.iterationDone(model, iterations);
+        lastNanos = System.nanoTime();
+        record(start, lastNanos);
+    }
+
+    @Override
+    public void onForwardPass(Model model, List<INDArray> activations) {
+        long start = System.nanoTime();
+        super.onForwardPass(model, activations);
+        record(start, System.nanoTime());
+    }
+
+    @Override
+    public void onForwardPass(Model model, Map<String, INDArray> activations) {
+        long start = System.nanoTime();
+        super.onForwardPass(model, activations);
+        record(start, System.nanoTime());
+    }
+
+    @Override
+    public void onGradientCalculation(Model model) {
+        long start = System.nanoTime();
+        super.onGradientCalculation(model);
+        record(start, System.nanoTime());
+    }
+
+    @Override
+    public void onBackwardPass(Model model) {
+        long start = System.nanoTime();
+        super.onBackwardPass(model);
+        record(start, System.nanoTime());
+    }
+
+    private void record(long start, long end) {
+        overheadNanos.record(end - start);
+        overheadTotal += end - start;
+    }
+
+    /**
+     * @return the total time spent in the listener
+     */
+    public long getOverheadNanos() {
+        return overheadTotal;
+    }
+
+    /**
+     * @return the number of iterations and reports, and the time spent in the listener, also as a share of the
+     *         time from the first to the last iteration
+     */
+    public String summary() {
+        long elapsed = lastNanos - firstNanos;
+        return String.format(Locale.ROOT, "Telemetry: %d iterations, %d reports (scores every %d, histograms every %d, memory every %d). "
+                + "Listener overhead %.1f secs of %.1f secs (%.2f%%), p99 %.2fms, max %.1fms per call",
+                iterations, reports, sampling.scoreInterval, sampling.histogramInterval, sampling.memoryInterval,
+                overheadTotal / 1e9, elapsed / 1e9, elapsed == 0 ? 0 : 100.0 * overheadTotal / elapsed,
+                overheadNanos.getPercentile(99) / 1e6, overheadNanos.getMax() / 1e6);
+    }
+}
@@ -0,0 +1,99 @@
+package dk.kb.deeplearning4j;
+
+import static org.bytedeco.javacpp.opencv_imgcodecs.IMREAD_REDUCED_COLOR_2;
+import static org.bytedeco.javacpp.opencv_imgcodecs.IMREAD_REDUCED_COLOR_4;
+import static org.bytedeco.javacpp.opencv_imgcodecs.IMREAD_REDUCED_COLOR_8;
+import static org.bytedeco.javacpp.opencv_imgcodecs.IMREAD_REDUCED_GRAYSCALE_2;
+import static org.bytedeco.javacpp.opencv_imgcodecs.IMREAD_REDUCED_GRAYSCALE_4;
+import static org.bytedeco.javacpp.opencv_imgcodecs.IMREAD_REDUCED_GRAYSCALE_8;
+import static org.bytedeco.javacpp.opencv_imgcodecs.imdecode;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.IOUtils;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.datavec.image.loader.NativeImageLoader;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import dk.kb.util.JpegScale;
+
+/**
+ * A NativeImageLoader that decodes large JPEG images at 1/2, 1/4 or 1/8 of their size with OpenCV's
+ * IMREAD_REDUCED_* modes, choosing the smallest that still covers the height and width of the loader,
+ * before they are resized as usual. Other images, and JPEG images too small to be reduced, are loaded
+ * exactly as by NativeImageLoader.
+ */
+public class ScaledImageLoader extends NativeImageLoader {
+    private static final long serialVersionUID = 1L;
+
+    public ScaledImageLoader(int height, int width, int channels) {
+        super(height, width, channels);
+    }
+
+    @Override
+    public INDArray asMatrix(InputStream is) throws IOException {
+        return asMatrix(IOUtils.toByteArray(is));
+    }
+
+    /**
+     * @param bytes the content of an image file between the position and the limit of the buffer. It is only
+     *        copied to an array if the buffer does not wrap exactly that
+     * @return the image as a [1,channels,height,width] matrix
+     */
+    public INDArray asMatrix(ByteBuffer bytes) throws IOException {
+        if (bytes.hasArray() && bytes.arrayOffset() == 0 && bytes.position() == 0 && bytes.remaining() == bytes.array().length) {
+            return asMatrix(bytes.array());
+        }
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.duplicate().get(copy);
+        return asMatrix(copy);
+    }
+
+    /**
+     * @param bytes the content of an image file
+     * @return the image as a [1,channels,height,width] matrix
+     */
+    public INDArray asMatrix(byte[] bytes) throws IOException {
+        int denominator = denominator(bytes);
+        if (denominator == 1) {
+            return super.asMatrix(new ByteArrayInputStream(bytes));
+        }
+        Mat encoded = new Mat(bytes);
+        Mat image = imdecode(encoded, flags(denominator));
+        try {
+            if (image == null || image.empty()) {
+                return super.asMatrix(new ByteArrayInputStream(bytes));
+            }
+            return asMatrix(image);
+        } finally {
+            encoded.deallocate();
+            if (image != null) {
+                image.deallocate();
+            }
+        }
+    }
+
+    /**
+     * @return the denominator the image is decoded with, one of {@link JpegScale#DENOMINATORS}
+     */
+    int denominator(byte[] bytes) {
+        // imdecode in OpenCV 3.2 does not turn the image by its EXIF orientation, so the stored size is the decoded size
+        return JpegScale.denominator(bytes, width, height);
+    }
+
+    private int flags(int denominator) {
+        switch (denominator) {
+        case 2:
+            return channels == 1 ? IMREAD_REDUCED_GRAYSCALE_2 : IMREAD_REDUCED_COLOR_2;
+        case 4:
+            return channels == 1 ? IMREAD_REDUCED_GRAYSCALE_4 : IMREAD_REDUCED_COLOR_4;
+        case 8:
+            return channels == 1 ? IMREAD_REDUCED_GRAYSCALE_8 : IMREAD_REDUCED_COLOR_8;
+        default:
+            throw new IllegalArgumentException("Unsupported denominator " + denominator);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package dk.kb.deeplearning4j;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.datavec.image.data.ImageWritable;
+import org.datavec.image.loader.NativeImageLoader;
+import org.datavec.image.transform.ImageTransform;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Iterates over images in {@link ImageShards} in minibatches, as a RecordReaderDataSetIterator over an
+ * ImageRecordReader would over the image files: the features are the pixels as 0-255 floats in
+ * [batch,channels,height,width] and the labels are one-hot. No image is decoded, as the pixels are read
+ * from the shards.
+ *
+ * If a transform is given, it is applied to the cached pixels of each image, instead of to the decoded JPEG
+ * image, every time the image is read, so every epoch sees new random transformations.
+ *
+ * The iterator itself is not thread safe, but {@link #load(int, int)} can be called from several threads
+ * at once, e.g. by a {@link PrefetchDataSetIterator}. The DataVec transforms keep state between images, so a
+ * single transform is used by one thread at a time; see {@link #setTransform(ThreadLocal)} to give each thread
+ * its own.
+ */
+public class ShardDataSetIterator implements DataSetIterator {
+    private static final long serialVersionUID = 1L;
+
+    private ImageShards shards;
+    private int[] records;
+    private List<String> labels;
+    private int batchSize;
+    private ImageTransform transform;
+    private ThreadLocal<? extends ImageTransform> transforms;
+    private DataSetPreProcessor preProcessor;
+    private int cursor = 0;
+    private ThreadLocal<NativeImageLoader> loaders;
+    private ThreadLocal<OpenCVFrameConverter.ToMat> converters;
+
+    /**
+     * @param records the records to iterate over, in order, as returned by {@link ImageShards#add}
+     * @param labels the labels, in the order of the outputs of the network
+     * @param transform the transform to apply to each image, or null
+     */
+    public ShardDataSetIterator(ImageShards shards, int[] records, List<String> labels, int batchSize, ImageTransform transform) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be at least 1. Was " + batchSize);
+        }
+        this.shards = shards;
+        this.records = records;
+        this.labels = labels;
+        this.batchSize = batchSize;
+        this.transform = transform;
+        final int height = shards.getHeight();
+        final int width = shards.getWidth();
+        final int channels = shards.getChannels();
+        this.loaders = new ThreadLocal<NativeImageLoader>() {
+            @Override
+            protected NativeImageLoader initialValue() {
+                return new NativeImageLoader(height, width, channels);
+            }
+        };
+        this.converters = new ThreadLocal<OpenCVFrameConverter.ToMat>() {
+            @Override
+            protected OpenCVFrameConverter.ToMat initialValue() {
+                return new OpenCVFrameConverter.ToMat();
+            }
+        };
+    }
+
+    /**
+     * Applies a transform of each thread to the images it loads, instead of a single transform shared by all
+     * threads. The transforms should be seeded differently, or all threads repeat the same transformations.
+     * @param transforms gives the transform of the calling thread, or null for no transform
+     */
+    public void setTransform(ThreadLocal<? extends ImageTransform> transforms) {
+        this.transforms = transforms;
+        this.transform = null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < records.length;
+    }
+
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+
+    @Override
+    public DataSet next(int num) {
+        if (!hasNext()) {
+            throw new NoSuchElementException("All " + records.length + " images have been read");
+        }
+        int count = Math.min(num, records.length - cursor);
+        DataSet result = load(cursor, count);
+        cursor += count;
+        if (preProcessor != null) {
+            preProcessor.preProcess(result);
+        }
+        return result;
+    }
+
+    /**
+     * Loads images as {@link #next(int)}, but from any position and without moving the cursor or applying the
+     * preprocessor. Can be called from several threads at once.
+     * @param from the index of the first image among the records of the iterator
+     * @param count the number of images to load
+     */
+    public DataSet load(int from, int count) {
+        if (from < 0 || count < 1 || from + count > records.length) {
+            throw new IndexOutOfBoundsException("Can not load " + count + " images from " + from + " of " + records.length);
+        }
+        ImageTransform transform = transforms == null ? this.transform : transforms.get();
+        int pixels = inputColumns();
+        float[] features = new float[count * pixels];
+        float[] outcomes = new float[count * labels.size()];
+        try {
+            for (int i = 0; i < count; i++) {
+                int record = records[from + i];
+                int label = labels.indexOf(shards.getLabel(record));
+                if (label < 0) {
+                    throw new IllegalStateException("The label '" + shards.getLabel(record) + "' of record " + record
+                            + " is not among " + labels);
+                }
+                outcomes[i * labels.size() + label] = 1;
+                ByteBuffer bytes = shards.read(record);
+                if (transform == null) {
+                    for (int j = 0; j < pixels; j++) {
+                        features[i * pixels + j] = bytes.get(j) & 0xFF;
+                    }
+                } else {
+                    System.arraycopy(transformed(bytes, transform), 0, features, i * pixels, pixels);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the shards in " + shards.getDir().getAbsolutePath(), e);
+        }
+        INDArray featureArray = Nd4j.create(features, new int[] {count, shards.getChannels(), shards.getHeight(), shards.getWidth()});
+        return new DataSet(featureArray, Nd4j.create(outcomes, new int[] {count, labels.size()}));
+    }
+
+    // Applies the transform to the pixels of an image, given in [channels,height,width] order
+    private float[] transformed(ByteBuffer bytes, ImageTransform transform) throws IOException {
+        int channels = shards.getChannels();
+        int area = shards.getHeight() * shards.getWidth();
+        Mat mat = new Mat(shards.getHeight(), shards.getWidth(), CV_8UC(channels));
+        try {
+            // OpenCV interleaves the channels of each pixel
+            byte[] interleaved = new byte[area * channels];
+            for (int c = 0; c < channels; c++) {
+                for (int p = 0; p < area; p++) {
+                    interleaved[p * channels + c] = bytes.get(c * area + p);
+                }
+            }
+            mat.data().put(interleaved);
+            ImageWritable image = new ImageWritable(converters.get().convert(mat));
+            if (transforms != null) {
+                return loaders.get().asMatrix(transform.transform(image)).data().asFloat();
+            }
+            // The transformed image may be a frame the transform reuses for its next image
+            synchronized (transform) {
+                return loaders.get().asMatrix(transform.transform(image)).data().asFloat();
+            }
+        } finally {
+            mat.deallocate();
+        }
+    }
+
+    @Override
+    public int totalExamples() {
+        return records.length;
+    }
+
+    @Override
+    public int inputColumns() {
+        return shards.getChannels() * shards.getHeight() * shards.getWidth();
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return labels.size();
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        cursor = 0;
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public int cursor() {
+        return cursor;
+    }
+
+    @Override
+    public int numExamples() {
+        return totalExamples();
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
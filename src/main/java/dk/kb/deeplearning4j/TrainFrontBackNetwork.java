@@ -2,9 +2,11 @@ package dk.kb.deeplearning4j;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.datavec.api.io.filters.BalancedPathFilter;
 import org.datavec.api.io.labels.ParentPathLabelGenerator;
@@ -12,31 +14,57 @@ import org.datavec.api.io.labels.PathLabelGenerator;
 import org.datavec.api.split.FileSplit;
 import org.datavec.api.split.InputSplit;
 import org.datavec.image.recordreader.ImageRecordReader;
-import org.datavec.image.transform.FlipImageTransform;
 import org.datavec.image.transform.ImageTransform;
 import org.datavec.image.transform.MultiImageTransform;
 import org.datavec.image.transform.ShowImageTransform;
-import org.datavec.image.transform.WarpImageTransform;
 import org.deeplearning4j.api.storage.StatsStorage;
-import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
-import org.deeplearning4j.datasets.iterator.MultipleEpochsIterator;
 import org.deeplearning4j.eval.Evaluation;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.optimize.api.IterationListener;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.deeplearning4j.ui.api.UIServer;
-import org.deeplearning4j.ui.stats.StatsListener;
 import org.deeplearning4j.ui.storage.FileStatsStorage;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
 import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
 
+import dk.kb.util.Options;
+
 public class TrainFrontBackNetwork {
+    /**
+     * The default number of minibatches loaded ahead of the trainer
+     */
+    public static final int DEFAULT_PREFETCH = 4;
+    /**
+     * The default number of epochs. The training used to be 2 epochs without transforms and 2 epochs with each
+     * of a flip, a warp and another flip, so 8 epochs of {@link RandomChoiceTransform#DEFAULT_MIX} give the same
+     * augmentations on average
+     */
+    public static final int DEFAULT_EPOCHS = 8;
+    /**
+     * The default number of minibatches each trainer fits between the averagings of the parameters
+     */
+    public static final int DEFAULT_AVERAGING = 3;
+    /**
+     * The default number of iterations between the reports of the score and performance
+     */
+    public static final int DEFAULT_STATS_INTERVAL = 10;
+    /**
+     * The default number of iterations between the histograms of the parameters and updates
+     */
+    public static final int DEFAULT_HISTOGRAM_INTERVAL = 100;
+    /**
+     * The default number of iterations between the reports of the memory use
+     */
+    public static final int DEFAULT_MEMORY_INTERVAL = 50;
+    private static final int StatsQueueSize = 1000;
 
     public static void main(String[] args) throws IOException {
+        Options options = new Options(args);
+        args = options.getArguments().toArray(new String[0]);
         if (args.length < 2) {
-            System.err.println("Missing arguments: <dataset-dir> <trainpercentage>. Exiting program");
+            System.err.println("Missing arguments: <dataset-dir> <trainpercentage> [--decoders=N] [--queue-size=N] [--epochs=N] [--augment=MIX] [--trainers=N] [--averaging=N] [--scaling-report] [--stats=false] [--stats-interval=N] [--histogram-interval=N] [--memory-interval=N] [--metric=loss|accuracy] [--patience=N] [--min-improvement=X] [--eval-interval=N] [--time-budget=MINUTES] [--cpu-budget=MINUTES] [--checkpoint-dir=DIR] [--fresh]. Exiting program");
             System.exit(1);
         }
         String parentDirPath = args[0];
@@ -105,7 +133,7 @@ public class TrainFrontBackNetwork {
         System.out.println("Completed " +  iterations + " iterations on training set");
         */
         try {
-            doModelling(heigth, width, channels, labelMaker, trainData, testData, outputNum, parentDir);
+            doModelling(heigth, width, channels, labelMaker, trainData, testData, outputNum, parentDir, options);
         } catch (Throwable e) {
             System.err.println("Program stopped with exception: " + e.fillInStackTrace());
             System.exit(1);
@@ -116,8 +144,37 @@ public class TrainFrontBackNetwork {
     
     
     public static void doModelling(int height, int width, int channels, PathLabelGenerator labelMaker,  InputSplit trainData, InputSplit testData, int numLabels, File parentDir) throws IOException {
+        doModelling(height, width, channels, labelMaker, trainData, testData, numLabels, parentDir, new Options(new String[0]));
+    }
+
+    /**
+     * Trains as {@link #doModelling(int, int, int, PathLabelGenerator, InputSplit, InputSplit, int, File)},
+     * with the minibatches loaded ahead of the trainer by a {@link PrefetchDataSetIterator}. The network is
+     * trained in a single run of epochs, where each image is augmented by a transform chosen at random. The
+     * network is evaluated on the test data as it is trained, and the training stops early when it no longer
+     * improves or the time budget is used; see {@link TrainingRun}. The best network is kept and saved. A run
+     * that was interrupted resumes from its last checkpoint in the dataset name + ".checkpoints" directory.
+     * @param options --decoders=N threads read, transform and normalize minibatches (default: the number of cores),
+     *                --queue-size=N minibatches are loaded ahead of the trainer (default {@value #DEFAULT_PREFETCH}),
+     *                --epochs=N the maximum number of epochs (default {@value #DEFAULT_EPOCHS}),
+     *                --augment=MIX the transforms and their weights, see {@link RandomChoiceTransform#parse},
+     *                --trainers=N replicas of the network are trained in parallel by a {@link ParallelTrainer} (default 1),
+     *                --averaging=N minibatches per trainer between the averagings (default {@value #DEFAULT_AVERAGING}),
+     *                --scaling-report times an epoch with 1, 2, 4... trainers before the training,
+     *                --stats=false disables the training stats written for the training UI,
+     *                --stats-interval=N, --histogram-interval=N and --memory-interval=N iterations between
+     *                the reports of the score, the histograms and the memory, see {@link SampledStatsListener},
+     *                --metric, --patience, --min-improvement, --eval-interval, --time-budget, --cpu-budget,
+     *                --checkpoint-dir and --fresh, see {@link TrainingRun#create}
+     */
+    public static void doModelling(int height, int width, int channels, PathLabelGenerator labelMaker,  InputSplit trainData, InputSplit testData, int numLabels, File parentDir,
+            Options options) throws IOException {
+        int decoders = options.getInt("decoders", Runtime.getRuntime().availableProcessors());
+        int queueSize = options.getInt("queue-size", DEFAULT_PREFETCH);
+        final String augmentation = options.get("augment", RandomChoiceTransform.DEFAULT_MIX);
+        int trainers = options.getInt("trainers", 1);
+        int averaging = options.getInt("averaging", DEFAULT_AVERAGING);
         int iterations = 1;
-        int epochs = 2;
         boolean save = true;
         int seed = 42;
         int batchSize = 20;
@@ -132,51 +189,108 @@ public class TrainFrontBackNetwork {
         //MultiLayerNetwork network = Models.getSimpleCnn(numLabels, seed, iterations);
         MultiLayerNetwork network = Models.lenetModel(seed, iterations, channels, numLabels, height, width);
         network.init();
-        network.setListeners(new ScoreIterationListener());
+        // The network is trained from the last checkpoint if an earlier run was interrupted
+        TrainingRun run = TrainingRun.create(options, new File(parentDir.getParentFile(), parentDir.getName() + ".checkpoints"), DEFAULT_EPOCHS);
+        MultiLayerNetwork resumed = run.resume();
+        if (resumed != null) {
+            network = resumed;
+        }
+        int statsInterval = options.getInt("stats-interval", DEFAULT_STATS_INTERVAL);
+        network.setListeners(new ScoreIterationListener(statsInterval));
         
-        File f = new File(parentDir.getParentFile(), parentDir.getName() + ".db");
-        StatsStorage statsStorage = new FileStatsStorage(f);
+        // The stats are sampled, and written to the storage by a background thread
+        SampledStatsListener statsListener = null;
+        AsyncStatsStorageRouter statsRouter = null;
+        if (options.getBoolean("stats", true)) {
+            File f = new File(parentDir.getParentFile(), parentDir.getName() + ".db");
+            StatsStorage statsStorage = new FileStatsStorage(f);
 
-        if (enableUIServer) {
-            UIServer uiServer = UIServer.getInstance();
-            //StatsStorage statsStorage = new InMemoryStatsStorage();
-            uiServer.attach(statsStorage);
+            if (enableUIServer) {
+                UIServer uiServer = UIServer.getInstance();
+                //StatsStorage statsStorage = new InMemoryStatsStorage();
+                uiServer.attach(statsStorage);
+            }
+            statsRouter = new AsyncStatsStorageRouter(statsStorage, StatsQueueSize);
+            statsListener = new SampledStatsListener(statsRouter, statsInterval,
+                    options.getInt("histogram-interval", DEFAULT_HISTOGRAM_INTERVAL),
+                    options.getInt("memory-interval", DEFAULT_MEMORY_INTERVAL));
+            network.setListeners(
+                    (IterationListener)
+                    statsListener,
+                    new ScoreIterationListener(statsInterval));
         }
-        network.setListeners(
-                (IterationListener)
-                new StatsListener( statsStorage),
-                new ScoreIterationListener(iterations));
-        DataSetIterator dataIter;
-        MultipleEpochsIterator trainIter;
+        PrefetchDataSetIterator dataIter;
 
-        System.out.println("Train model....without transformations");
-        // Train without transformations
+        // The images are decoded once into shards next to the dataset, and all the passes below read the shards
         recordReader.initialize(trainData, null);
-        dataIter = new RecordReaderDataSetIterator(recordReader, batchSize, 1, numLabels);
+        List<String> labels = recordReader.getLabels();
+        ImageShards shards = ImageShards.forDataset(parentDir, height, width, channels);
+        int[] trainRecords = shards.add(trainData, labelMaker);
+        int[] testRecords = shards.add(testData, labelMaker);
+
+        System.out.println("Train model....with transformations " + augmentation);
+        // Each prefetch worker has its own transforms, as they keep state between images
+        RandomChoiceTransform.parse(augmentation, null); // fails before training if the mix is invalid
+        final AtomicLong seeds = new AtomicLong(seed);
+        ThreadLocal<ImageTransform> transforms = new ThreadLocal<ImageTransform>() {
+            @Override
+            protected ImageTransform initialValue() {
+                return RandomChoiceTransform.parse(augmentation, new Random(seeds.getAndIncrement()));
+            }
+        };
+        // The minibatches are loaded, transformed and normalized by the prefetch workers while the network is fitted
+        ShardDataSetIterator transformed = new ShardDataSetIterator(shards, trainRecords, labels, batchSize, null);
+        transformed.setTransform(transforms);
+        dataIter = new PrefetchDataSetIterator(transformed, decoders, queueSize);
         scaler.fit(dataIter);
         dataIter.setPreProcessor(scaler);
-        trainIter = new MultipleEpochsIterator(epochs, dataIter);
-        network.fit(trainIter);
-
-        Random rng = new Random(seed);
-        System.out.println("Train model....with transformations");    
-        ImageTransform flipTransform1 = new FlipImageTransform(rng);
-        ImageTransform flipTransform2 = new FlipImageTransform(new Random(123));
-        ImageTransform warpTransform = new WarpImageTransform(rng, 42);
-        //         ImageTransform colorTransform = new ColorConversionTransform(new Random(seed), COLOR_BGR2YCrCb);
-        List<ImageTransform> transforms = Arrays.asList(new ImageTransform[]{flipTransform1, warpTransform, flipTransform2});
-        for (ImageTransform transform : transforms) {
-            System.out.print("\nTraining on transformation: " + transform.getClass().toString() + "\n\n");
-            recordReader.initialize(trainData, transform);
-            dataIter = new RecordReaderDataSetIterator(recordReader, batchSize, 1, numLabels);
-            scaler.fit(dataIter);
-            dataIter.setPreProcessor(scaler);
-            trainIter = new MultipleEpochsIterator(epochs, dataIter);
-            network.fit(trainIter);
+        if (options.getBoolean("scaling-report", false)) {
+            scalingReport(network, dataIter, trainers, averaging);
+        }
+        // The test data is evaluated after the epochs to decide when to stop
+        PrefetchDataSetIterator validationIter = new PrefetchDataSetIterator(
+                new ShardDataSetIterator(shards, testRecords, labels, batchSize, null), decoders, queueSize);
+        validationIter.setPreProcessor(scaler);
+        TrainingRun.Fitter fitter;
+        ParallelTrainer trainer = null;
+        if (trainers > 1) {
+            final ParallelTrainer parallel = new ParallelTrainer(network, trainers, averaging);
+            trainer = parallel;
+            fitter = new TrainingRun.Fitter() {
+                @Override
+                public void fit(DataSetIterator epoch) {
+                    parallel.fit(epoch);
+                }
+            };
+        } else {
+            final MultiLayerNetwork single = network;
+            fitter = new TrainingRun.Fitter() {
+                @Override
+                public void fit(DataSetIterator epoch) {
+                    single.fit(epoch);
+                }
+            };
         }
+        try {
+            network = run.train(network, fitter, dataIter, validationIter);
+        } finally {
+            if (trainer != null) {
+                trainer.close();
+                System.out.println(trainer.summary());
+            }
+            run.close();
+        }
+        System.out.println(dataIter.summary());
+        dataIter.close();
+        validationIter.close();
+        if (statsListener != null) {
+            System.out.println(statsListener.summary());
+            statsRouter.close();
+            System.out.println("Wrote " + statsRouter.getWritten() + " stats to the storage, dropped " + statsRouter.getDropped());
+        }
+
         System.out.print("Evaluating model....");
-        recordReader.initialize(testData);
-        dataIter = new RecordReaderDataSetIterator(recordReader, batchSize, 1, numLabels);
+        dataIter = new PrefetchDataSetIterator(new ShardDataSetIterator(shards, testRecords, labels, batchSize, null), decoders, queueSize);
         scaler.fit(dataIter);
         dataIter.setPreProcessor(scaler);
         Evaluation eval = network.evaluate(dataIter);
@@ -186,17 +300,50 @@ public class TrainFrontBackNetwork {
         // Example on how to get predict results with trained model. Result for first example in minibatch is printed
         dataIter.reset();
         DataSet testDataSet = dataIter.next();
-        List<String> allClassLabels = recordReader.getLabels();
+        List<String> allClassLabels = labels;
         int labelIndex = testDataSet.getLabels().argMax(1).getInt(0);
         int[] predictedClasses = network.predict(testDataSet.getFeatures());
         String expectedResult = allClassLabels.get(labelIndex);
         String modelPrediction = allClassLabels.get(predictedClasses[0]);
         System.out.print("\nFor a single example that is labeled " + expectedResult + " the model predicted " + modelPrediction + "\n\n");
+        dataIter.close();
 
+        shards.close();
         if (save) {
             Models.saveModel(parentDir, network);
         }
         System.out.print("****************Example finished********************");
 
     }
+
+    /**
+     * Times an epoch of training on copies of the network with 1, 2, 4... up to maxTrainers trainers, and
+     * prints the epoch times and the speedups. The network itself is not trained.
+     */
+    public static void scalingReport(MultiLayerNetwork network, DataSetIterator dataIter, int maxTrainers, int averaging) {
+        System.out.println("Scaling report: the time of an epoch by the number of trainers");
+        System.out.println("trainers\timages\tsecs\timages/sec\tspeedup");
+        double single = 0;
+        for (int trainers = 1; ; trainers = Math.min(trainers * 2, maxTrainers)) {
+            MultiLayerNetwork copy = network.clone();
+            copy.setListeners(new ArrayList<IterationListener>());
+            dataIter.reset();
+            long start = System.nanoTime();
+            long images;
+            try (ParallelTrainer trainer = new ParallelTrainer(copy, trainers, averaging)) {
+                trainer.fit(dataIter);
+                images = trainer.getExamples();
+            }
+            double secs = (System.nanoTime() - start) / 1e9;
+            if (trainers == 1) {
+                single = secs;
+            }
+            System.out.println(String.format(Locale.ROOT, "%d\t%d\t%.1f\t%.1f\t%.2f", trainers, images, secs,
+                    images / secs, single / secs));
+            if (trainers >= maxTrainers) {
+                break;
+            }
+        }
+        dataIter.reset();
+    }
 }
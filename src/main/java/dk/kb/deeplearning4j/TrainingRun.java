@@ -0,0 +1,439 @@
+package dk.kb.deeplearning4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import dk.kb.util.Options;
+
+/**
+ * Trains a network epoch by epoch, evaluating it on held-out data every evaluationInterval epochs, and stops
+ * when the evaluation has not improved for patience evaluations in a row, when maxEpochs epochs are done, or
+ * when another epoch would exceed the wall-clock or CPU time budget. The best network evaluated is kept.
+ *
+ * After each epoch a checkpoint of the network, with its updater state, and of the run is written to the
+ * checkpoint directory by a background thread, so a run that is stopped can continue from its last checkpoint
+ * with {@link #resume()}. The time budgets count the time of the earlier runs too. The checkpoint is written
+ * from a copy of the network, and the best network is kept as a copy, so the training needs memory for up to
+ * two more copies of the parameters and updater state.
+ */
+public class TrainingRun implements Closeable {
+    public static final int DEFAULT_PATIENCE = 3;
+    public static final int DEFAULT_EVALUATION_INTERVAL = 1;
+
+    private static final String CheckpointName = "checkpoint.zip";
+    private static final String BestName = "best.zip";
+    private static final String StateName = "checkpoint.properties";
+
+    /**
+     * What the held-out data is evaluated by: the mean loss, which must fall, or the accuracy, which must rise
+     */
+    public enum Metric {
+        LOSS, ACCURACY;
+
+        boolean isBetter(double value, double best, double minImprovement) {
+            if (Double.isNaN(best)) {
+                return true;
+            }
+            return this == LOSS ? value < best - minImprovement : value > best + minImprovement;
+        }
+    }
+
+    /**
+     * Fits the network on one epoch of minibatches, e.g. by MultiLayerNetwork.fit or {@link ParallelTrainer#fit}
+     */
+    public interface Fitter {
+        void fit(DataSetIterator epoch);
+    }
+
+    private File dir;
+    private int maxEpochs;
+    private Metric metric = Metric.LOSS;
+    private int patience = DEFAULT_PATIENCE;
+    private int evaluationInterval = DEFAULT_EVALUATION_INTERVAL;
+    private double minImprovement = 0;
+    private long wallBudgetMillis = 0;
+    private long cpuBudgetMillis = 0;
+
+    // The state of the run, kept in the checkpoint
+    private int epoch = 0;
+    private double bestValue = Double.NaN;
+    private int bestEpoch = 0;
+    private int stale = 0;
+    private long earlierWallMillis = 0;
+    private long earlierCpuMillis = 0;
+
+    private MultiLayerNetwork best;
+    private String stopReason;
+    private long startMillis;
+    private long startCpuNanos;
+    private ExecutorService writer;
+    private Future<?> pending;
+
+    /**
+     * @param dir the directory of the checkpoints
+     * @param maxEpochs the maximum number of epochs in all
+     */
+    public TrainingRun(File dir, int maxEpochs) {
+        if (maxEpochs < 1) {
+            throw new IllegalArgumentException("The number of epochs must be at least 1. Was " + maxEpochs);
+        }
+        this.dir = dir;
+        this.maxEpochs = maxEpochs;
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "checkpoint-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Makes a run with checkpoints in --checkpoint-dir (default: defaultDir) of at most --epochs epochs
+     * (default: defaultEpochs), evaluated by --metric=loss|accuracy (default loss) every --eval-interval epochs,
+     * stopping after --patience evaluations without an improvement of more than --min-improvement, or when
+     * another epoch would exceed --time-budget or --cpu-budget minutes. With --fresh the checkpoints of an
+     * earlier run are not resumed.
+     */
+    public static TrainingRun create(Options options, File defaultDir, int defaultEpochs) throws IOException {
+        File dir = new File(options.get("checkpoint-dir", defaultDir.getPath()));
+        TrainingRun run = new TrainingRun(dir, options.getInt("epochs", defaultEpochs));
+        try {
+            run.setMetric(Metric.valueOf(options.get("metric", "loss").toUpperCase(Locale.ROOT)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The option --metric must be loss or accuracy. Was '" + options.get("metric", null) + "'");
+        }
+        run.setPatience(options.getInt("patience", DEFAULT_PATIENCE));
+        run.setEvaluationInterval(options.getInt("eval-interval", DEFAULT_EVALUATION_INTERVAL));
+        try {
+            run.setMinImprovement(Double.parseDouble(options.get("min-improvement", "0")));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The option --min-improvement must be a number. Was '" + options.get("min-improvement", null) + "'");
+        }
+        run.setWallBudgetMillis(TimeUnit.MINUTES.toMillis(options.getLong("time-budget", 0)));
+        run.setCpuBudgetMillis(TimeUnit.MINUTES.toMillis(options.getLong("cpu-budget", 0)));
+        if (options.getBoolean("fresh", false)) {
+            run.clear();
+        }
+        return run;
+    }
+
+    public void setMetric(Metric metric) {
+        this.metric = metric;
+    }
+
+    /**
+     * @param patience the number of evaluations in a row without improvement before the training is stopped
+     */
+    public void setPatience(int patience) {
+        if (patience < 1) {
+            throw new IllegalArgumentException("The patience must be at least 1. Was " + patience);
+        }
+        this.patience = patience;
+    }
+
+    public void setEvaluationInterval(int evaluationInterval) {
+        if (evaluationInterval < 1) {
+            throw new IllegalArgumentException("The evaluation interval must be at least 1. Was " + evaluationInterval);
+        }
+        this.evaluationInterval = evaluationInterval;
+    }
+
+    /**
+     * @param minImprovement the least change of the metric that counts as an improvement
+     */
+    public void setMinImprovement(double minImprovement) {
+        this.minImprovement = minImprovement;
+    }
+
+    /**
+     * @param wallBudgetMillis the maximum wall-clock time of the training, or 0 for no limit
+     */
+    public void setWallBudgetMillis(long wallBudgetMillis) {
+        this.wallBudgetMillis = wallBudgetMillis;
+    }
+
+    /**
+     * @param cpuBudgetMillis the maximum CPU time of the process while training, or 0 for no limit
+     */
+    public void setCpuBudgetMillis(long cpuBudgetMillis) {
+        this.cpuBudgetMillis = cpuBudgetMillis;
+    }
+
+    /**
+     * Deletes the checkpoints of an earlier run
+     */
+    public void clear() throws IOException {
+        for (String name: new String[] {StateName, CheckpointName, BestName}) {
+            Files.deleteIfExists(new File(dir, name).toPath());
+        }
+    }
+
+    /**
+     * Reads the last checkpoint of an earlier run that was stopped before it was done.
+     * @return the network of the checkpoint, to train on with {@link #train}, or null if there is nothing to resume
+     */
+    public MultiLayerNetwork resume() throws IOException {
+        File stateFile = new File(dir, StateName);
+        if (!stateFile.exists()) {
+            return null;
+        }
+        Properties state = new Properties();
+        try (InputStream in = new FileInputStream(stateFile)) {
+            state.load(in);
+        }
+        if (Boolean.parseBoolean(state.getProperty("done"))) {
+            System.out.println("The run in " + dir.getAbsolutePath() + " is done (" + state.getProperty("stopReason")
+                    + "). Starting a new run");
+            return null;
+        }
+        epoch = Integer.parseInt(state.getProperty("epoch"));
+        if (metric.name().equals(state.getProperty("metric"))) {
+            bestValue = Double.parseDouble(state.getProperty("bestValue"));
+            bestEpoch = Integer.parseInt(state.getProperty("bestEpoch"));
+            stale = Integer.parseInt(state.getProperty("stale"));
+            File bestFile = new File(dir, BestName);
+            best = bestFile.exists() ? ModelSerializer.restoreMultiLayerNetwork(bestFile, false) : null;
+        }
+        earlierWallMillis = Long.parseLong(state.getProperty("wallMillis"));
+        earlierCpuMillis = Long.parseLong(state.getProperty("cpuMillis"));
+        System.out.println("Resuming the run in " + dir.getAbsolutePath() + " after epoch " + epoch
+                + (bestEpoch > 0 ? ", best " + metric + " " + bestValue + " after epoch " + bestEpoch : ""));
+        return ModelSerializer.restoreMultiLayerNetwork(new File(dir, CheckpointName), true);
+    }
+
+    /**
+     * Trains the network until it stops improving, the epochs are done or the budget is used.
+     * @param fitter fits the network on an epoch of the training data
+     * @param test the held-out data to evaluate the network on
+     * @return the best network evaluated, or the network itself if it was never evaluated
+     */
+    public MultiLayerNetwork train(MultiLayerNetwork network, Fitter fitter, DataSetIterator train, DataSetIterator test) throws IOException {
+        startMillis = System.currentTimeMillis();
+        startCpuNanos = cpuNanos();
+        long lastEpochMillis = 0;
+        long lastEpochCpuMillis = 0;
+        stopReason = null;
+        while (stopReason == null) {
+            if (epoch >= maxEpochs) {
+                stopReason = "all " + maxEpochs + " epochs done";
+                break;
+            }
+            if (wallBudgetMillis > 0 && wallMillis() + lastEpochMillis > wallBudgetMillis) {
+                stopReason = "the time budget of " + minutes(wallBudgetMillis) + " minutes would be exceeded";
+                break;
+            }
+            if (cpuBudgetMillis > 0 && cpuMillis() + lastEpochCpuMillis > cpuBudgetMillis) {
+                stopReason = "the CPU budget of " + minutes(cpuBudgetMillis) + " minutes would be exceeded";
+                break;
+            }
+            long epochStart = wallMillis();
+            long epochCpuStart = cpuMillis();
+            train.reset();
+            fitter.fit(train);
+            epoch++;
+            MultiLayerNetwork snapshot = null;
+            if (epoch % evaluationInterval == 0 || epoch == maxEpochs) {
+                double value = evaluate(network, test);
+                boolean improved = metric.isBetter(value, bestValue, minImprovement);
+                System.out.println(String.format(Locale.ROOT, "Epoch %d: %s %.5f%s", epoch, metric.name().toLowerCase(Locale.ROOT),
+                        value, improved ? " (best)" : " (best " + bestValue + " after epoch " + bestEpoch + ")"));
+                if (improved) {
+                    bestValue = value;
+                    bestEpoch = epoch;
+                    stale = 0;
+                    best = network.clone();
+                    snapshot = best;
+                } else if (++stale >= patience) {
+                    stopReason = "no improvement in " + stale + " evaluations";
+                }
+            }
+            lastEpochMillis = wallMillis() - epochStart;
+            lastEpochCpuMillis = cpuMillis() - epochCpuStart;
+            checkpoint(snapshot == null ? network.clone() : snapshot, snapshot != null);
+        }
+        if (stopReason != null) {
+            System.out.println("Stopped training after epoch " + epoch + ": " + stopReason + ". The best " + metric.name().toLowerCase(Locale.ROOT)
+                    + (bestEpoch > 0 ? " was " + bestValue + " after epoch " + bestEpoch : " was not evaluated"));
+        }
+        writeState(true); // so the next run starts afresh
+        return best == null ? network : best;
+    }
+
+    // The mean loss or the accuracy of the network on the data
+    private double evaluate(MultiLayerNetwork network, DataSetIterator test) {
+        test.reset();
+        if (metric == Metric.ACCURACY) {
+            return network.evaluate(test).accuracy();
+        }
+        double sum = 0;
+        long examples = 0;
+        while (test.hasNext()) {
+            DataSet batch = test.next();
+            sum += network.score(batch) * batch.numExamples();
+            examples += batch.numExamples();
+        }
+        return examples == 0 ? Double.NaN : sum / examples;
+    }
+
+    // Writes the network, the best network if it has changed, and the state of the run in the background
+    private void checkpoint(final MultiLayerNetwork snapshot, final boolean isBest) throws IOException {
+        awaitPending();
+        final Properties state = state(false);
+        pending = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dir.mkdirs();
+                    writeModel(snapshot, CheckpointName);
+                    if (isBest) {
+                        writeModel(snapshot, BestName);
+                    }
+                    writeState(state);
+                } catch (IOException e) {
+                    System.err.println("Failed to write the checkpoint in '" + dir.getAbsolutePath() + "': " + e);
+                }
+            }
+        });
+    }
+
+    private void writeModel(MultiLayerNetwork network, String name) throws IOException {
+        File tmp = File.createTempFile(name, ".tmp", dir);
+        ModelSerializer.writeModel(network, tmp, true);
+        move(tmp, new File(dir, name));
+    }
+
+    private void writeState(boolean done) throws IOException {
+        awaitPending();
+        if (dir.isDirectory()) {
+            writeState(state(done));
+        }
+    }
+
+    private void writeState(Properties state) throws IOException {
+        File tmp = File.createTempFile(StateName, ".tmp", dir);
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            state.store(out, "TrainingRun checkpoint");
+        }
+        move(tmp, new File(dir, StateName));
+    }
+
+    private Properties state(boolean done) {
+        Properties state = new Properties();
+        state.setProperty("epoch", Integer.toString(epoch));
+        state.setProperty("metric", metric.name());
+        state.setProperty("bestValue", Double.toString(bestValue));
+        state.setProperty("bestEpoch", Integer.toString(bestEpoch));
+        state.setProperty("stale", Integer.toString(stale));
+        state.setProperty("wallMillis", Long.toString(wallMillis()));
+        state.setProperty("cpuMillis", Long.toString(cpuMillis()));
+        state.setProperty("done", Boolean.toString(done));
+        if (stopReason != null) {
+            state.setProperty("stopReason", stopReason);
+        }
+        return state;
+    }
+
+    private static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void awaitPending() throws IOException {
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing a checkpoint", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to write a checkpoint", e.getCause());
+        }
+        pending = null;
+    }
+
+    // The wall-clock time of this and the earlier runs
+    private long wallMillis() {
+        return earlierWallMillis + System.currentTimeMillis() - startMillis;
+    }
+
+    // The CPU time of this and the earlier runs, or 0 if the JVM does not tell
+    private long cpuMillis() {
+        return earlierCpuMillis + TimeUnit.NANOSECONDS.toMillis(cpuNanos() - startCpuNanos);
+    }
+
+    private static long cpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    private static String minutes(long millis) {
+        return String.format(Locale.ROOT, "%.1f", millis / 60000.0);
+    }
+
+    /**
+     * @return the number of epochs done, including those of the resumed run
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getBestEpoch() {
+        return bestEpoch;
+    }
+
+    public double getBestValue() {
+        return bestValue;
+    }
+
+    /**
+     * @return why the training stopped, or null if it has not
+     */
+    public String getStopReason() {
+        return stopReason;
+    }
+
+    /**
+     * Waits for the last checkpoint to be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            awaitPending();
+        } finally {
+            writer.shutdown();
+        }
+    }
+}
@@ -3,10 +3,13 @@ package dk.kb.deeplearning4j;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -16,6 +19,17 @@ import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
 import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
+import org.nd4j.linalg.factory.Nd4j;
+
+import dk.kb.util.ImageArchive;
+import dk.kb.util.ImageFileIterator;
+import dk.kb.util.ImagePipeline;
+import dk.kb.util.Metrics;
+import dk.kb.util.Options;
+import dk.kb.util.ResultCache;
+import dk.kb.util.ResultSink;
+import dk.kb.util.ResultStore;
+import dk.kb.util.RunJournal;
 
 
 /**
@@ -24,15 +38,25 @@ import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
  */
 
 public class UseModel {
+    public static final int DEFAULT_BATCH_SIZE = 4;
+
+    // Scales the pixels from 0-255 to 0-1 in place. It holds no state, so it is shared by all threads
+    private static final DataNormalization Scaler = new ImagePreProcessingScaler(0,1);
 
     public static void main(String[] args) throws IOException {
-        if (args.length < 3) {
-            System.out.println("Missing arguments: <model> <label-file> <image-dir>|<image-file>");
+        Options options = new Options(args);
+        List<String> arguments = options.getArguments();
+        if (arguments.size() < 3) {
+            System.out.println("Missing arguments: <model> <label-file> <image-dir>|<image-file>|<archive> "
+                    + "[--batch-size=N] [--replicas=N] [--workspaces=true] [--readers=N] [--decoders=N] [--inferers=N] [--queue-size=N] [--extensions=jpg,jpeg] "
+                    + "[--cache-dir=DIR] [--cache-size=N] [--journal=FILE] [--journal-flush=N] "
+                    + "[--output=FILE] [--output-format=csv|jsonl|binary] [--output-flush=N] "
+                    + "[--metrics-interval=SECONDS] [--metrics-csv=FILE]");
             System.exit(1);
         }
-        String path = args[0];
-        String labelfilePath = args[1];
-        String filepath = args[2];
+        String path = arguments.get(0);
+        String labelfilePath = arguments.get(1);
+        String filepath = arguments.get(2);
         File labelFile = new File(labelfilePath);
         File model = new File(path);
         File imageDir = new File(filepath);
@@ -44,7 +68,7 @@ public class UseModel {
             System.out.println("The given image-directory or imagefile '" + imageDir.getAbsolutePath() + "' does not exist");;
             System.exit(1);
         }
-        boolean singleFile = imageDir.isFile();
+        boolean singleFile = imageDir.isFile() && !ImageArchive.isArchive(imageDir);
         MultiLayerNetwork nn = Models.readModel(model);
         String[] labels = readLabelFile(labelFile);
         for (int i=0; i< labels.length; i++) {
@@ -53,69 +77,192 @@ public class UseModel {
         if (singleFile) {
             runModelOnImageFile(nn, imageDir, labels);
         } else {
-            runModelOnImagedir(nn, imageDir, labels);
+            ResultCache cache = ResultCache.create(options, getModelId(model));
+            ImagePipeline<INDArray, Result> pipeline = createPipeline(new NetworkReplicas(nn, options.getInt("replicas", 1)), cache,
+                    options.getBoolean("workspaces", false));
+            pipeline.configure(options);
+            pipeline.getMetrics().register("UseModel");
+            pipeline.getMetrics().startReporting(options);
+            try (ImageFileIterator images = new ImageFileIterator(imageDir, ImageFileIterator.getExtensions(options));
+                    ResultSink sink = ResultSink.create(options, labels, imageDir.isFile() ? imageDir.getParentFile() : imageDir);
+                    RunJournal journal = RunJournal.create(options);
+                    Metrics metrics = pipeline.getMetrics()) {
+                pipeline.setReader(images);
+                runModelOnImages(images, imageDir, labels, pipeline, journal, sink);
+            }
         }
         
      }
     
     private static void runModelOnImageFile(MultiLayerNetwork nn, File imageFile, String[] labels) throws IOException {
-        NativeImageLoader loader = new NativeImageLoader(600, 400, 1);
+        NativeImageLoader loader = new ScaledImageLoader(600, 400, 1);
         INDArray output = evaluateImage(nn, loader, imageFile);
         Result r = Result.getResult(output, imageFile.getAbsolutePath());
         String s = "File '" +  r.getObjectName() + "' matched category '" + labels[r.getLabelIndex()] + "' with accuracy " + r.getAccuracy();
         System.out.println(s);
     }
 
-    private static String[] readLabelFile(File labelFile) throws IOException {
+    public static String[] readLabelFile(File labelFile) throws IOException {
         List<String> labelsAsLines = FileUtils.readLines(labelFile);
         return labelsAsLines.toArray(new String[labelsAsLines.size()]);
     }
 
     public static void runModelOnImagedir(MultiLayerNetwork network, File imageDir, String[] labels) throws IOException {
-        NativeImageLoader loader = new NativeImageLoader(600, 400, 1);
-        File[] images = imageDir.listFiles();
-        if (images == null || images.length==0) {
-            System.err.println("No images found in selected imagedir '" + imageDir.getAbsolutePath() + "'.Nothing to do");
-            System.exit(0);
-        } 
-        System.out.println("Found " + images.length + " to evaluate");
+        runModelOnImagedir(network, imageDir, labels, createPipeline(network));
+    }
+
+    /**
+     * Evaluates the jpeg images in the imageDir and its subdirectories and archives using the given pipeline,
+     * and writes a file per label with the matching images.
+     * @param pipeline a pipeline made by {@link #createPipeline(MultiLayerNetwork)}
+     */
+    public static void runModelOnImagedir(MultiLayerNetwork network, File imageDir, String[] labels,
+            ImagePipeline<INDArray, Result> pipeline) throws IOException {
+        try (ImageFileIterator images = new ImageFileIterator(imageDir)) {
+            pipeline.setReader(images);
+            runModelOnImages(images, imageDir, labels, pipeline);
+        }
+    }
+
+    /**
+     * Evaluates the images using the given pipeline. The images are consumed as the pipeline needs them.
+     * Afterwards a file per label with the matching images is written to a new output directory next to the imageDir.
+     * @param images the images to evaluate, e.g. an {@link ImageFileIterator}
+     * @param imageDir the directory the images are from
+     * @param pipeline a pipeline made by {@link #createPipeline(MultiLayerNetwork)}
+     */
+    public static void runModelOnImages(Iterator<File> images, File imageDir, String[] labels,
+            ImagePipeline<INDArray, Result> pipeline) throws IOException {
+        runModelOnImages(images, imageDir, labels, pipeline, null);
+    }
+
+    /**
+     * Evaluates the images as {@link #runModelOnImages(Iterator, File, String[], ImagePipeline)}, but skips the images
+     * completed according to the journal and records the images completed in this run.
+     * The results of the earlier runs are included in the files written.
+     * @param journal the journal of the run, or null
+     */
+    public static void runModelOnImages(Iterator<File> images, File imageDir, String[] labels,
+            ImagePipeline<INDArray, Result> pipeline, RunJournal journal) throws IOException {
+        runModelOnImages(images, imageDir, labels, pipeline, journal, null);
+    }
+
+    /**
+     * Evaluates the images as {@link #runModelOnImages(Iterator, File, String[], ImagePipeline, RunJournal)}.
+     * If a sink is given, the results are streamed to it instead of being kept for the files per label,
+     * so the memory used does not grow with the number of images. Only the number of images per label is printed.
+     * @param journal the journal of the run, or null
+     * @param sink the sink to stream the results of this run to, or null
+     */
+    public static void runModelOnImages(Iterator<File> images, File imageDir, String[] labels,
+            ImagePipeline<INDArray, Result> pipeline, final RunJournal journal, final ResultSink sink) throws IOException {
+        System.out.println("Evaluating images in " + imageDir.getAbsolutePath());
         long started = System.currentTimeMillis();
-        Map<Integer, HashSet<Result>> labelMap = new HashMap<Integer, HashSet<Result>>();
-        for (int j=0; j < labels.length; j++) {
-            labelMap.put(j, new HashSet<Result>());
+        final ResultStore store = sink == null ? new ResultStore(ResultStore.DEFAULT_K) : null;
+        final int[] counts = new int[labels.length];
+        final String prefix = imageDir.getAbsolutePath() + File.separator;
+        if (journal != null) {
+            if (sink != null) {
+                journal.setOutput(sink);
+            }
+            journal.replay(new RunJournal.Replay() {
+                @Override
+                public void replay(String name, float[] probabilities) {
+                    if (store != null) {
+                        store.add(relativeName(prefix, name), probabilities);
+                    }
+                    counts[Result.getResult(probabilities, name).getLabelIndex()]++;
+                }
+            });
+            images = journal.skipDone(images);
         }
-        for(int i=0; i < images.length; i++) {
-            INDArray output = evaluateImage(network, loader, images[i]);
-            Result r = Result.getResult(output, images[i].getAbsolutePath());
-            HashSet<Result> rset = labelMap.get(r.getLabelIndex());
-            rset.add(r);
-            labelMap.put(r.getLabelIndex(), rset);
+        try {
+            pipeline.run(images, new ImagePipeline.ResultHandler<Result>() {
+                @Override
+                public void handle(Result r) {
+                    counts[r.getLabelIndex()]++;
+                    if (store != null) {
+                        store.add(relativeName(prefix, r.getObjectName()), r.getProbabilities());
+                    } else {
+                        try {
+                            sink.write(r.getObjectName(), r.getProbabilities());
+                        } catch (IOException e) {
+                            System.err.println("Failed to write the result of '" + r.getObjectName() + "' to '"
+                                    + sink.getFile().getAbsolutePath() + "': " + e);
+                        }
+                    }
+                    if (journal != null) {
+                        try {
+                            journal.record(r.getObjectName(), r.getProbabilities());
+                        } catch (IOException e) {
+                            System.err.println("Failed to record '" + r.getObjectName() + "' in the journal: " + e);
+                        }
+                    }
+                }
+            });
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted while evaluating. Saving the results so far");
+            Thread.currentThread().interrupt();
+        }
+        double timeUsedInSeconds = (System.currentTimeMillis() - started)/1000.0;
+        int evaluated = 0;
+        for (int count: counts) {
+            evaluated += count;
+        }
+        if (evaluated == 0) {
+            System.err.println("No images found in selected imagedir '" + imageDir.getAbsolutePath() + "'.Nothing to do");
+            return;
+        }
+        System.out.println("Tested " + evaluated + " images. Evaluation time (secs): " +  timeUsedInSeconds); 
+        System.out.println(pipeline.getMetrics().summary());
+        if (sink != null) {
+            sink.flush();
+            System.out.println("Results written to " + sink.getFile().getAbsolutePath());
+            for (int j=0; j < labels.length; j++) {
+                System.out.println(" category '" + labels[j] + "': " + counts[j]);
+            }
+            return;
         }
-        long timeUsedInSeconds = (System.currentTimeMillis() - started)/1000;
-        
         File outputDir = new File(imageDir.getParentFile(), "output-" + System.currentTimeMillis());
         outputDir.mkdir();
-        System.out.println("Tested " + images.length + " images. Evaluation time (secs): " +  timeUsedInSeconds); 
         System.out.println("Saving result to " + outputDir.getAbsolutePath());
         for (int j=0; j < labels.length; j++) {
-            System.out.println(" category '" + labels[j] + "': " + labelMap.get(j).size());
+            System.out.println(" category '" + labels[j] + "': " + counts[j]);
             File catFile = new File(outputDir, labels[j] + ".txt");
-            writeToFile(labels[j], labelMap.get(j), catFile);
+            writeToFile(j, labels, store, prefix, catFile);
         }
     }
-    
-    private static void writeToFile(String category, HashSet<Result> hashSet,
+
+    // The names are stored relative to the image directory, to keep the store small
+    private static String relativeName(String prefix, String name) {
+        return name.startsWith(prefix) ? name.substring(prefix.length()) : name;
+    }
+
+    /**
+     * Writes the images whose best label is the given label, with the runner-up label and its probability
+     * @param prefix the image directory, prepended to the names stored relative to it
+     */
+    private static void writeToFile(int label, String[] labels, ResultStore store, String prefix,
             File catFile) throws IOException {
         Charset charset = Charset.forName("UTF-8");
         String s = null;
         BufferedWriter writer = null;
         try {
             writer = Files.newBufferedWriter(catFile.toPath(), charset);
-            s = "#entries matching category '" + category + "': " + hashSet.size();
+            s = "#entries matching category '" + labels[label] + "': " + store.count(label);
             writer.write(s, 0, s.length());
             writer.newLine();
-            for (Result r: hashSet) {
-                s= "File '" +  r.getObjectName() + "' matched this category with accuracy " + r.getAccuracy();
+            for (int id = 0; id < store.size(); id++) {
+                if (store.getLabel(id, 0) != label) {
+                    continue;
+                }
+                String name = store.getName(id);
+                s = "File '" + (new File(name).isAbsolute() ? name : prefix + name) + "' matched this category with accuracy "
+                        + store.getScore(id, 0);
+                int runnerUp = store.getK() > 1 ? store.getLabel(id, 1) : -1;
+                if (runnerUp >= 0) {
+                    s += " (runner-up '" + labels[runnerUp] + "' with " + store.getScore(id, 1) + ")";
+                }
                 writer.write(s, 0, s.length());
                 writer.newLine();
             }
@@ -127,13 +274,171 @@ public class UseModel {
         }   
     }
 
+    /**
+     * @return a hash of the model file and the image loading, identifying the model in a {@link ResultCache}
+     */
+    public static String getModelId(File model) throws IOException {
+        return ResultCache.modelId("UseModel 600x400x1 scaled 0-1 dct-scaled", model);
+    }
+
+    public static ImagePipeline<INDArray, Result> createPipeline(final MultiLayerNetwork network) {
+        return createPipeline(network, null);
+    }
+
+    /**
+     * Makes a pipeline loading the images as 600x400 grayscale with a {@link ScaledImageLoader}, scaling them to 0-1
+     * and running the network on batches of up to {@value #DEFAULT_BATCH_SIZE} images, unless another batch size is set.
+     * As a MultiLayerNetwork is not thread safe, the inference workers take turns using the network.
+     * @param cache the results of earlier runs of the network, or null
+     */
+    public static ImagePipeline<INDArray, Result> createPipeline(MultiLayerNetwork network, ResultCache cache) {
+        return createPipeline(new NetworkReplicas(network, 1), cache);
+    }
+
+    /**
+     * Makes a pipeline as {@link #createPipeline(MultiLayerNetwork, ResultCache)}, with an inference worker per
+     * replica of the network, so the batches are run on the replicas in parallel.
+     * @param cache the results of earlier runs of the network, or null
+     */
+    public static ImagePipeline<INDArray, Result> createPipeline(NetworkReplicas replicas, ResultCache cache) {
+        return createPipeline(replicas, cache, false);
+    }
+
+    /**
+     * Makes a pipeline as {@link #createPipeline(NetworkReplicas, ResultCache)}.
+     * @param workspaces if true, each replica is run by a {@link WorkspaceInference}, copying the images into
+     *                   a preallocated input and reading the best label directly from the output. The inference
+     *                   then allocates nothing per image; only the Result handed on per image, with its own copy
+     *                   of the probabilities for the cache, journal and output, is allocated
+     */
+    public static ImagePipeline<INDArray, Result> createPipeline(final NetworkReplicas replicas, final ResultCache cache,
+            final boolean workspaces) {
+        final ThreadLocal<ScaledImageLoader> loaders = new ThreadLocal<ScaledImageLoader>() {
+            @Override
+            protected ScaledImageLoader initialValue() {
+                return new ScaledImageLoader(600, 400, 1);
+            }
+        };
+        final Metrics metrics = new Metrics();
+        ImagePipeline<INDArray, Result> pipeline = new ImagePipeline<INDArray, Result>(
+                new ImagePipeline.Decoder<INDArray>() {
+                    @Override
+                    public INDArray decode(File file, ByteBuffer bytes) throws IOException {
+                        INDArray image = loaders.get().asMatrix(bytes);
+                        long start = System.nanoTime();
+                        Scaler.transform(image);
+                        metrics.record(Metrics.NORMALIZE, start);
+                        return image;
+                    }
+                },
+                new ImagePipeline.Classifier<INDArray, Result>() {
+                    private Map<MultiLayerNetwork, WorkspaceInference> inferences =
+                            new IdentityHashMap<MultiLayerNetwork, WorkspaceInference>();
+
+                    @Override
+                    public List<Result> classify(List<File> files, List<INDArray> images) throws InterruptedException {
+                        INDArray output;
+                        MultiLayerNetwork replica = replicas.acquire();
+                        try {
+                            if (workspaces) {
+                                return classify(getInference(replica, images.size()), files, images);
+                            }
+                            output = outputBatch(replica, images);
+                        } finally {
+                            replicas.release(replica);
+                        }
+                        return Result.getResults(output, names(files));
+                    }
+
+                    private synchronized WorkspaceInference getInference(MultiLayerNetwork replica, int batchSize) {
+                        WorkspaceInference inference = inferences.get(replica);
+                        if (inference == null || inference.getBatchSize() < batchSize) {
+                            inference = new WorkspaceInference(replica, batchSize, 1, 600, 400);
+                            inferences.put(replica, inference);
+                        }
+                        return inference;
+                    }
+
+                    private List<Result> classify(WorkspaceInference inference, List<File> files, List<INDArray> images) {
+                        for (int i = 0; i < images.size(); i++) {
+                            inference.getSlot(i).assign(images.get(i));
+                        }
+                        float[] probabilities = inference.output(images.size());
+                        int labels = inference.getLabels();
+                        int[] best = new int[1];
+                        float[] bestScore = new float[1];
+                        List<Result> results = new ArrayList<Result>(files.size());
+                        for (int i = 0; i < files.size(); i++) {
+                            ResultStore.topK(probabilities, i * labels, labels, 1, best, bestScore);
+                            results.add(new Result(best[0], bestScore[0], files.get(i).getAbsolutePath(),
+                                    Arrays.copyOfRange(probabilities, i * labels, (i + 1) * labels)));
+                        }
+                        return results;
+                    }
+                });
+        pipeline.setMetrics(metrics);
+        pipeline.setBatchSize(DEFAULT_BATCH_SIZE);
+        pipeline.setInferers(replicas.size());
+        if (cache != null) {
+            pipeline.setCache(new ImagePipeline.Cache<Result>() {
+                @Override
+                public String key(ByteBuffer bytes) {
+                    return cache.key(bytes);
+                }
+
+                @Override
+                public Result get(File file, String key) {
+                    float[] probabilities = cache.get(key);
+                    return probabilities == null ? null : Result.getResult(probabilities, file.getAbsolutePath());
+                }
+
+                @Override
+                public void put(String key, Result result) {
+                    cache.put(key, result.getProbabilities());
+                }
+            });
+        }
+        return pipeline;
+    }
+
     public static INDArray evaluateImage(MultiLayerNetwork network, NativeImageLoader loader, File imageFile) throws IOException {
         INDArray image = loader.asMatrix(imageFile);
         // 0-255
         // 0-1
-        DataNormalization scaler = new ImagePreProcessingScaler(0,1);
-        scaler.transform(image);
+        Scaler.transform(image);
         return network.output(image);
     }
 
+    /**
+     * Evaluates the images as a single batch.
+     * @return the result of each image, in the order of the imageFiles
+     */
+    public static List<Result> evaluateImages(MultiLayerNetwork network, NativeImageLoader loader, List<File> imageFiles) throws IOException {
+        List<INDArray> images = new ArrayList<INDArray>(imageFiles.size());
+        for (File imageFile: imageFiles) {
+            INDArray image = loader.asMatrix(imageFile);
+            Scaler.transform(image);
+            images.add(image);
+        }
+        return Result.getResults(outputBatch(network, images), names(imageFiles));
+    }
+
+    /**
+     * Stacks the [1,channels,height,width] images into a single [N,channels,height,width] input, so the network
+     * is run once for the batch.
+     * @return the [N,labels] output of the network
+     */
+    public static INDArray outputBatch(MultiLayerNetwork network, List<INDArray> images) {
+        INDArray batch = images.size() == 1 ? images.get(0) : Nd4j.concat(0, images.toArray(new INDArray[images.size()]));
+        return network.output(batch);
+    }
+
+    private static List<String> names(List<File> files) {
+        List<String> names = new ArrayList<String>(files.size());
+        for (File file: files) {
+            names.add(file.getAbsolutePath());
+        }
+        return names;
+    }
+
 }
@@ -0,0 +1,100 @@
+package dk.kb.deeplearning4j;
+
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+/**
+ * Runs a network on batches of images without allocating per image: the images are written to a preallocated
+ * [batchSize,channels,height,width] input, the activations of the layers are kept in ND4J workspaces reused
+ * from batch to batch, and the probabilities are copied in bulk from the output into a reused float array, from
+ * which the best labels can be picked by {@link dk.kb.util.ResultStore#topK(float[], int, int, int, int[], float[])}.
+ * Only the small [images,labels] output, which DL4J detaches from its workspaces, is allocated per batch.
+ * The network is switched to inference with separate workspaces, and a WorkspaceInference must only be used
+ * by one thread at a time, as the workspaces belong to the thread running the network.
+ */
+public class WorkspaceInference {
+    private MultiLayerNetwork network;
+    private INDArray input;
+    private INDArray[] slots;
+    private INDArray[] heads; // the input of the first n images, made when needed
+    private INDArray output; // the output copied in row order, so it can be read in bulk
+    private float[] probabilities;
+    private int labels;
+
+    /**
+     * @param network the network, e.g. a replica from {@link NetworkReplicas}
+     * @param batchSize the max number of images in a batch
+     */
+    public WorkspaceInference(MultiLayerNetwork network, int batchSize, int channels, int height, int width) {
+        this.network = network;
+        network.getLayerWiseConfigurations().setInferenceWorkspaceMode(WorkspaceMode.SEPARATE);
+        this.input = Nd4j.create(new int[] {batchSize, channels, height, width}, 'c');
+        this.slots = new INDArray[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            slots[i] = input.tensorAlongDimension(i, 1, 2, 3);
+        }
+        this.heads = new INDArray[batchSize + 1];
+        heads[batchSize] = input;
+    }
+
+    /**
+     * @return the [batchSize,channels,height,width] input, to write the images of a batch to
+     */
+    public INDArray getInput() {
+        return input;
+    }
+
+    /**
+     * @return a view of the input of the i'th image in the batch, shaped [channels,height,width]
+     */
+    public INDArray getSlot(int i) {
+        return slots[i];
+    }
+
+    public int getBatchSize() {
+        return slots.length;
+    }
+
+    /**
+     * Runs the network on the whole input, see {@link #output(int)}
+     */
+    public float[] output() {
+        return output(slots.length);
+    }
+
+    /**
+     * Runs the network on the first images of the input, e.g. for the last batch of a run, which may be short.
+     * The workspaces are sized by the largest batch, so smaller batches fit in them.
+     * @param images the number of images in the batch
+     * @return the probabilities of the images in the batch, labels per image, row by row.
+     *         The array is reused by the next call, and only the first images * labels values are set
+     */
+    public float[] output(int images) {
+        if (images < 1 || images > slots.length) {
+            throw new IllegalArgumentException("The number of images must be between 1 and " + slots.length + ". Was " + images);
+        }
+        if (heads[images] == null) {
+            heads[images] = input.get(NDArrayIndex.interval(0, images), NDArrayIndex.all(), NDArrayIndex.all(), NDArrayIndex.all());
+        }
+        INDArray batchOutput = network.output(heads[images], false);
+        if (output == null) {
+            labels = batchOutput.columns();
+            output = Nd4j.create(new int[] {slots.length, labels}, 'c');
+            probabilities = new float[slots.length * labels];
+        }
+        INDArray rows = images == slots.length ? output : output.get(NDArrayIndex.interval(0, images), NDArrayIndex.all());
+        rows.assign(batchOutput);
+        output.data().asNioFloat().get(probabilities, 0, images * labels);
+        return probabilities;
+    }
+
+    /**
+     * @return the number of labels, known after the first {@link #output()}
+     */
+    public int getLabels() {
+        return labels;
+    }
+}
@@ -0,0 +1,386 @@
+package dk.kb.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.io.IOUtils;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import dk.kb.deeplearning4j.Models;
+import dk.kb.deeplearning4j.NetworkReplicas;
+import dk.kb.deeplearning4j.Result;
+import dk.kb.deeplearning4j.UseModel;
+import dk.kb.tensorflow.FrontBackClassifier;
+import dk.kb.tensorflow.ManagedTensor;
+import dk.kb.tensorflow.TensorFlowResult;
+import dk.kb.util.ByteBufferPool;
+import dk.kb.util.ImagePipeline;
+import dk.kb.util.Options;
+import dk.kb.util.ResultCache;
+
+/**
+ * A long-running HTTP service classifying images, so the models are loaded once instead of per job.
+ * Each model is served at POST /&lt;name&gt;/classify with the image bytes as the request body, and an
+ * optional ?name= used in the response. The response is a JSON object with the best label, its
+ * probability and the probabilities of all the labels. GET /health reports the state of the models.
+ *
+ * The images are decoded by the HTTP worker threads using the decoder of the model's {@link ImagePipeline},
+ * and then given to a {@link MicroBatcher} running the pipeline's classifier, so concurrent requests are
+ * classified together in batches of at most the pipeline's batch size, by the pipeline's number of
+ * inference workers. If the pipeline has a cache, it is used as in a directory run.
+ *
+ * Status codes: 400 if the image can not be decoded, 503 if too many images are waiting (the pipeline's
+ * queue size), 500 if the model fails.
+ */
+public class InferenceServer implements Closeable {
+    public static final int DEFAULT_PORT = 8080;
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 5;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Gets the probabilities of all the labels from a result
+     */
+    public interface Probabilities<R> {
+        float[] of(R result);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = new Options(args);
+        if (!options.has("tensorflow") && !options.has("dl4j")) {
+            System.err.println("Missing model. Needs --tensorflow=MODELDIR and/or --dl4j=MODEL --dl4j-labels=FILE, and optionally "
+                    + "--host=localhost, --port=" + DEFAULT_PORT + ", --threads=N, --fused, --batch-size=N, --replicas=N, --inferers=N, "
+                    + "--queue-size=N, --max-wait-ms=N, --cache-dir=DIR and --cache-size=N");
+            System.exit(1);
+        }
+        InetSocketAddress address = new InetSocketAddress(options.get("host", "localhost"), options.getInt("port", DEFAULT_PORT));
+        final InferenceServer server = new InferenceServer(address,
+                options.getInt("threads", 2 * Runtime.getRuntime().availableProcessors()));
+        long maxWaitMillis = options.getLong("max-wait-ms", DEFAULT_MAX_WAIT_MILLIS);
+        final FrontBackClassifier fbc = options.has("tensorflow")
+                ? new FrontBackClassifier(new File(options.get("tensorflow", null)), options.getBoolean("fused", false)) : null;
+        if (fbc != null) {
+            fbc.setResultCache(ResultCache.create(options, fbc.getModelId()));
+            ImagePipeline<ManagedTensor<Float>, TensorFlowResult> pipeline = fbc.createPipeline();
+            pipeline.configure(options);
+            server.addModel("tensorflow", pipeline, fbc.getLabels(), new Probabilities<TensorFlowResult>() {
+                @Override
+                public float[] of(TensorFlowResult result) {
+                    return result.getProbabilities();
+                }
+            }, maxWaitMillis);
+        }
+        if (options.has("dl4j")) {
+            if (!options.has("dl4j-labels")) {
+                System.err.println("Missing --dl4j-labels=FILE for the model given by --dl4j");
+                System.exit(1);
+            }
+            File model = new File(options.get("dl4j", null));
+            MultiLayerNetwork network = Models.readModel(model);
+            ImagePipeline<INDArray, Result> pipeline = UseModel.createPipeline(new NetworkReplicas(network, options.getInt("replicas", 1)),
+                    ResultCache.create(options, UseModel.getModelId(model)));
+            pipeline.configure(options);
+            server.addModel("dl4j", pipeline, Arrays.asList(UseModel.readLabelFile(new File(options.get("dl4j-labels", null)))),
+                    new Probabilities<Result>() {
+                @Override
+                public float[] of(Result result) {
+                    return result.getProbabilities();
+                }
+            }, maxWaitMillis);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.close();
+                if (fbc != null) {
+                    fbc.close();
+                }
+            }
+        });
+        server.start();
+        System.out.println("Serving " + server.endpoints.keySet() + " at http://" + address.getHostString() + ":" + server.getPort());
+    }
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private Map<String, Endpoint<?, ?>> endpoints = new LinkedHashMap<String, Endpoint<?, ?>>();
+
+    /**
+     * @param address the address to listen on. A port of 0 picks a free port
+     * @param threads the number of threads receiving and decoding the images
+     */
+    public InferenceServer(InetSocketAddress address, int threads) throws IOException {
+        this.server = HttpServer.create(address, 0);
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server.setExecutor(executor);
+        this.server.createContext("/health", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, health());
+            }
+        });
+    }
+
+    /**
+     * Serves a model at POST /name/classify. Must be called before {@link #start()}.
+     * @param pipeline the pipeline of the model, giving the decoder, classifier, cache, batch size,
+     *        number of inference workers and queue size
+     * @param labels the labels, in the order of the probabilities
+     * @param probabilities gets the probabilities from a result
+     * @param maxWaitMillis the max time a request waits for other requests to fill up a batch
+     */
+    public <D, R> void addModel(String name, ImagePipeline<D, R> pipeline, List<String> labels,
+            Probabilities<R> probabilities, long maxWaitMillis) {
+        Endpoint<D, R> endpoint = new Endpoint<D, R>(pipeline, labels, probabilities, maxWaitMillis);
+        endpoints.put(name, endpoint);
+        server.createContext("/" + name + "/classify", endpoint);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server, failing the requests still waiting
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        for (Endpoint<?, ?> endpoint: endpoints.values()) {
+            endpoint.batcher.close();
+        }
+        executor.shutdownNow();
+    }
+
+    private String health() {
+        StringBuilder sb = new StringBuilder("{\"status\":\"ok\",\"models\":{");
+        String separator = "";
+        for (Map.Entry<String, Endpoint<?, ?>> entry: endpoints.entrySet()) {
+            MicroBatcher<?, ?> batcher = entry.getValue().batcher;
+            sb.append(separator).append(quote(entry.getKey()))
+                    .append(":{\"queued\":").append(batcher.getQueued())
+                    .append(",\"batches\":").append(batcher.getBatches())
+                    .append(",\"images\":").append(batcher.getProcessed()).append('}');
+            separator = ",";
+        }
+        return sb.append("}}").toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * @return the value of the query parameter, or null if not given
+     */
+    private static String queryParameter(HttpExchange exchange, String name) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair: query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A decoded image waiting to be classified
+     */
+    private static class Item<D> {
+        private File file;
+        private D decoded;
+
+        Item(File file, D decoded) {
+            this.file = file;
+            this.decoded = decoded;
+        }
+    }
+
+    /**
+     * Serves a model
+     */
+    private static class Endpoint<D, R> implements HttpHandler {
+        private ImagePipeline<D, R> pipeline;
+        private List<String> labels;
+        private Probabilities<R> probabilities;
+        private MicroBatcher<Item<D>, R> batcher;
+
+        Endpoint(final ImagePipeline<D, R> pipeline, List<String> labels, Probabilities<R> probabilities, long maxWaitMillis) {
+            this.pipeline = pipeline;
+            this.labels = labels;
+            this.probabilities = probabilities;
+            this.batcher = new MicroBatcher<Item<D>, R>(new MicroBatcher.BatchProcessor<Item<D>, R>() {
+                @Override
+                public List<R> process(List<Item<D>> batch) throws Exception {
+                    List<File> files = new ArrayList<File>(batch.size());
+                    List<D> decoded = new ArrayList<D>(batch.size());
+                    for (Item<D> item: batch) {
+                        files.add(item.file);
+                        decoded.add(item.decoded);
+                    }
+                    return pipeline.getClassifier().classify(files, decoded);
+                }
+            }, pipeline.getBatchSize(), maxWaitMillis, pipeline.getInferers(), pipeline.getQueueSize());
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, error("POST the image bytes"));
+                return;
+            }
+            byte[] bytes;
+            try {
+                bytes = IOUtils.toByteArray(exchange.getRequestBody());
+            } finally {
+                exchange.getRequestBody().close();
+            }
+            String name = queryParameter(exchange, "name");
+            if (name == null) {
+                name = "image";
+            }
+            if (bytes.length == 0) {
+                respond(exchange, 400, error("No image given"));
+                return;
+            }
+            File file = new File(name);
+            ImagePipeline.Cache<R> cache = pipeline.getCache();
+            String key = null;
+            if (cache != null) {
+                key = cache.key(ByteBuffer.wrap(bytes));
+                R cached = cache.get(file, key);
+                if (cached != null) {
+                    respond(exchange, 200, toJson(name, probabilities.of(cached)));
+                    return;
+                }
+            }
+            // The decoder expects the bytes as the pipeline reads them
+            ByteBufferPool buffers = pipeline.getReadBuffers();
+            ByteBuffer buffer = buffers == null ? ByteBuffer.wrap(bytes) : buffers.copyOf(bytes);
+            D decoded;
+            try {
+                decoded = pipeline.getDecoder().decode(file, buffer);
+            } catch (Exception e) {
+                respond(exchange, 400, error("The image could not be decoded: " + e));
+                return;
+            } finally {
+                if (buffers != null) {
+                    buffers.release(buffer);
+                }
+            }
+            R result;
+            try {
+                result = batcher.process(new Item<D>(file, decoded));
+            } catch (RejectedExecutionException e) {
+                close(decoded);
+                respond(exchange, 503, error(e.getMessage()));
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, error("Interrupted"));
+                return;
+            } catch (ExecutionException e) {
+                System.err.println("Failed to classify '" + name + "': " + e.getCause());
+                respond(exchange, 500, error("The image could not be classified: " + e.getCause()));
+                return;
+            }
+            if (cache != null) {
+                cache.put(key, result);
+            }
+            respond(exchange, 200, toJson(name, probabilities.of(result)));
+        }
+
+        private String toJson(String name, float[] probabilities) {
+            int best = 0;
+            for (int i = 1; i < probabilities.length; i++) {
+                if (probabilities[i] > probabilities[best]) {
+                    best = i;
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"name\":").append(quote(name))
+                    .append(",\"label\":").append(quote(label(best)))
+                    .append(",\"probability\":").append(probabilities[best])
+                    .append(",\"probabilities\":{");
+            for (int i = 0; i < probabilities.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(quote(label(i))).append(':').append(probabilities[i]);
+            }
+            return sb.append("}}").toString();
+        }
+
+        private String label(int index) {
+            return index < labels.size() ? labels.get(index) : String.valueOf(index);
+        }
+
+        /**
+         * Releases a decoded image that will not be classified, e.g. a {@link ManagedTensor}
+         */
+        private static void close(Object decoded) {
+            if (decoded instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) decoded).close();
+                } catch (Exception e) {
+                    System.err.println("Failed to release a decoded image: " + e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package dk.kb.service;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces items submitted concurrently into batches. A worker takes the first waiting item, and
+ * collects more until the batch has maxBatch items or maxWaitMillis have passed since it took the
+ * first one, so a lone item is delayed at most maxWaitMillis and a busy batcher runs full batches.
+ * At most queueSize items wait for a worker; more are rejected, so callers can back off instead of
+ * queueing without limit.
+ *
+ * @param <T> the items processed
+ * @param <R> the result of processing an item
+ */
+public class MicroBatcher<T, R> implements Closeable {
+
+    /**
+     * Processes a batch of items. Called concurrently by the workers.
+     * The results must be in the order of the items.
+     */
+    public interface BatchProcessor<T, R> {
+        List<R> process(List<T> batch) throws Exception;
+    }
+
+    private BatchProcessor<T, R> processor;
+    private int maxBatch;
+    private long maxWaitNanos;
+    private BlockingQueue<Pending<T, R>> queue;
+    private ExecutorService workers;
+    private volatile boolean closed = false;
+    private AtomicLong batches = new AtomicLong();
+    private AtomicLong processed = new AtomicLong();
+
+    /**
+     * @param processor processes the batches
+     * @param maxBatch the max number of items in a batch
+     * @param maxWaitMillis the max time to wait for a batch to fill up
+     * @param workers the number of batches processed concurrently
+     * @param queueSize the max number of items waiting for a worker
+     */
+    public MicroBatcher(BatchProcessor<T, R> processor, int maxBatch, long maxWaitMillis, int workers, int queueSize) {
+        if (maxBatch < 1 || maxWaitMillis < 0 || workers < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Invalid batcher settings: maxBatch=" + maxBatch + ", maxWaitMillis="
+                    + maxWaitMillis + ", workers=" + workers + ", queueSize=" + queueSize);
+        }
+        this.processor = processor;
+        this.maxBatch = maxBatch;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.queue = new ArrayBlockingQueue<Pending<T, R>>(queueSize);
+        this.workers = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            this.workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        work();
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Processes the item as part of a batch, and waits for the result.
+     * @throws RejectedExecutionException if queueSize items are already waiting, or the batcher is closed
+     * @throws ExecutionException if processing the batch failed
+     */
+    public R process(T item) throws InterruptedException, ExecutionException {
+        if (closed) {
+            throw new RejectedExecutionException("The batcher is closed");
+        }
+        Pending<T, R> pending = new Pending<T, R>(item);
+        if (!queue.offer(pending)) {
+            throw new RejectedExecutionException("Too many items waiting to be processed: " + queue.size());
+        }
+        // If close has drained the queue since the check above, the item would wait forever. If it is
+        // no longer in the queue, a worker or close has taken it, and will complete or fail it
+        if (closed && queue.remove(pending)) {
+            throw new RejectedExecutionException("The batcher is closed");
+        }
+        return pending.get();
+    }
+
+    /**
+     * @return the number of items waiting for a worker
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of batches processed
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * @return the number of items processed
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * Stops the workers. Items still waiting fail with a RejectedExecutionException.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        workers.shutdownNow();
+        List<Pending<T, R>> remaining = new ArrayList<Pending<T, R>>();
+        queue.drainTo(remaining);
+        for (Pending<T, R> pending: remaining) {
+            pending.fail(new RejectedExecutionException("The batcher is closed"));
+        }
+    }
+
+    private void work() throws InterruptedException {
+        List<Pending<T, R>> batch = new ArrayList<Pending<T, R>>(maxBatch);
+        List<T> items = new ArrayList<T>(maxBatch);
+        while (true) {
+            batch.add(queue.take());
+            long deadline = System.nanoTime() + maxWaitNanos;
+            try {
+                while (batch.size() < maxBatch) {
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0) {
+                        continue;
+                    }
+                    Pending<T, R> next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                for (Pending<T, R> pending: batch) {
+                    pending.fail(new RejectedExecutionException("The batcher is closed"));
+                }
+                throw e;
+            }
+            for (Pending<T, R> pending: batch) {
+                items.add(pending.item);
+            }
+            try {
+                List<R> results = processor.process(items);
+                if (results.size() != batch.size()) {
+                    throw new IllegalStateException("Expected " + batch.size() + " results, got " + results.size());
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).complete(results.get(i));
+                }
+            } catch (Exception e) {
+                for (Pending<T, R> pending: batch) {
+                    pending.fail(e);
+                }
+            }
+            batches.incrementAndGet();
+            processed.addAndGet(batch.size());
+            batch.clear();
+            items.clear();
+        }
+    }
+
+    /**
+     * An item waiting for its result
+     */
+    private static class Pending<T, R> {
+        private T item;
+        private R result;
+        private Exception failure;
+        private CountDownLatch done = new CountDownLatch(1);
+
+        Pending(T item) {
+            this.item = item;
+        }
+
+        void complete(R result) {
+            this.result = result;
+            done.countDown();
+        }
+
+        void fail(Exception failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        R get() throws InterruptedException, ExecutionException {
+            done.await();
+            if (failure instanceof RejectedExecutionException) {
+                throw (RejectedExecutionException) failure;
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package dk.kb.tensorflow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct FloatBuffers used for creating input tensors, so the buffers are allocated
+ * once instead of once per batch. Buffers are handed out cleared, and must be released after use.
+ * Safe to use from several threads.
+ */
+public class FloatBufferPool {
+    private ConcurrentLinkedQueue<FloatBuffer> buffers = new ConcurrentLinkedQueue<FloatBuffer>();
+    private AtomicInteger allocated = new AtomicInteger();
+
+    /**
+     * @param capacity the number of floats needed
+     * @return a cleared buffer with room for at least capacity floats
+     */
+    public FloatBuffer acquire(int capacity) {
+        FloatBuffer buffer;
+        while ((buffer = buffers.poll()) != null) {
+            if (buffer.capacity() >= capacity) {
+                buffer.clear();
+                return buffer;
+            }
+            // Too small for the current batch size. Let it be garbage collected
+            allocated.decrementAndGet();
+        }
+        allocated.incrementAndGet();
+        return ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * Returns a buffer to the pool
+     */
+    public void release(FloatBuffer buffer) {
+        buffers.offer(buffer);
+    }
+
+    /**
+     * @return the number of buffers allocated by the pool, both in use and free
+     */
+    public int getAllocated() {
+        return allocated.get();
+    }
+}
@@ -1,16 +1,32 @@
 package dk.kb.tensorflow;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.tensorflow.Graph;
 import org.tensorflow.Output;
 import org.tensorflow.Session;
 import org.tensorflow.Tensor;
+import org.tensorflow.Tensors;
+
+import dk.kb.util.ByteBufferPool;
+import dk.kb.util.ImageArchive;
+import dk.kb.util.ImageFileIterator;
+import dk.kb.util.ImagePipeline;
+import dk.kb.util.JpegScale;
+import dk.kb.util.Options;
+import dk.kb.util.ResultCache;
+import dk.kb.util.ResultSink;
+import dk.kb.util.RunJournal;
 
 /**
  * 
@@ -20,20 +36,65 @@ import org.tensorflow.Tensor;
  * tested on front/KE044976.jpg, back/KE042847.jpg from corpus selected by DGJ
  * Assumes the following files are in the modelDir: graph.pb, labels.txt
  * 
+ * The normalization graph and the model graph are built once, and their sessions are kept open
+ * for the lifetime of the classifier. Remember to call {@link #close()} when done.
+ * 
+ * In fused mode the normalization operations replace the input placeholder of the model, so a single
+ * Session.run goes from the jpeg bytes to the label probabilities.
+ * 
+ * {@link #evaluateBatch(List)} normalizes the images one at a time, but stacks them into a single
+ * [N,224,224,3] input so the model is run once per batch.
+ * {@link #evaluateDir(File, ImagePipeline)} reads, normalizes and classifies the images concurrently
+ * using an {@link ImagePipeline} made by {@link #createPipeline()}.
+ * 
+ * If a {@link ResultCache} is set, images whose content has been classified before by the same model
+ * are not decoded and classified again.
+ * 
+ * All tensors created while evaluating are held by {@link ManagedTensor}s and closed as soon as they
+ * are used, and the batch inputs are built in direct buffers reused from a {@link FloatBufferPool}.
+ * 
+ * Large images are decoded at 1/2, 1/4 or 1/8 of their size, the smallest that still covers 224x224, before
+ * they are resized. See {@link JpegScale}. The normalization graph has a decoding chain per scale, all fed from
+ * the same placeholder, and only the chain fetched is run. In fused mode the chains are gated by the scale index
+ * fed to {@value #PreprocessScope}/{@value #ScaleIndexName} and merged into the input of the model, so large
+ * images also go from the jpeg bytes to the label probabilities in a single Session.run.
  */
-public class FrontBackClassifier {
+public class FrontBackClassifier implements AutoCloseable {
 
     private static final String graphPbName = "graph.pb";
     private static final String labelsName = "labels.txt"; 
+    private static final String InputOperationName = "input";
     private static final String OutputOperationName = "final_result";
+    static final String JpegInputOperationName = "jpeg_contents";
+    private static final String PreprocessScope = "preprocess";
+    private static final String ScaleIndexName = "scale_index"; // the index in JpegScale.DENOMINATORS of the chain to run
+
+    // Some constants specific to the pre-trained model at:
+    // https://storage.googleapis.com/download.tensorflow.org/models/inception5h.zip
+    //
+    // - The model was trained with images scaled to 224x224 pixels.
+    // - The colors, represented as R, G, B in 1-byte each were converted to
+    //   float using (value - Mean)/Scale.
+    private static final int H = 224;
+    private static final int W = 224;
+    private static final float mean = 117f;
+    private static final float scale = 1f;
+    private static final int channels = 3;
+    private static final int defaultBatchSize = 16;
     
-    public static void main(String[] args) {
-        if (args.length < 2) {
-            System.err.println("Missing args. Needs 3 arguments (modelDir, imagefile). Only given " +  args.length);
+    public static void main(String[] args) throws InterruptedException, IOException {
+        Options options = new Options(args);
+        List<String> arguments = options.getArguments();
+        if (arguments.size() < 2) {
+            System.err.println("Missing args. Needs 2 arguments (modelDir, imagefile) and optionally --fused, --batch-size=N, "
+                    + "--readers=N, --decoders=N, --inferers=N, --queue-size=N, --extensions=jpg,jpeg, --cache-dir=DIR, --cache-size=N, "
+                    + "--journal=FILE, --journal-flush=N, --output=FILE, --output-format=csv|jsonl|binary, --output-flush=N, "
+                    + "--metrics-interval=SECONDS and --metrics-csv=FILE. "
+                    + "Only given " +  arguments.size());
             System.exit(1);       
         }
-        String modelDirPath = args[0];
-        String imageFilePath = args[1];
+        String modelDirPath = arguments.get(0);
+        String imageFilePath = arguments.get(1);
         File modelDir = new File(modelDirPath);
         if (!modelDir.exists()) {
             System.err.println("Did not found the given modeldir: " + modelDir.getAbsolutePath());
@@ -47,15 +108,59 @@ public class FrontBackClassifier {
         }
         File imageFileOrDir = new File(imageFilePath);
         
-        FrontBackClassifier fbc = new FrontBackClassifier(modelDir);
-        if (imageFileOrDir.isFile()) {
-            TensorFlowResult r = fbc.evaluate(imageFileOrDir);
-            System.out.println(r);
-        } else {
-            List<TensorFlowResult> results = fbc.evaluateDir(imageFileOrDir);
-            System.out.println("Evaluated " + results.size() + " files ");
-            for (TensorFlowResult r: results) {
+        try (FrontBackClassifier fbc = new FrontBackClassifier(modelDir, options.getBoolean("fused", false))) {
+            fbc.setBatchSize(options.getInt("batch-size", defaultBatchSize));
+            fbc.setResultCache(ResultCache.create(options, fbc.getModelId()));
+            if (imageFileOrDir.isFile() && !ImageArchive.isArchive(imageFileOrDir)) {
+                TensorFlowResult r = fbc.evaluate(imageFileOrDir);
                 System.out.println(r);
+            } else {
+                ImagePipeline<ManagedTensor<Float>, TensorFlowResult> pipeline = fbc.createPipeline();
+                pipeline.configure(options);
+                pipeline.getMetrics().register("FrontBackClassifier");
+                pipeline.getMetrics().startReporting(options);
+                final RunJournal journal = RunJournal.create(options);
+                final ResultSink sink = ResultSink.create(options, fbc.getLabels().toArray(new String[0]),
+                        imageFileOrDir.isFile() ? imageFileOrDir.getParentFile() : imageFileOrDir);
+                if (journal != null && sink != null) {
+                    journal.setOutput(sink);
+                }
+                try (ImageFileIterator images = new ImageFileIterator(imageFileOrDir, ImageFileIterator.getExtensions(options))) {
+                    pipeline.setReader(images);
+                    int evaluated = fbc.evaluateAll(journal == null ? images : journal.skipDone(images), pipeline,
+                            new ImagePipeline.ResultHandler<TensorFlowResult>() {
+                        @Override
+                        public void handle(TensorFlowResult r) {
+                            if (sink == null) {
+                                System.out.println(r);
+                            } else {
+                                try {
+                                    sink.write(r.getObjectName(), r.getProbabilities());
+                                } catch (IOException e) {
+                                    System.err.println("Failed to write the result of '" + r.getObjectName() + "' to '"
+                                            + sink.getFile().getAbsolutePath() + "': " + e);
+                                }
+                            }
+                            if (journal != null) {
+                                try {
+                                    journal.record(r.getObjectName(), r.getProbabilities());
+                                } catch (IOException e) {
+                                    System.err.println("Failed to record '" + r.getObjectName() + "' in the journal: " + e);
+                                }
+                            }
+                        }
+                    });
+                    System.out.println("Evaluated " + evaluated + " files ");
+                    System.out.println(pipeline.getMetrics().summary());
+                } finally {
+                    pipeline.getMetrics().close();
+                    if (journal != null) {
+                        journal.close();
+                    }
+                    if (sink != null) {
+                        sink.close();
+                    }
+                }
             }
         }
     }
@@ -63,14 +168,43 @@ public class FrontBackClassifier {
     private byte[] graphDef; // the pb file as a byte array
     private List<String> labels; // the labels file as a list of String
     private Graph execGraph; // The execution graph
+    private Session execSession; // The session running the execution graph
+    private Graph normalizeGraph; // The graph normalizing a jpeg image into the input expected by the execGraph
+    private Session normalizeSession; // The session running the normalizeGraph
+    private List<Output<Float>> normalizeOutputs; // The outputs of the normalizeGraph, one per JpegScale.DENOMINATORS
+    private boolean fused; // Is the normalization part of the execGraph
+    private int batchSize = defaultBatchSize; // The max number of images given to the execGraph at a time
+    private FloatBufferPool inputBuffers = new FloatBufferPool(); // The buffers used for building the batch inputs
+    private ByteBufferPool readBuffers = new ByteBufferPool(Utils.ENCODING_HEADROOM); // The buffers the pipelines read images into
+    private ResultCache resultCache; // The results of earlier runs, or null
+    private File[] modelFiles; // The files making up the model
+    private final AtomicLong sessionRuns = new AtomicLong(); // The number of Session.run calls made
     
     public FrontBackClassifier(File modelDir) {
+        this(modelDir, false);
+    }
+    
+    /**
+     * @param modelDir the directory containing graph.pb and labels.txt
+     * @param fused if true, the normalization and the model are run as a single graph
+     */
+    public FrontBackClassifier(File modelDir, boolean fused) {
         Path graphPbPath = Paths.get(modelDir.getAbsolutePath(), graphPbName);
         Path graphLabelPath = Paths.get(modelDir.getAbsolutePath(), labelsName);
+        this.modelFiles = new File[] {graphPbPath.toFile(), graphLabelPath.toFile()};
         this.graphDef = Utils.readAllBytesOrExit(graphPbPath);
         this.labels = Utils.readAllLinesOrExit(graphLabelPath);
+        this.fused = fused;
         this.execGraph = new Graph();
-        this.execGraph.importGraphDef(graphDef);
+        if (fused) {
+            this.execGraph.importGraphDef(GraphDefs.replaceNode(graphDef, InputOperationName, constructNormalizeGraphDef()));
+        } else {
+            this.execGraph.importGraphDef(graphDef);
+            this.normalizeGraph = new Graph();
+            this.normalizeOutputs = constructGraphToNormalizeImage(new GraphBuilder(normalizeGraph));
+            this.normalizeSession = new Session(normalizeGraph);
+        }
+        this.execSession = new Session(execGraph);
     }
     
     public TensorFlowResult evaluate(File picture) {
@@ -78,84 +212,432 @@ public class FrontBackClassifier {
             System.err.println("Ignoring file '" + picture.getAbsolutePath() + "'. It is not a file");
             return null;
         }
-        byte[] imageBytes = Utils.readAllBytesOrExit(picture.toPath());
-        Tensor<Float> image = constructAndExecuteGraphToNormalizeImage(imageBytes);
-        float[] probabilities = executeGraph(execGraph, image);
-        int bestLabelIdx = Utils.maxIndex(probabilities);
-        return new TensorFlowResult(labels.get(bestLabelIdx), probabilities[bestLabelIdx], picture.getAbsolutePath());
+        ByteBuffer imageBytes = Utils.readEncodedImageOrNull(picture.toPath());
+        if (imageBytes == null) {
+            System.err.println("Ignoring file '" + picture.getAbsolutePath() + "'. It could not be read");
+            return null;
+        }
+        String key = null;
+        if (resultCache != null) {
+            key = resultCache.key(Utils.imageBytes(imageBytes));
+            float[] cached = resultCache.get(key);
+            if (cached != null) {
+                return toResult(cached, picture);
+            }
+        }
+        float[] probabilities;
+        int denominator = denominator(Utils.imageBytes(imageBytes));
+        try (ManagedTensor<String> input = ManagedTensor.of(Utils.toStringTensor(imageBytes))) {
+            if (fused) {
+                probabilities = executeFusedGraph(input.get(), denominator);
+            } else {
+                try (ManagedTensor<Float> image = normalizeImage(input.get(), denominator)) {
+                    probabilities = executeGraph(image.get());
+                }
+            }
+        }
+        if (key != null) {
+            resultCache.put(key, probabilities);
+        }
+        return toResult(probabilities, picture);
+    }
+    
+    /**
+     * Evaluates the pictures in batches of at most batchSize images.
+     * Pictures that are not files or can not be decoded are reported and skipped.
+     * @param pictures the pictures to evaluate
+     * @return the results of the pictures evaluated. Results found in the cache come first
+     */
+    public List<TensorFlowResult> evaluateBatch(List<File> pictures) {
+        List<TensorFlowResult> result = new ArrayList<TensorFlowResult>(pictures.size());
+        List<File> batch = new ArrayList<File>(batchSize);
+        List<String> keys = resultCache == null ? null : new ArrayList<String>(batchSize);
+        FloatBuffer batchBuffer = inputBuffers.acquire(batchSize * H * W * channels);
+        try {
+            for (File picture: pictures) {
+                if (!picture.isFile()) {
+                    System.err.println("Ignoring file '" + picture.getAbsolutePath() + "'. It is not a file");
+                    continue;
+                }
+                ByteBuffer imageBytes = Utils.readEncodedImageOrNull(picture.toPath());
+                if (imageBytes == null) {
+                    System.err.println("Ignoring file '" + picture.getAbsolutePath() + "'. It could not be read");
+                    continue;
+                }
+                String key = null;
+                if (resultCache != null) {
+                    key = resultCache.key(Utils.imageBytes(imageBytes));
+                    float[] cached = resultCache.get(key);
+                    if (cached != null) {
+                        result.add(toResult(cached, picture));
+                        continue;
+                    }
+                }
+                try (ManagedTensor<String> input = ManagedTensor.of(Utils.toStringTensor(imageBytes));
+                        ManagedTensor<Float> image = normalizeImage(input.get(), denominator(Utils.imageBytes(imageBytes)))) {
+                    image.get().writeTo(batchBuffer);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Ignoring file '" + picture.getAbsolutePath() + "'. It could not be decoded: " + e.getMessage());
+                    continue;
+                }
+                batch.add(picture);
+                if (keys != null) {
+                    keys.add(key);
+                }
+                if (batch.size() == batchSize) {
+                    executeBatch(batch, keys, batchBuffer, result);
+                }
+            }
+            if (!batch.isEmpty()) {
+                executeBatch(batch, keys, batchBuffer, result);
+            }
+        } finally {
+            inputBuffers.release(batchBuffer);
+        }
+        return result;
     }
     
     public List<TensorFlowResult> evaluateDir(File imageDir) {
-        List<TensorFlowResult> result = new ArrayList<TensorFlowResult>();
-        File[] images = imageDir.listFiles();
-        if (images == null || images.length==0) {
-            System.err.println("No images found in selected imagedir '" + imageDir.getAbsolutePath() + "'.Nothing to do");
-            return result;
+        return evaluateDir(imageDir, createPipeline());
+    }
+    
+    /**
+     * Evaluates the jpeg images in the imageDir and its subdirectories and archives using the given pipeline.
+     * @param imageDir a directory of images, or a ZIP or TAR archive
+     * @param pipeline a pipeline made by {@link #createPipeline()}
+     * @return the results in the order the images were completed
+     */
+    public List<TensorFlowResult> evaluateDir(File imageDir, ImagePipeline<ManagedTensor<Float>, TensorFlowResult> pipeline) {
+        final List<TensorFlowResult> result = new ArrayList<TensorFlowResult>();
+        try (ImageFileIterator images = new ImageFileIterator(imageDir)) {
+            pipeline.setReader(images);
+            evaluateAll(images, pipeline, new ImagePipeline.ResultHandler<TensorFlowResult>() {
+                @Override
+                public void handle(TensorFlowResult r) {
+                    result.add(r);
+                }
+            });
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted after evaluating " + result.size() + " files");
+            Thread.currentThread().interrupt();
         }
-        for (File image: images) {
-            result.add(evaluate(image));
+        if (result.isEmpty()) {
+            System.err.println("No images found in selected imagedir '" + imageDir.getAbsolutePath() + "'.Nothing to do");
         }
         return result;
     }
     
-    private static Tensor<Float> constructAndExecuteGraphToNormalizeImage(byte[] imageBytes) {
+    /**
+     * Evaluates the pictures using the given pipeline. The pictures are consumed as the pipeline needs them,
+     * and each result is given to the handler as soon as it is ready.
+     * @param pictures the pictures to evaluate, e.g. an {@link ImageFileIterator}
+     * @param pipeline a pipeline made by {@link #createPipeline()}
+     * @param handler receives the results
+     * @return the number of pictures evaluated
+     */
+    public int evaluateAll(Iterator<File> pictures, ImagePipeline<ManagedTensor<Float>, TensorFlowResult> pipeline,
+            ImagePipeline.ResultHandler<TensorFlowResult> handler) throws InterruptedException {
+        return pipeline.run(pictures, handler);
+    }
+    
+    /**
+     * @return a pipeline normalizing the images and running the model in batches of batchSize images
+     */
+    public ImagePipeline<ManagedTensor<Float>, TensorFlowResult> createPipeline() {
+        ImagePipeline<ManagedTensor<Float>, TensorFlowResult> pipeline = new ImagePipeline<ManagedTensor<Float>, TensorFlowResult>(
+                new ImagePipeline.Decoder<ManagedTensor<Float>>() {
+                    @Override
+                    public ManagedTensor<Float> decode(File file, ByteBuffer bytes) {
+                        try (ManagedTensor<String> input = ManagedTensor.of(Utils.toStringTensor(Utils.encodeInPlace(bytes)))) {
+                            return normalizeImage(input.get(), denominator(bytes));
+                        }
+                    }
+                },
+                new ImagePipeline.Classifier<ManagedTensor<Float>, TensorFlowResult>() {
+                    @Override
+                    public List<TensorFlowResult> classify(List<File> files, List<ManagedTensor<Float>> images) {
+                        List<TensorFlowResult> result = new ArrayList<TensorFlowResult>(files.size());
+                        FloatBuffer batchBuffer = inputBuffers.acquire(images.size() * H * W * channels);
+                        try {
+                            for (ManagedTensor<Float> image: images) {
+                                image.get().writeTo(batchBuffer);
+                            }
+                            executeBatch(new ArrayList<File>(files), null, batchBuffer, result);
+                        } finally {
+                            inputBuffers.release(batchBuffer);
+                            for (ManagedTensor<Float> image: images) {
+                                image.close();
+                            }
+                        }
+                        return result;
+                    }
+                });
+        pipeline.setBatchSize(batchSize);
+        pipeline.setReadBuffers(readBuffers);
+        if (resultCache != null) {
+            pipeline.setCache(new ImagePipeline.Cache<TensorFlowResult>() {
+                @Override
+                public String key(ByteBuffer bytes) {
+                    return resultCache.key(bytes);
+                }
+
+                @Override
+                public TensorFlowResult get(File file, String key) {
+                    float[] probabilities = resultCache.get(key);
+                    return probabilities == null ? null : toResult(probabilities, file);
+                }
+
+                @Override
+                public void put(String key, TensorFlowResult result) {
+                    resultCache.put(key, result.getProbabilities());
+                }
+            });
+        }
+        return pipeline;
+    }
+    
+    /**
+     * @return the labels of the model, in the order of the probabilities
+     */
+    public List<String> getLabels() {
+        return labels;
+    }
+    
+    /**
+     * @return the pool of direct buffers used for the batch inputs
+     */
+    public FloatBufferPool getInputBuffers() {
+        return inputBuffers;
+    }
+    
+    /**
+     * @return the pool of direct buffers the pipelines made by {@link #createPipeline()} read the images into
+     */
+    public ByteBufferPool getReadBuffers() {
+        return readBuffers;
+    }
+    
+    /**
+     * @return the number of times a session of this classifier has been run
+     */
+    long getSessionRuns() {
+        return sessionRuns.get();
+    }
+    
+    public int getBatchSize() {
+        return batchSize;
+    }
+    
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be at least 1. Was " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+    
+    /**
+     * @return a hash of the model files and the normalization, identifying the model in a {@link ResultCache}
+     */
+    public String getModelId() throws IOException {
+        return ResultCache.modelId("FrontBackClassifier " + H + "x" + W + "x" + channels + " mean=" + mean + " scale=" + scale
+                + " dct-scaled", modelFiles);
+    }
+    
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+    
+    /**
+     * @param resultCache a cache made for {@link #getModelId()}, or null for no caching.
+     *        Must be set before {@link #createPipeline()} is called
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+    
+    /**
+     * Runs the model on the images written to the batchBuffer, and adds the results to the result list.
+     * Afterwards the batch, the keys and the batchBuffer are cleared.
+     * @param keys the cache keys of the images, or null if the results should not be cached
+     */
+    private void executeBatch(List<File> batch, List<String> keys, FloatBuffer batchBuffer, List<TensorFlowResult> result) {
+        batchBuffer.flip();
+        float[][] probabilities;
+        try (ManagedTensor<Float> images = ManagedTensor.of(Tensor.create(new long[] {batch.size(), H, W, channels}, batchBuffer))) {
+            probabilities = executeGraph(images.get(), batch.size());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            result.add(toResult(probabilities[i], batch.get(i)));
+            if (keys != null) {
+                resultCache.put(keys.get(i), probabilities[i]);
+            }
+        }
+        batch.clear();
+        if (keys != null) {
+            keys.clear();
+        }
+        batchBuffer.clear();
+    }
+    
+    private TensorFlowResult toResult(float[] probabilities, File picture) {
+        int bestLabelIdx = Utils.maxIndex(probabilities);
+        return new TensorFlowResult(labels.get(bestLabelIdx), probabilities[bestLabelIdx], picture.getAbsolutePath(), probabilities);
+    }
+    
+    /**
+     * Builds the graph that decodes a jpeg image fed to the {@value #JpegInputOperationName} placeholder
+     * and normalizes it to the input expected by the model. There is a chain of operations for each of
+     * {@link JpegScale#DENOMINATORS}, decoding the image at 1/denominator of its size, scoped under ratio_N.
+     * @param b a GraphBuilder on the graph to build
+     * @return the output of the normalization for each of {@link JpegScale#DENOMINATORS}
+     */
+    static List<Output<Float>> constructGraphToNormalizeImage(GraphBuilder b) {
+        return constructGraphToNormalizeImage(b, null);
+    }
+
+    /**
+     * @param scaleIndex if not null, each chain is only run if scaleIndex is its index in {@link JpegScale#DENOMINATORS}.
+     *        The outputs of the other chains are dead
+     * @see #constructGraphToNormalizeImage(GraphBuilder)
+     */
+    private static List<Output<Float>> constructGraphToNormalizeImage(GraphBuilder b, Output<Integer> scaleIndex) {
+        final Output<String> jpeg = b.placeholder(JpegInputOperationName, String.class);
+        Output<Integer> makeBatch = b.constant("make_batch", 0);
+        Output<Integer> size = b.constant("size", new int[] {H, W});
+        Output<Float> meanValue = b.constant("mean", mean);
+        Output<Float> scaleValue = b.constant("scale", scale);
+        List<Output<Float>> outputs = new ArrayList<Output<Float>>(JpegScale.DENOMINATORS.length);
+        for (int i = 0; i < JpegScale.DENOMINATORS.length; i++) {
+            int denominator = JpegScale.DENOMINATORS[i];
+            GraphBuilder r = b.withScope("ratio_" + denominator);
+            Output<String> input = scaleIndex == null ? jpeg : r.switchIfTrue(jpeg, r.equal(scaleIndex, r.constant("index", i)));
+            outputs.add(r.div(
+                    r.sub(
+                            r.resizeBilinear(
+                                    r.expandDims(
+                                            // Note: the 3 is the number of channels. It doesn't work, if we set it to 1 with the tested model
+                                            r.cast(r.decodeJpeg(input, 3, denominator), Float.class),
+                                            makeBatch),
+                                    size),
+                            meanValue),
+                    scaleValue));
+        }
+        return outputs;
+    }
+
+    /**
+     * Builds the normalization graph with its operations scoped under {@value #PreprocessScope}, and
+     * its output named as the input operation of the model. The output is that of the chain selected by
+     * the index in {@link JpegScale#DENOMINATORS} fed to {@value #PreprocessScope}/{@value #ScaleIndexName},
+     * full scale if it is not fed. Only the selected chain is run.
+     * @return the normalization graph as a serialized GraphDef
+     */
+    private static byte[] constructNormalizeGraphDef() {
         try (Graph g = new Graph()) {
-          GraphBuilder b = new GraphBuilder(g);
-          // Some constants specific to the pre-trained model at:
-          // https://storage.googleapis.com/download.tensorflow.org/models/inception5h.zip
-          //
-          // - The model was trained with images scaled to 224x224 pixels.
-          // - The colors, represented as R, G, B in 1-byte each were converted to
-          //   float using (value - Mean)/Scale.
-          final int H = 224;
-          final int W = 224;
-          final float mean = 117f;
-          final float scale = 1f;
+            GraphBuilder b = new GraphBuilder(g, PreprocessScope);
+            Output<Integer> scaleIndex = b.placeholderWithDefault(ScaleIndexName, b.constant("full_scale", 0));
+            b.identity(InputOperationName, b.merge(constructGraphToNormalizeImage(b, scaleIndex)));
+            return g.toGraphDef();
+        }
+    }
 
-          // Since the graph is being constructed once per execution here, we can use a constant for the
-          // input image. If the graph were to be re-used for multiple input images, a placeholder would
-          // have been more appropriate.
-          final Output<String> input = b.constant("input", imageBytes);
-          final Output<Float> output =
-              b.div(
-                  b.sub(
-                      b.resizeBilinear(
-                          b.expandDims(
-                                  // Note: the 3 is the number of channels. It doesn't work, if we set it to 1 with the tested model
-                              b.cast(b.decodeJpeg(input, 3), Float.class),
-                              b.constant("make_batch", 0)),
-                          b.constant("size", new int[] {H, W})),
-                      b.constant("mean", mean)),
-                  b.constant("scale", scale));
-          try (Session s = new Session(g)) {
-            //System.out.println("OP: " +   output.op().name());
-            return s.runner()
-                    .fetch(output.op().name())
-                    .run()
-                    .get(0)
-                    .expect(Float.class);
-          }
-        }
-    }
-    
-    /**
-     * @param g an pretrained Tensor-Flow Graph
+    /**
+     * @param imageBytes the bytes of a jpeg image
+     * @return the denominator of the scale to decode the image at, one of {@link JpegScale#DENOMINATORS}
+     */
+    private static int denominator(ByteBuffer imageBytes) {
+        return JpegScale.denominator(imageBytes, W, H);
+    }
+
+    /**
+     * @param jpeg the bytes of a jpeg image as a Tensor<String>
+     * @param denominator the image is decoded at 1/denominator of its size, one of {@link JpegScale#DENOMINATORS}
+     * @return the image normalized as expected by the model. The caller must close it
+     */
+    private ManagedTensor<Float> normalizeImage(Tensor<String> jpeg, int denominator) {
+        int scaleIndex = Arrays.binarySearch(JpegScale.DENOMINATORS, denominator);
+        if (fused) {
+            // Only the normalization part of the fused graph is run, as the model input is fetched
+            return ManagedTensor.of(runFused(jpeg, scaleIndex, InputOperationName));
+        }
+        sessionRuns.incrementAndGet();
+        return ManagedTensor.of(normalizeSession.runner()
+                .feed(JpegInputOperationName, jpeg)
+                .fetch(normalizeOutputs.get(scaleIndex))
+                .run().get(0).expect(Float.class));
+    }
+    
+    /**
+     * @param jpeg the bytes of a jpeg image as a Tensor<String>
+     * @param denominator the image is decoded at 1/denominator of its size, one of {@link JpegScale#DENOMINATORS}
+     * @return the result of the evaluation of the image on the fused execGraph
+     */
+    private float[] executeFusedGraph(Tensor<String> jpeg, int denominator) {
+        try (ManagedTensor<Float> result = ManagedTensor.of(
+                runFused(jpeg, Arrays.binarySearch(JpegScale.DENOMINATORS, denominator), OutputOperationName))) {
+            return getProbabilities(result.get(), 1)[0];
+        }
+    }
+    
+    /**
+     * Runs the fused execGraph once, with the jpeg decoded by the chain at the given scale index.
+     * @return the fetched tensor. The caller must close it
+     */
+    private Tensor<Float> runFused(Tensor<String> jpeg, int scaleIndex, String fetch) {
+        try (ManagedTensor<Integer> index = ManagedTensor.of(Tensors.create(scaleIndex))) {
+            sessionRuns.incrementAndGet();
+            return execSession.runner()
+                    .feed(PreprocessScope + "/" + JpegInputOperationName, jpeg)
+                    .feed(PreprocessScope + "/" + ScaleIndexName, index.get())
+                    .fetch(fetch)
+                    .run().get(0).expect(Float.class);
+        }
+    }
+    
+    /**
      * @param image an image represented as a Tensor<Float> to be used as input
-     * @return the result of the evaluation of the image on the Graph
-     */
-    private static float[] executeGraph(Graph g, Tensor<Float> image) {
-        try (Session s = new Session(g);
-                Tensor<Float> result =
-                        s.runner().feed("input", image).fetch(OutputOperationName).run().get(0).expect(Float.class)) {
-            final long[] rshape = result.shape();
-            if (result.numDimensions() != 2 || rshape[0] != 1) {
-                throw new RuntimeException(
-                        String.format(
-                                "Expected model to produce a [1 N] shaped tensor where N is the number of labels, instead it produced one with shape %s",
-                                Arrays.toString(rshape)));
-            }
-            int nlabels = (int) rshape[1];
-            return result.copyTo(new float[1][nlabels])[0];
+     * @return the result of the evaluation of the image on the pretrained execGraph
+     */
+    private float[] executeGraph(Tensor<Float> image) {
+        return executeGraph(image, 1)[0];
+    }
+    
+    /**
+     * @param images a batch of images represented as a [batchSize,224,224,3] Tensor<Float> to be used as input.
+     *        In fused mode, it replaces the output of the normalization
+     * @param batchSize the number of images in the batch
+     * @return the result of the evaluation of each image on the pretrained execGraph
+     */
+    private float[][] executeGraph(Tensor<Float> images, int batchSize) {
+        sessionRuns.incrementAndGet();
+        try (ManagedTensor<Float> result = ManagedTensor.of(
+                execSession.runner().feed(InputOperationName, images).fetch(OutputOperationName).run().get(0).expect(Float.class))) {
+            return getProbabilities(result.get(), batchSize);
+        }
+    }
+    
+    private static float[][] getProbabilities(Tensor<Float> result, int batchSize) {
+        final long[] rshape = result.shape();
+        if (result.numDimensions() != 2 || rshape[0] != batchSize) {
+            throw new RuntimeException(
+                    String.format(
+                            "Expected model to produce a [%d N] shaped tensor where N is the number of labels, instead it produced one with shape %s",
+                            batchSize, Arrays.toString(rshape)));
+        }
+        int nlabels = (int) rshape[1];
+        return result.copyTo(new float[batchSize][nlabels]);
+    }
+    
+    /**
+     * Closes the sessions and graphs held by this classifier.
+     */
+    @Override
+    public void close() {
+        execSession.close();
+        execGraph.close();
+        if (normalizeSession != null) {
+            normalizeSession.close();
+            normalizeGraph.close();
         }
     }
     
@@ -1,5 +1,7 @@
 package dk.kb.tensorflow;
 
+import java.util.List;
+
 import org.tensorflow.DataType;
 import org.tensorflow.Graph;
 import org.tensorflow.Output;
@@ -11,7 +13,23 @@ public class GraphBuilder {
     // the OpDefs linked into libtensorflow_jni.so. That would match what is done in other languages
     // like Python, C++ and Go.
     public GraphBuilder(Graph g) {
+        this(g, null);
+    }
+
+    /**
+     * @param g the graph to add operations to
+     * @param scope if not null, the names of all operations added are prefixed with scope + "/"
+     */
+    public GraphBuilder(Graph g, String scope) {
         this.g = g;
+        this.scope = scope;
+    }
+
+    /**
+     * @return a GraphBuilder on the same graph, adding operations in the named scope nested in the scope of this
+     */
+    GraphBuilder withScope(String name) {
+        return new GraphBuilder(g, opName(name));
     }
 
     Output<Float> div(Output<Float> x, Output<Float> y) {
@@ -32,7 +50,7 @@ public class GraphBuilder {
 
     <T, U> Output<U> cast(Output<T> value, Class<U> type) {
         DataType dtype = DataType.fromClass(type);
-        return g.opBuilder("Cast", "Cast")
+        return g.opBuilder("Cast", opName("Cast"))
                 .addInput(value)
                 .setAttr("DstT", dtype)
                 .build()
@@ -40,16 +58,80 @@ public class GraphBuilder {
     }
 
     Output<UInt8> decodeJpeg(Output<String> contents, long channels) {
-        return g.opBuilder("DecodeJpeg", "DecodeJpeg")
+        return decodeJpeg(contents, channels, 1);
+    }
+
+    /**
+     * @param ratio 1, 2, 4 or 8. The image is decoded at 1/ratio of its size, by scaling the DCT blocks
+     */
+    Output<UInt8> decodeJpeg(Output<String> contents, long channels, long ratio) {
+        return g.opBuilder("DecodeJpeg", opName("DecodeJpeg"))
                 .addInput(contents)
                 .setAttr("channels", channels)
+                .setAttr("ratio", ratio)
                 .build()
                 .<UInt8>output(0);
     }
 
+    /**
+     * Adds an Identity operation. Unlike the other operations, the name is not scoped, so the
+     * output can be given the exact name another graph expects.
+     */
+    <T> Output<T> identity(String name, Output<T> input) {
+        return g.opBuilder("Identity", name).addInput(input).build().<T>output(0);
+    }
+
+    <T> Output<T> placeholder(String name, Class<T> type) {
+        return g.opBuilder("Placeholder", opName(name))
+                .setAttr("dtype", DataType.fromClass(type))
+                .build()
+                .<T>output(0);
+    }
+
+    /**
+     * @return a placeholder that gives the value of input, unless it is fed
+     */
+    <T> Output<T> placeholderWithDefault(String name, Output<T> input) {
+        return g.opBuilder("PlaceholderWithDefault", opName(name))
+                .addInput(input)
+                .setAttr("dtype", input.dataType())
+                .setAttr("shape", input.shape())
+                .build()
+                .<T>output(0);
+    }
+
+    Output<Boolean> equal(Output<Integer> x, Output<Integer> y) {
+        return binaryOp3("Equal", x, y);
+    }
+
+    /**
+     * Adds a Switch operation, the first half of a conditional.
+     * @return the data if pred is true. Otherwise the output is dead, and so are the outputs of the operations
+     *         depending on it, which are then not run, up to a {@link #merge(List)}
+     */
+    <T> Output<T> switchIfTrue(Output<T> data, Output<Boolean> pred) {
+        return g.opBuilder("Switch", opName("Switch"))
+                .addInput(data)
+                .addInput(pred)
+                .build()
+                .<T>output(1);
+    }
+
+    /**
+     * Adds a Merge operation, the second half of a conditional.
+     * @param inputs outputs of which exactly one is not dead, see {@link #switchIfTrue(Output, Output)}
+     * @return the input that is not dead
+     */
+    <T> Output<T> merge(List<Output<T>> inputs) {
+        return g.opBuilder("Merge", opName("Merge"))
+                .addInputList(inputs.toArray(new Output<?>[inputs.size()]))
+                .build()
+                .<T>output(0);
+    }
+
     <T> Output<T> constant(String name, Object value, Class<T> type) {
         try (Tensor<T> t = Tensor.<T>create(value, type)) {
-            return g.opBuilder("Const", name)
+            return g.opBuilder("Const", opName(name))
                     .setAttr("dtype", DataType.fromClass(type))
                     .setAttr("value", t)
                     .build()
@@ -73,11 +155,16 @@ public class GraphBuilder {
     }
 
     private <T> Output<T> binaryOp(String type, Output<T> in1, Output<T> in2) {
-        return g.opBuilder(type, type).addInput(in1).addInput(in2).build().<T>output(0);
+        return g.opBuilder(type, opName(type)).addInput(in1).addInput(in2).build().<T>output(0);
     }
 
     private <T, U, V> Output<T> binaryOp3(String type, Output<U> in1, Output<V> in2) {
-        return g.opBuilder(type, type).addInput(in1).addInput(in2).build().<T>output(0);
+        return g.opBuilder(type, opName(type)).addInput(in1).addInput(in2).build().<T>output(0);
+    }
+
+    private String opName(String name) {
+        return scope == null ? name : scope + "/" + name;
     }
     private Graph g;
+    private String scope;
 }
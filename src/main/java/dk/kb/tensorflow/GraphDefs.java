@@ -0,0 +1,109 @@
+package dk.kb.tensorflow;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Manipulation of serialized GraphDef protocol buffers.
+ * The TensorFlow java API (1.6) can only import a GraphDef as is, so the few rewrites needed
+ * are done directly on the wire format: a GraphDef is a sequence of fields, where field 1 is a
+ * repeated NodeDef whose field 1 is the name of the node. Concatenating two serialized
+ * GraphDefs gives a GraphDef with the nodes of both.
+ */
+public class GraphDefs {
+    private static final int NodeField = 1;
+    private static final int NodeNameField = 1;
+    private static final int WireTypeVarint = 0;
+    private static final int WireTypeFixed64 = 1;
+    private static final int WireTypeLengthDelimited = 2;
+    private static final int WireTypeFixed32 = 5;
+
+    /**
+     * Replaces the node with the given name in a GraphDef with the nodes of another GraphDef.
+     * The replacement must contain a node with the same name, so the nodes consuming the output
+     * of the removed node instead consume the output of the replacement.
+     * @param graphDef the serialized GraphDef to modify
+     * @param nodeName the name of the node to replace
+     * @param replacement a serialized GraphDef with the nodes to insert
+     * @return the serialized GraphDef with the node replaced
+     */
+    public static byte[] replaceNode(byte[] graphDef, String nodeName, byte[] replacement) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(graphDef.length + replacement.length);
+        out.write(replacement, 0, replacement.length);
+        boolean found = false;
+        int[] pos = new int[] {0};
+        while (pos[0] < graphDef.length) {
+            int fieldStart = pos[0];
+            long tag = readVarint(graphDef, pos);
+            int field = (int) (tag >>> 3);
+            int wireType = (int) (tag & 7);
+            if (field == NodeField && wireType == WireTypeLengthDelimited) {
+                int length = (int) readVarint(graphDef, pos);
+                if (nodeName.equals(readNodeName(graphDef, pos[0], pos[0] + length))) {
+                    found = true;
+                    pos[0] += length;
+                    continue;
+                }
+                pos[0] += length;
+            } else {
+                skipField(graphDef, pos, wireType);
+            }
+            out.write(graphDef, fieldStart, pos[0] - fieldStart);
+        }
+        if (!found) {
+            throw new IllegalArgumentException("The graph has no node named '" + nodeName + "'");
+        }
+        return out.toByteArray();
+    }
+
+    private static String readNodeName(byte[] buf, int start, int end) {
+        int[] pos = new int[] {start};
+        while (pos[0] < end) {
+            long tag = readVarint(buf, pos);
+            int field = (int) (tag >>> 3);
+            int wireType = (int) (tag & 7);
+            if (field == NodeNameField && wireType == WireTypeLengthDelimited) {
+                int length = (int) readVarint(buf, pos);
+                return new String(buf, pos[0], length, Charset.forName("UTF-8"));
+            }
+            skipField(buf, pos, wireType);
+        }
+        return null;
+    }
+
+    private static void skipField(byte[] buf, int[] pos, int wireType) {
+        switch (wireType) {
+        case WireTypeVarint:
+            readVarint(buf, pos);
+            break;
+        case WireTypeFixed64:
+            pos[0] += 8;
+            break;
+        case WireTypeLengthDelimited:
+            int length = (int) readVarint(buf, pos);
+            pos[0] += length;
+            break;
+        case WireTypeFixed32:
+            pos[0] += 4;
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported wire type " + wireType + " in GraphDef");
+        }
+    }
+
+    private static long readVarint(byte[] buf, int[] pos) {
+        long result = 0;
+        int shift = 0;
+        while (true) {
+            if (pos[0] >= buf.length) {
+                throw new IllegalArgumentException("Truncated GraphDef");
+            }
+            byte b = buf[pos[0]++];
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+    }
+}
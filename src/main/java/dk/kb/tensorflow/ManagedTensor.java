@@ -0,0 +1,55 @@
+package dk.kb.tensorflow;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.tensorflow.Tensor;
+
+/**
+ * Holds a Tensor, whose native memory is released when this is closed, and counts the
+ * tensors not yet closed. Tensors are only released by the garbage collector if they are
+ * not closed, so every tensor on the evaluation path should be held by a ManagedTensor in a
+ * try-with-resources statement, or closed explicitly when handed over to another thread.
+ *
+ * @param <T> the type of the elements of the tensor
+ */
+public class ManagedTensor<T> implements AutoCloseable {
+    private static final AtomicLong live = new AtomicLong();
+
+    private Tensor<T> tensor;
+    private AtomicBoolean closed = new AtomicBoolean(false);
+
+    private ManagedTensor(Tensor<T> tensor) {
+        this.tensor = tensor;
+    }
+
+    public static <T> ManagedTensor<T> of(Tensor<T> tensor) {
+        live.incrementAndGet();
+        return new ManagedTensor<T>(tensor);
+    }
+
+    /**
+     * @return the number of managed tensors created but not yet closed
+     */
+    public static long liveCount() {
+        return live.get();
+    }
+
+    public Tensor<T> get() {
+        if (closed.get()) {
+            throw new IllegalStateException("The tensor is closed");
+        }
+        return tensor;
+    }
+
+    /**
+     * Releases the tensor. Closing more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            tensor.close();
+            live.decrementAndGet();
+        }
+    }
+}
@@ -34,9 +34,10 @@ public class MyLabelImage {
         byte[] imageBytes = readAllBytesOrExit(Paths.get(imageFile));
         byte[] graphDef = readAllBytesOrExit(Paths.get(modelDir, "tensorflow_inception_graph.pb"));
         List<String> labels = readAllLinesOrExit(Paths.get(modelDir, "imagenet_comp_graph_label_strings.txt"));
-        Tensor<Float> image = constructAndExecuteGraphToNormalizeImage(imageBytes);
-        
-        float[] labelProbabilities = executeInceptionGraph(graphDef, image);
+        float[] labelProbabilities;
+        try (Tensor<Float> image = constructAndExecuteGraphToNormalizeImage(imageBytes)) {
+            labelProbabilities = executeInceptionGraph(graphDef, image);
+        }
         int bestLabelIdx = maxIndex(labelProbabilities);
         System.out.println(
                 String.format("BEST MATCH: %s (%.2f%% likely)",
@@ -6,11 +6,20 @@ public class TensorFlowResult {
     private String label;
     private double accuracy;
     private String objectName;
+    private float[] probabilities;
 
     public TensorFlowResult(String label, double accuracy, String objectName) {
+        this(label, accuracy, objectName, null);
+    }
+
+    /**
+     * @param probabilities the probabilities of all the labels, or null if not known
+     */
+    public TensorFlowResult(String label, double accuracy, String objectName, float[] probabilities) {
         this.label = label;
         this.accuracy = accuracy;
         this.objectName = objectName;
+        this.probabilities = probabilities;
     }
  
     public String getLabel() {
@@ -30,12 +39,19 @@ public class TensorFlowResult {
                 maxIndex = i;
             }
         }
-        return new TensorFlowResult(labelList.get(maxIndex), max, objectName);
+        return new TensorFlowResult(labelList.get(maxIndex), max, objectName, output);
     }
 
     public String getObjectName() {
         return objectName;
     }
+
+    /**
+     * @return the probabilities of all the labels, or null if not known
+     */
+    public float[] getProbabilities() {
+        return probabilities;
+    }
     
     public String toString() {
         return "The object '" + objectName + "' is classified as '" +  label + "' with accuracy '" +  accuracy + "'";
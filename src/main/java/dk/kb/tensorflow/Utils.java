@@ -1,16 +1,147 @@
 package dk.kb.tensorflow;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
 import java.util.List;
 
 import org.tensorflow.Graph;
 import org.tensorflow.Operation;
+import org.tensorflow.Tensor;
 
 public class Utils {
+    /**
+     * Image files of this size or larger are memory-mapped by {@link #readEncodedImage(Path)}, smaller ones are read
+     */
+    public static final long MAP_THRESHOLD = 1024 * 1024;
+
+    private static final int StringScalarOffset = 8; // the offset of the single element of a string scalar
+    private static final int MaxVarintBytes = 5; // enough for a length below 2GB
+
+    /**
+     * The number of bytes needed before an image for {@link #encodeInPlace(ByteBuffer)}
+     */
+    public static final int ENCODING_HEADROOM = StringScalarOffset + MaxVarintBytes;
+
+    // The buffer of each thread for readEncodedImage, grown as needed
+    private static final ThreadLocal<ByteBuffer> EncodeBuffers = new ThreadLocal<ByteBuffer>();
+
+    /**
+     * Reads an image file into a direct buffer reused by the calling thread, laid out as a TensorFlow string
+     * scalar, so it can be made into a tensor by {@link #toStringTensor(ByteBuffer)} without copying it to
+     * the heap. Files of at least {@link #MAP_THRESHOLD} bytes are memory-mapped and copied from the mapping,
+     * smaller files are read directly into the buffer.
+     * @return the encoded image, valid until the next call from the same thread
+     */
+    public static ByteBuffer readEncodedImage(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - StringScalarOffset - MaxVarintBytes) {
+                throw new IOException("The file is too large: " + size + " bytes");
+            }
+            ByteBuffer buffer = EncodeBuffers.get();
+            int capacity = (int) size + StringScalarOffset + MaxVarintBytes;
+            if (buffer == null || buffer.capacity() < capacity) {
+                buffer = ByteBuffer.allocateDirect(Math.max(capacity, buffer == null ? 0 : buffer.capacity() * 2))
+                        .order(ByteOrder.nativeOrder());
+                EncodeBuffers.set(buffer);
+            }
+            buffer.clear();
+            buffer.putLong(0);
+            putVarint(buffer, size);
+            if (size >= MAP_THRESHOLD) {
+                buffer.put(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            } else {
+                buffer.limit(buffer.position() + (int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // read until the whole file is in the buffer
+                }
+                if (buffer.hasRemaining()) {
+                    throw new IOException("The file was truncated while reading it");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * Reads an image file as {@link #readEncodedImage(Path)} if it is not required for the program to continue.
+     * @return the encoded image, or null if it could not be read. The failure is reported on System.err
+     */
+    public static ByteBuffer readEncodedImageOrNull(Path path) {
+        try {
+            return readEncodedImage(path);
+        } catch (IOException e) {
+            System.err.println("Failed to read [" + path + "]: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Lays out an image as a TensorFlow string scalar, like {@link #readEncodedImage(Path)}, by writing the header
+     * just before the image, so the image is not copied. Meant for the buffers of a {@link dk.kb.util.ByteBufferPool}
+     * with a headroom of {@link #ENCODING_HEADROOM}.
+     * @param imageBytes the bytes of the image between the position and the limit, preceded by at least
+     *        {@link #ENCODING_HEADROOM} bytes that may be overwritten
+     * @return the encoded image, a view of the same buffer
+     */
+    public static ByteBuffer encodeInPlace(ByteBuffer imageBytes) {
+        int size = imageBytes.remaining();
+        int varintBytes = 1;
+        for (int length = size; length >= 0x80; length >>>= 7) {
+            varintBytes++;
+        }
+        int start = imageBytes.position() - StringScalarOffset - varintBytes;
+        if (start < 0) {
+            throw new IllegalArgumentException("Expected at least " + (StringScalarOffset + varintBytes)
+                    + " bytes of headroom before the image, got " + imageBytes.position());
+        }
+        ByteBuffer encoded = imageBytes.duplicate();
+        encoded.position(start);
+        encoded.putLong(0);
+        putVarint(encoded, size);
+        encoded.position(start);
+        return encoded;
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        for (long length = value; ; length >>>= 7) {
+            if (length < 0x80) {
+                buffer.put((byte) length);
+                return;
+            }
+            buffer.put((byte) (length & 0x7F | 0x80));
+        }
+    }
+
+    /**
+     * @param encoded an image read by {@link #readEncodedImage(Path)} or laid out by {@link #encodeInPlace(ByteBuffer)}
+     * @return a string scalar tensor holding the image. The bytes are copied directly from the buffer to the tensor
+     */
+    public static Tensor<String> toStringTensor(ByteBuffer encoded) {
+        return Tensor.create(String.class, new long[0], encoded.duplicate());
+    }
+
+    /**
+     * @param encoded an image read by {@link #readEncodedImage(Path)}
+     * @return a view of the bytes of the image in the buffer
+     */
+    public static ByteBuffer imageBytes(ByteBuffer encoded) {
+        ByteBuffer bytes = encoded.duplicate();
+        bytes.position(StringScalarOffset);
+        while ((bytes.get() & 0x80) != 0) {
+            // skip the varint length
+        }
+        return bytes.slice();
+    }
+
     public static byte[] readAllBytesOrExit(Path path) {
         try {
           return Files.readAllBytes(path);
@@ -0,0 +1,113 @@
+package dk.kb.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct ByteBuffers the images are read into, so the bytes are not read to the heap and the
+ * buffers are allocated once instead of once per image. Each buffer has headroom bytes free before the
+ * content, so a header can be written in front of it without copying the content, e.g. to make it a
+ * TensorFlow string. Buffers must be released after use. Safe to use from several threads.
+ */
+public class ByteBufferPool {
+    private static final int MinCapacity = 64 * 1024;
+
+    private ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private AtomicInteger allocated = new AtomicInteger();
+    private int headroom;
+
+    /**
+     * @param headroom the number of bytes free before the content of each buffer
+     */
+    public ByteBufferPool(int headroom) {
+        this.headroom = headroom;
+    }
+
+    /**
+     * @param size the number of bytes of content
+     * @return a buffer with the position at the headroom and room for size bytes up to the limit
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > Integer.MAX_VALUE - headroom) {
+            throw new IllegalArgumentException("Too large for a buffer: " + size + " bytes");
+        }
+        int capacity = headroom + size;
+        ByteBuffer buffer;
+        while ((buffer = buffers.poll()) != null) {
+            if (buffer.capacity() >= capacity) {
+                break;
+            }
+            // Too small for the image. Let it be garbage collected
+            allocated.decrementAndGet();
+        }
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            // Rounded up to a power of two, so the pool settles on a few sizes although the images vary
+            int rounded = Integer.highestOneBit(capacity - 1) << 1;
+            buffer = ByteBuffer.allocateDirect(rounded > 0 ? Math.max(MinCapacity, rounded) : Math.max(MinCapacity, capacity))
+                    .order(ByteOrder.nativeOrder());
+        }
+        buffer.limit(capacity).position(headroom);
+        return buffer;
+    }
+
+    /**
+     * Reads the file into a buffer from the pool
+     * @return a buffer with the content of the file between the position and the limit
+     */
+    public ByteBuffer read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - headroom) {
+                throw new IOException("The file is too large: " + size + " bytes");
+            }
+            ByteBuffer buffer = acquire((int) size);
+            try {
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // read until the whole file is in the buffer
+                }
+                if (buffer.hasRemaining()) {
+                    throw new IOException("The file was truncated while reading it");
+                }
+            } catch (IOException | RuntimeException e) {
+                release(buffer);
+                throw e;
+            }
+            buffer.position(headroom);
+            return buffer;
+        }
+    }
+
+    /**
+     * @return a buffer from the pool with the bytes between the position and the limit
+     */
+    public ByteBuffer copyOf(byte[] bytes) {
+        ByteBuffer buffer = acquire(bytes.length);
+        buffer.put(bytes).position(headroom);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool
+     */
+    public void release(ByteBuffer buffer) {
+        buffers.offer(buffer);
+    }
+
+    public int getHeadroom() {
+        return headroom;
+    }
+
+    /**
+     * @return the number of buffers allocated by the pool, both in use and free
+     */
+    public int getAllocated() {
+        return allocated.get();
+    }
+}
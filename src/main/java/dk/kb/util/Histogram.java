@@ -0,0 +1,87 @@
+package dk.kb.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram in the style of HdrHistogram: values below 32 are counted exactly, and larger
+ * values in 16 buckets per power of two, so a recorded value is off by at most 1/16 (6%) of itself,
+ * whatever its magnitude. Memory use is fixed (about 8KB), and recording is lock free, so it can be
+ * done from many threads on every image.
+ */
+public class Histogram {
+    private static final int SubBucketBits = 5;
+    private static final int SubBuckets = 1 << SubBucketBits;
+    private static final int HalfSubBuckets = SubBuckets / 2;
+
+    private AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong sum = new AtomicLong();
+    private AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value the value to record, e.g. a duration in nanoseconds. Negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry until the max is updated or a larger value is recorded
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percentile the percentile, from 0 to 100
+     * @return the highest value equivalent to the value at the given percentile, or 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long value) {
+        if (value < SubBuckets) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SubBucketBits + 1;
+        return shift * HalfSubBuckets + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < SubBuckets) {
+            return index;
+        }
+        int shift = index / HalfSubBuckets - 1;
+        long top = index - shift * HalfSubBuckets;
+        return ((top + 1) << shift) - 1;
+    }
+}
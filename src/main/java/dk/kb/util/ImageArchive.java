@@ -0,0 +1,284 @@
+package dk.kb.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * A ZIP or TAR archive of images, read without extracting it. The entries are listed once, in the order
+ * they are stored, by {@link #nextEntry(EntryFilter)}, and the content of the entries listed is read by
+ * {@link #read(String)}, which can be called concurrently. Entries not accepted by the filter are skipped
+ * without reading their content.
+ * <ul>
+ * <li>ZIP (.zip): read with {@link ZipFile}, which maps the central directory into memory, so entries
+ *     can be read in any order</li>
+ * <li>TAR (.tar): memory-mapped, and the entries are copied directly from the mapping, so entries
+ *     can be read in any order</li>
+ * <li>Compressed TAR (.tar.gz, .tgz): can only be read sequentially, so the content of each entry is read
+ *     when it is listed, and held until it is read or newer entries of more than {@value #MaxPendingBytes}
+ *     bytes in all are waiting</li>
+ * </ul>
+ * An image in an archive is identified by the path of the archive and the name of the entry, separated
+ * by {@link #SEPARATOR}, e.g. /data/bundle.zip!/scans/0001.jpg
+ */
+public abstract class ImageArchive implements Closeable {
+    public static final String SEPARATOR = "!" + File.separator;
+
+    private static final int MaxPending = 4096;
+    private static final long MaxPendingBytes = 256L << 20;
+    private static final long MapSegment = 1L << 30;
+
+    protected File file;
+
+    protected ImageArchive(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return true if the file is named as an archive supported by {@link #open(File)}
+     */
+    public static boolean isArchive(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        return name.endsWith(".zip") || name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tgz");
+    }
+
+    /**
+     * Opens the archive, choosing the format from the file name
+     */
+    public static ImageArchive open(File file) throws IOException {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".zip")) {
+            return new Zip(file);
+        } else if (name.endsWith(".tar")) {
+            return new MappedTar(file);
+        } else if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+            return new CompressedTar(file);
+        }
+        throw new IOException("'" + file.getAbsolutePath() + "' is not a supported archive");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Decides which entries are listed
+     */
+    public interface EntryFilter {
+        boolean accept(String entry);
+    }
+
+    /**
+     * @return the name of the next file entry, or null if all entries are listed
+     */
+    public String nextEntry() throws IOException {
+        return nextEntry(null);
+    }
+
+    /**
+     * @param filter the entries to list, or null for all
+     * @return the name of the next file entry accepted by the filter, or null if all entries are listed
+     */
+    public abstract String nextEntry(EntryFilter filter) throws IOException;
+
+    private static boolean accept(EntryFilter filter, String entry) {
+        return filter == null || filter.accept(entry);
+    }
+
+    /**
+     * @return the content of an entry listed by {@link #nextEntry()}
+     */
+    public abstract byte[] read(String entry) throws IOException;
+
+    private static class Zip extends ImageArchive {
+        private ZipFile zip;
+        private Enumeration<? extends ZipEntry> entries;
+
+        Zip(File file) throws IOException {
+            super(file);
+            zip = new ZipFile(file);
+            entries = zip.entries();
+        }
+
+        @Override
+        public String nextEntry(EntryFilter filter) {
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && accept(filter, entry.getName())) {
+                    return entry.getName();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public byte[] read(String entry) throws IOException {
+            ZipEntry zipEntry = zip.getEntry(entry);
+            if (zipEntry == null) {
+                throw new IOException("No entry '" + entry + "' in '" + file.getAbsolutePath() + "'");
+            }
+            try (InputStream in = zip.getInputStream(zipEntry)) {
+                return zipEntry.getSize() >= 0 ? IOUtils.toByteArray(in, zipEntry.getSize()) : IOUtils.toByteArray(in);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            zip.close();
+        }
+    }
+
+    private static class MappedTar extends ImageArchive {
+        private CountingInputStream counter;
+        private TarArchiveInputStream tar;
+        private MappedByteBuffer[] segments;
+        private Map<String, long[]> pending = new LinkedHashMap<String, long[]>(); // offset and size
+
+        MappedTar(File file) throws IOException {
+            super(file);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                segments = new MappedByteBuffer[(int) ((size + MapSegment - 1) / MapSegment)];
+                for (int i = 0; i < segments.length; i++) {
+                    long start = i * MapSegment;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MapSegment, size - start));
+                }
+            }
+            // Only the headers are read from the stream. The content of the entries is skipped, which is a seek
+            counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            tar = new TarArchiveInputStream(counter);
+        }
+
+        @Override
+        public String nextEntry(EntryFilter filter) throws IOException {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (entry.isFile() && accept(filter, entry.getName())) {
+                    // Only the location is held, and entries listed but never read are dropped when too many are waiting
+                    synchronized (pending) {
+                        pending.put(entry.getName(), new long[] {counter.getByteCount(), entry.getSize()});
+                        while (pending.size() > MaxPending) {
+                            pending.remove(pending.keySet().iterator().next());
+                        }
+                    }
+                    return entry.getName();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public byte[] read(String entry) throws IOException {
+            long[] location;
+            synchronized (pending) {
+                location = pending.remove(entry);
+            }
+            if (location == null) {
+                throw new IOException("The entry '" + entry + "' in '" + file.getAbsolutePath() + "' is not available");
+            }
+            if (location[1] > Integer.MAX_VALUE) {
+                throw new IOException("The entry '" + entry + "' in '" + file.getAbsolutePath() + "' is too large");
+            }
+            byte[] bytes = new byte[(int) location[1]];
+            int copied = 0;
+            while (copied < bytes.length) {
+                long position = location[0] + copied;
+                // duplicate, so concurrent reads do not share the position of the mapping
+                ByteBuffer segment = segments[(int) (position / MapSegment)].duplicate();
+                segment.position((int) (position % MapSegment));
+                int length = Math.min(bytes.length - copied, segment.remaining());
+                segment.get(bytes, copied, length);
+                copied += length;
+            }
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            tar.close();
+            segments = null; // the mappings are released when garbage collected
+        }
+    }
+
+    private static class CompressedTar extends ImageArchive {
+        private TarArchiveInputStream tar;
+        private Map<String, byte[]> pending = new LinkedHashMap<String, byte[]>();
+        private long pendingBytes = 0;
+
+        CompressedTar(File file) throws IOException {
+            super(file);
+            tar = new TarArchiveInputStream(new GZIPInputStream(new FileInputStream(file), 1 << 16));
+        }
+
+        // The content of the entries skipped is skipped in the stream by the next getNextTarEntry
+        @Override
+        public String nextEntry(EntryFilter filter) throws IOException {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (entry.isFile() && accept(filter, entry.getName())) {
+                    if (entry.getSize() > Integer.MAX_VALUE) {
+                        throw new IOException("The entry '" + entry.getName() + "' in '" + file.getAbsolutePath() + "' is too large");
+                    }
+                    byte[] bytes = IOUtils.toByteArray(tar, entry.getSize());
+                    synchronized (pending) {
+                        byte[] replaced = pending.put(entry.getName(), bytes);
+                        pendingBytes += bytes.length - (replaced == null ? 0 : replaced.length);
+                        // Entries listed but never read are dropped, oldest first, when too much is waiting
+                        Iterator<byte[]> oldest = pending.values().iterator();
+                        while (pendingBytes > MaxPendingBytes && pending.size() > 1) {
+                            pendingBytes -= oldest.next().length;
+                            oldest.remove();
+                        }
+                    }
+                    return entry.getName();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public byte[] read(String entry) throws IOException {
+            byte[] bytes;
+            synchronized (pending) {
+                bytes = pending.remove(entry);
+                if (bytes != null) {
+                    pendingBytes -= bytes.length;
+                }
+            }
+            if (bytes == null) {
+                throw new IOException("The entry '" + entry + "' in '" + file.getAbsolutePath() + "' is not available");
+            }
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            tar.close();
+            synchronized (pending) {
+                pending.clear();
+                pendingBytes = 0;
+            }
+        }
+    }
+}
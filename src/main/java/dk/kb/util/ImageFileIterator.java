@@ -0,0 +1,286 @@
+package dk.kb.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks a directory tree lazily, returning the regular files with one of the given extensions.
+ * Only one directory listing per level is open at a time, so memory use does not grow with the
+ * size of the directories, and the first files are returned before the walk is complete.
+ * Symbolic links to directories are not followed. Directories that can not be read are reported
+ * on System.err and skipped.
+ *
+ * ZIP and TAR archives met in the walk, or given as the root, are walked as well, without extracting them:
+ * their entries with one of the extensions are returned as archive path + {@link ImageArchive#SEPARATOR} + entry name.
+ * Those files can only be read through the iterator as an {@link ImagePipeline.Reader}, so set it as the reader of
+ * the pipeline. The last {@value #MaxOpenArchives} archives walked are kept open for reading until {@link #close()}.
+ * Archive entries without one of the extensions, or not accepted by the filter given by {@link #setFilter(FileFilter)},
+ * are skipped without reading their content.
+ */
+public class ImageFileIterator implements Iterator<File>, Closeable, ImagePipeline.Reader {
+    public static final String[] DEFAULT_EXTENSIONS = new String[] {"jpg", "jpeg"};
+
+    private static final int MaxOpenArchives = 8;
+
+    private String[] extensions;
+    private FileFilter filter;
+    private Deque<DirectoryStream<Path>> streams = new ArrayDeque<DirectoryStream<Path>>();
+    private Deque<Iterator<Path>> iterators = new ArrayDeque<Iterator<Path>>();
+    private File next;
+    private ImageArchive archive; // the archive being walked, or null
+    private Map<String, ImageArchive> archives = new HashMap<String, ImageArchive>(); // the open archives by path
+    private Map<ImageArchive, Integer> readers = new HashMap<ImageArchive, Integer>(); // the reads in progress
+    private Deque<ImageArchive> walked = new ArrayDeque<ImageArchive>();
+
+    public ImageFileIterator(File root) {
+        this(root, DEFAULT_EXTENSIONS);
+    }
+
+    /**
+     * @param root the directory or archive to walk
+     * @param extensions the file extensions to return, matched case-insensitively
+     */
+    public ImageFileIterator(File root, String... extensions) {
+        this.extensions = new String[extensions.length];
+        for (int i = 0; i < extensions.length; i++) {
+            this.extensions[i] = "." + extensions[i].toLowerCase(Locale.ROOT);
+        }
+        if (root.isFile() && ImageArchive.isArchive(root)) {
+            openArchive(root);
+        } else {
+            open(root.toPath());
+        }
+    }
+
+    /**
+     * Sets a filter for the files returned, applied to archive entries before their content is read,
+     * e.g. {@link RunJournal#notDone()}
+     * @param filter the files to return, or null for all
+     */
+    public void setFilter(FileFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @return the extensions given by the option --extensions as a comma separated list, or the default extensions
+     */
+    public static String[] getExtensions(Options options) {
+        return options.has("extensions") ? options.get("extensions", "").split(",") : DEFAULT_EXTENSIONS;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && (archive != null || !iterators.isEmpty())) {
+            if (archive != null) {
+                nextInArchive();
+                continue;
+            }
+            Path path;
+            try {
+                if (!iterators.peek().hasNext()) {
+                    closeDirectory();
+                    continue;
+                }
+                path = iterators.peek().next();
+            } catch (DirectoryIteratorException e) {
+                System.err.println("Skipping the rest of a directory. It could not be read: " + e.getCause());
+                closeDirectory();
+                continue;
+            }
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                open(path);
+            } else if (hasExtension(path.getFileName().toString()) && Files.isRegularFile(path)
+                    && (filter == null || filter.accept(path.toFile()))) {
+                next = path.toFile();
+            } else if (ImageArchive.isArchive(path.toFile()) && Files.isRegularFile(path)) {
+                openArchive(path.toFile());
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        File result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Reads a file returned by the iterator, from its archive or as a plain file
+     */
+    public byte[] read(File file) throws IOException {
+        byte[] bytes = readArchived(file);
+        return bytes != null ? bytes : Files.readAllBytes(file.toPath());
+    }
+
+    /**
+     * Reads a file returned by the iterator as {@link ImagePipeline#FILE_READER} does, or from its archive.
+     * An archive entry is copied to a buffer from the pool, if one is given
+     */
+    @Override
+    public ByteBuffer read(File file, ByteBufferPool buffers) throws IOException {
+        byte[] bytes = readArchived(file);
+        if (bytes == null) {
+            return ImagePipeline.FILE_READER.read(file, buffers);
+        }
+        return buffers == null ? ByteBuffer.wrap(bytes) : buffers.copyOf(bytes);
+    }
+
+    /**
+     * @return the content of the archive entry, or null if the file is not in one of the archives walked
+     */
+    private byte[] readArchived(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        ImageArchive source = null;
+        String entry = null;
+        synchronized (archives) {
+            for (int i = path.indexOf(ImageArchive.SEPARATOR); i >= 0 && source == null;
+                    i = path.indexOf(ImageArchive.SEPARATOR, i + 1)) {
+                source = archives.get(path.substring(0, i));
+                entry = path.substring(i + ImageArchive.SEPARATOR.length());
+            }
+            if (source == null) {
+                return null;
+            }
+            Integer count = readers.get(source);
+            readers.put(source, count == null ? 1 : count + 1);
+        }
+        try {
+            return source.read(entry.replace(File.separatorChar, '/'));
+        } finally {
+            synchronized (archives) {
+                int count = readers.get(source) - 1;
+                if (count == 0) {
+                    readers.remove(source);
+                } else {
+                    readers.put(source, count);
+                }
+                closeWalkedArchives(MaxOpenArchives);
+            }
+        }
+    }
+
+    /**
+     * Closes the directory listings and archives still open
+     */
+    @Override
+    public void close() {
+        while (!streams.isEmpty()) {
+            closeDirectory();
+        }
+        if (archive != null) {
+            finishArchive();
+        }
+        synchronized (archives) {
+            closeWalkedArchives(0);
+        }
+    }
+
+    private void openArchive(File file) {
+        try {
+            ImageArchive opened = ImageArchive.open(file);
+            synchronized (archives) {
+                archives.put(file.getAbsolutePath(), opened);
+            }
+            archive = opened;
+        } catch (IOException e) {
+            System.err.println("Skipping archive '" + file.getAbsolutePath() + "'. It could not be read: " + e);
+        }
+    }
+
+    private void nextInArchive() {
+        final String prefix = archive.getFile().getAbsolutePath() + ImageArchive.SEPARATOR;
+        String entry;
+        try {
+            entry = archive.nextEntry(new ImageArchive.EntryFilter() {
+                @Override
+                public boolean accept(String entry) {
+                    return hasExtension(entry) && (filter == null || filter.accept(new File(prefix + entry)));
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Skipping the rest of the archive '" + archive.getFile().getAbsolutePath()
+                    + "'. It could not be read: " + e);
+            entry = null;
+        }
+        if (entry == null) {
+            finishArchive();
+        } else {
+            next = new File(prefix + entry);
+        }
+    }
+
+    private void finishArchive() {
+        synchronized (archives) {
+            walked.add(archive);
+            archive = null;
+            closeWalkedArchives(MaxOpenArchives);
+        }
+    }
+
+    // Closes the oldest archives walked, beyond the given number, unless they are being read
+    private void closeWalkedArchives(int keep) {
+        while (walked.size() > keep && !readers.containsKey(walked.peek())) {
+            ImageArchive closing = walked.poll();
+            archives.remove(closing.getFile().getAbsolutePath());
+            try {
+                closing.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close archive '" + closing.getFile().getAbsolutePath() + "': " + e);
+            }
+        }
+    }
+
+    private boolean hasExtension(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        for (String extension: extensions) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void open(Path dir) {
+        try {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+            streams.push(stream);
+            iterators.push(stream.iterator());
+        } catch (IOException e) {
+            System.err.println("Skipping directory '" + dir + "'. It could not be read: " + e);
+        }
+    }
+
+    private void closeDirectory() {
+        iterators.pop();
+        try {
+            streams.pop().close();
+        } catch (IOException e) {
+            System.err.println("Failed to close directory listing: " + e);
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package dk.kb.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Classifies images in three stages running concurrently: reading the files, decoding them into the
+ * input of a model and running the model. The stages are connected by bounded queues, so the number of
+ * read and decoded images held in memory is capped by the queue size, and each stage has its own
+ * number of worker threads.
+ * The model is given batches of at most batchSize decoded images.
+ * Images that can not be read, decoded or classified, or whose results can not be stored in the cache or
+ * handled, are reported on System.err, counted as failures and skipped. If a worker is stopped by an
+ * unexpected exception anyway, the whole run is stopped and the exception is thrown by {@link #run}.
+ * If a {@link Cache} is set, the decode workers look up each image in it, and images found are
+ * not decoded and classified.
+ * If a {@link ByteBufferPool} is set by {@link #setReadBuffers(ByteBufferPool)}, the images are read into direct
+ * buffers from it, which are released as soon as the image is decoded or found in the cache.
+ * The time spent in each stage and the number of images, bytes read, cache hits and failures are
+ * recorded in the {@link Metrics} of the pipeline.
+ *
+ * @param <D> the decoded image given to the model
+ * @param <R> the result of classifying an image
+ */
+public class ImagePipeline<D, R> {
+
+    /**
+     * Reads the bytes of an image. Called concurrently by the read workers.
+     */
+    public interface Reader {
+        /**
+         * @param buffers if not null, the buffer returned must be acquired from it. The pipeline releases it
+         * @return the bytes of the image between the position and the limit of the buffer
+         */
+        ByteBuffer read(File file, ByteBufferPool buffers) throws IOException;
+    }
+
+    /**
+     * Reads the images as plain files
+     */
+    public static final Reader FILE_READER = new Reader() {
+        @Override
+        public ByteBuffer read(File file, ByteBufferPool buffers) throws IOException {
+            return buffers == null ? ByteBuffer.wrap(Files.readAllBytes(file.toPath())) : buffers.read(file.toPath());
+        }
+    };
+
+    /**
+     * Decodes the bytes of an image into the input of a model. Called concurrently by the decode workers.
+     * The bytes are only valid during the call, as the buffer may be reused for another image afterwards.
+     */
+    public interface Decoder<D> {
+        D decode(File file, ByteBuffer bytes) throws Exception;
+    }
+
+    /**
+     * Runs the model on a batch of decoded images. Called concurrently by the inference workers.
+     * The results must be in the order of the files.
+     */
+    public interface Classifier<D, R> {
+        List<R> classify(List<File> files, List<D> decoded) throws Exception;
+    }
+
+    /**
+     * Receives the results. Calls are synchronized by the pipeline.
+     */
+    public interface ResultHandler<R> {
+        void handle(R result);
+    }
+
+    /**
+     * Results of earlier runs, e.g. backed by a {@link ResultCache}. Called concurrently.
+     */
+    public interface Cache<R> {
+        /**
+         * @return the key of the image with the given content, the remaining bytes of the buffer
+         */
+        String key(ByteBuffer bytes);
+
+        /**
+         * @return the result stored for the key, or null if there is none
+         */
+        R get(File file, String key);
+
+        void put(String key, R result);
+    }
+
+    private Reader reader = FILE_READER;
+    private Decoder<D> decoder;
+    private Classifier<D, R> classifier;
+    private Cache<R> cache;
+    private ByteBufferPool readBuffers;
+    private Metrics metrics = new Metrics();
+    private int readers = 1;
+    private int decoders = Runtime.getRuntime().availableProcessors();
+    private int inferers = 1;
+    private int queueSize = 64;
+    private int batchSize = 1;
+
+    public ImagePipeline(Decoder<D> decoder, Classifier<D, R> classifier) {
+        this.decoder = decoder;
+        this.classifier = classifier;
+    }
+
+    /**
+     * Sets the worker counts and sizes given by the options --readers, --decoders, --inferers, --queue-size
+     * and --batch-size. Options not given keep their current value.
+     */
+    public void configure(Options options) {
+        setReaders(options.getInt("readers", readers));
+        setDecoders(options.getInt("decoders", decoders));
+        setInferers(options.getInt("inferers", inferers));
+        setQueueSize(options.getInt("queue-size", queueSize));
+        setBatchSize(options.getInt("batch-size", batchSize));
+    }
+
+    /**
+     * Runs the images through the pipeline, and waits until all of them are classified.
+     * @param files the images to classify. Only accessed by one thread at a time
+     * @param handler receives the result of each image, in the order they are completed
+     * @return the number of images classified
+     * @throws RuntimeException if a worker was stopped by an unexpected exception
+     */
+    public int run(final Iterator<File> files, final ResultHandler<R> handler) throws InterruptedException {
+        metrics.start();
+        final BlockingQueue<Item<ByteBuffer>> readQueue = new ArrayBlockingQueue<Item<ByteBuffer>>(queueSize);
+        final BlockingQueue<Item<D>> decodedQueue = new ArrayBlockingQueue<Item<D>>(queueSize);
+        final AtomicInteger activeReaders = new AtomicInteger(readers);
+        final AtomicInteger activeDecoders = new AtomicInteger(decoders);
+        final AtomicInteger classified = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(readers + decoders + inferers);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int i = 0; i < readers; i++) {
+            executor.execute(new Worker(executor, failure) {
+                @Override
+                void work() throws InterruptedException {
+                    File file;
+                    while ((file = next(files)) != null) {
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
+                        }
+                        long start = System.nanoTime();
+                        ByteBuffer bytes;
+                        try {
+                            bytes = reader.read(file, readBuffers);
+                        } catch (IOException e) {
+                            System.err.println("Ignoring file '" + file.getAbsolutePath() + "'. It could not be read: " + e);
+                            metrics.addFailures(1);
+                            continue;
+                        }
+                        metrics.record(Metrics.READ, start);
+                        metrics.addBytesRead(bytes.remaining());
+                        readQueue.put(new Item<ByteBuffer>(file, bytes, null));
+                    }
+                    // The end markers are only needed when the stage completes, as a failure stops all the workers
+                    if (activeReaders.decrementAndGet() == 0) {
+                        for (int j = 0; j < decoders; j++) {
+                            readQueue.put(Item.<ByteBuffer>end());
+                        }
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < decoders; i++) {
+            executor.execute(new Worker(executor, failure) {
+                @Override
+                void work() throws InterruptedException {
+                    Item<ByteBuffer> item;
+                    while ((item = readQueue.take()).file != null) {
+                        try {
+                            String key = null;
+                            if (cache != null) {
+                                key = cache.key(item.value);
+                                R cached = cache.get(item.file, key);
+                                if (cached != null) {
+                                    metrics.addCacheHit();
+                                    classified.addAndGet(handle(Collections.singletonList(cached), handler));
+                                    continue;
+                                }
+                            }
+                            long start = System.nanoTime();
+                            D decoded = decoder.decode(item.file, item.value);
+                            metrics.record(Metrics.DECODE, start);
+                            decodedQueue.put(new Item<D>(item.file, decoded, key));
+                        } catch (InterruptedException e) {
+                            throw e;
+                        } catch (Exception e) {
+                            System.err.println("Ignoring file '" + item.file.getAbsolutePath() + "'. It could not be decoded: " + e);
+                            metrics.addFailures(1);
+                        } finally {
+                            if (readBuffers != null) {
+                                readBuffers.release(item.value);
+                            }
+                        }
+                    }
+                    if (activeDecoders.decrementAndGet() == 0) {
+                        decodedQueue.put(Item.<D>end());
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < inferers; i++) {
+            executor.execute(new Worker(executor, failure) {
+                @Override
+                void work() throws InterruptedException {
+                    List<Item<D>> batch = new ArrayList<Item<D>>(batchSize);
+                    while (true) {
+                        batch.add(decodedQueue.take());
+                        decodedQueue.drainTo(batch, batchSize - 1);
+                        // Nothing follows the end marker, so it can only be the last in the batch.
+                        // It is put back for the other inference workers to see
+                        Item<D> last = batch.get(batch.size() - 1);
+                        boolean done = last.file == null;
+                        if (done) {
+                            batch.remove(batch.size() - 1);
+                            decodedQueue.put(last);
+                        }
+                        if (!batch.isEmpty()) {
+                            classified.addAndGet(classify(batch, handler));
+                            batch.clear();
+                        }
+                        if (done) {
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting until the pipeline is drained
+            }
+        } finally {
+            executor.shutdownNow(); // only stops anything if the wait is interrupted
+        }
+        if (failure.get() != null) {
+            throw new RuntimeException("The pipeline was stopped as a worker failed", failure.get());
+        }
+        return classified.get();
+    }
+
+    private File next(Iterator<File> files) {
+        synchronized (files) {
+            return files.hasNext() ? files.next() : null;
+        }
+    }
+
+    private int classify(List<Item<D>> batch, ResultHandler<R> handler) {
+        List<File> batchFiles = new ArrayList<File>(batch.size());
+        List<D> decoded = new ArrayList<D>(batch.size());
+        for (Item<D> item: batch) {
+            batchFiles.add(item.file);
+            decoded.add(item.value);
+        }
+        List<R> results;
+        long start = System.nanoTime();
+        try {
+            results = classifier.classify(batchFiles, decoded);
+        } catch (Exception e) {
+            System.err.println("Ignoring a batch of " + batch.size() + " files starting with '"
+                    + batchFiles.get(0).getAbsolutePath() + "'. It could not be classified: " + e);
+            metrics.addFailures(batch.size());
+            return 0;
+        }
+        metrics.record(Metrics.INFERENCE, start);
+        if (cache != null && results.size() == batch.size()) {
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    cache.put(batch.get(i).key, results.get(i));
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to cache the result of '" + batchFiles.get(i).getAbsolutePath() + "': " + e);
+                }
+            }
+        }
+        return handle(results, handler);
+    }
+
+    // Returns the number of results handled
+    private int handle(List<R> results, ResultHandler<R> handler) {
+        int handled = 0;
+        synchronized (handler) {
+            for (R result: results) {
+                long start = System.nanoTime();
+                try {
+                    handler.handle(result);
+                    handled++;
+                } catch (RuntimeException e) {
+                    System.err.println("Ignoring the result " + result + ". It could not be handled: " + e);
+                    metrics.addFailures(1);
+                }
+                metrics.record(Metrics.WRITE, start);
+            }
+        }
+        metrics.addImages(handled);
+        return handled;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics the metrics to record the stages in, e.g. shared with the decoder
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public Reader getReader() {
+        return reader;
+    }
+
+    /**
+     * @param reader reads the images, e.g. an {@link ImageFileIterator} reading images in archives.
+     *               By default they are read as plain files
+     */
+    public void setReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    public ByteBufferPool getReadBuffers() {
+        return readBuffers;
+    }
+
+    /**
+     * @param readBuffers the pool of direct buffers to read the images into, or null to read them to the heap
+     */
+    public void setReadBuffers(ByteBufferPool readBuffers) {
+        this.readBuffers = readBuffers;
+    }
+
+    public Decoder<D> getDecoder() {
+        return decoder;
+    }
+
+    public Classifier<D, R> getClassifier() {
+        return classifier;
+    }
+
+    public Cache<R> getCache() {
+        return cache;
+    }
+
+    /**
+     * @param cache the cache to look up images in and store results in, or null for no caching
+     */
+    public void setCache(Cache<R> cache) {
+        this.cache = cache;
+    }
+
+    public int getReaders() {
+        return readers;
+    }
+
+    public void setReaders(int readers) {
+        this.readers = checkPositive("readers", readers);
+    }
+
+    public int getDecoders() {
+        return decoders;
+    }
+
+    public void setDecoders(int decoders) {
+        this.decoders = checkPositive("decoders", decoders);
+    }
+
+    public int getInferers() {
+        return inferers;
+    }
+
+    public void setInferers(int inferers) {
+        this.inferers = checkPositive("inferers", inferers);
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * @param queueSize the max number of images waiting between two stages
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = checkPositive("queue-size", queueSize);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = checkPositive("batch-size", batchSize);
+    }
+
+    private static int checkPositive(String name, int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException("The " + name + " must be at least 1. Was " + value);
+        }
+        return value;
+    }
+
+    /**
+     * A file and its content at some stage of the pipeline. A file of null marks the end of the input.
+     */
+    private static class Item<T> {
+        private File file;
+        private T value;
+        private String key; // the cache key, if the pipeline has a cache
+
+        Item(File file, T value, String key) {
+            this.file = file;
+            this.value = value;
+            this.key = key;
+        }
+
+        static <T> Item<T> end() {
+            return new Item<T>(null, null, null);
+        }
+    }
+
+    /**
+     * A stage worker. If it is stopped by an unexpected exception, the other workers are stopped too,
+     * as the stages would otherwise wait for it forever.
+     */
+    private abstract static class Worker implements Runnable {
+        private ExecutorService executor;
+        private AtomicReference<Throwable> failure;
+
+        Worker(ExecutorService executor, AtomicReference<Throwable> failure) {
+            this.executor = executor;
+            this.failure = failure;
+        }
+
+        abstract void work() throws InterruptedException;
+
+        @Override
+        public void run() {
+            try {
+                work();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException | Error e) {
+                System.err.println("Pipeline worker stopped with exception: " + e);
+                failure.compareAndSet(null, e);
+                executor.shutdownNow();
+            }
+        }
+    }
+}
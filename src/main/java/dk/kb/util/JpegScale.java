@@ -0,0 +1,107 @@
+package dk.kb.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Chooses the scale a JPEG image is decoded at. libjpeg can decode directly to 1/2, 1/4 or 1/8 of the size of
+ * the image by scaling the DCT blocks, which is much cheaper than decoding the full image and shrinking it
+ * afterwards. The largest reduction is chosen that still gives at least the size of the model input, so the
+ * final resize only ever shrinks the image, as it did from the full size.
+ *
+ * The size of the image is read from the start-of-frame header, so only the header is parsed.
+ */
+public class JpegScale {
+    /**
+     * The reductions supported by libjpeg, both in TensorFlow's DecodeJpeg ratio and in OpenCV's IMREAD_REDUCED_*
+     */
+    public static final int[] DENOMINATORS = {1, 2, 4, 8};
+
+    /**
+     * @param jpeg the bytes of a JPEG image
+     * @return {width, height} of the image, or null if it is not a JPEG image or the header could not be found
+     */
+    public static int[] size(ByteBuffer jpeg) {
+        ByteBuffer in = jpeg.duplicate();
+        if (in.remaining() < 4 || (in.get() & 0xFF) != 0xFF || (in.get() & 0xFF) != 0xD8) {
+            return null;
+        }
+        while (in.remaining() >= 4) {
+            if ((in.get() & 0xFF) != 0xFF) {
+                return null; // not at a marker, so the segment lengths are inconsistent
+            }
+            int marker = in.get() & 0xFF;
+            while (marker == 0xFF && in.hasRemaining()) {
+                marker = in.get() & 0xFF; // fill bytes
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                continue; // markers without a segment
+            }
+            if (marker == 0xD9 || marker == 0xDA || in.remaining() < 2) {
+                return null; // the image data starts before any frame header
+            }
+            int length = in.getShort() & 0xFFFF;
+            if (isStartOfFrame(marker)) {
+                if (length < 7 || in.remaining() < 5) {
+                    return null;
+                }
+                in.get(); // sample precision
+                int height = in.getShort() & 0xFFFF;
+                int width = in.getShort() & 0xFFFF;
+                return width == 0 || height == 0 ? null : new int[] {width, height};
+            }
+            if (length < 2 || in.remaining() < length - 2) {
+                return null;
+            }
+            in.position(in.position() + length - 2);
+        }
+        return null;
+    }
+
+    /**
+     * @return the size of the image, see {@link #size(ByteBuffer)}
+     */
+    public static int[] size(byte[] jpeg) {
+        return size(ByteBuffer.wrap(jpeg));
+    }
+
+    /**
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param minWidth the least width the decoded image must have
+     * @param minHeight the least height the decoded image must have
+     * @return the largest of {@link #DENOMINATORS} for which the image decoded at 1/denominator of its size is
+     *         at least minWidth x minHeight, or 1 if the image is already smaller than that
+     */
+    public static int denominator(int width, int height, int minWidth, int minHeight) {
+        for (int i = DENOMINATORS.length - 1; i > 0; i--) {
+            int d = DENOMINATORS[i];
+            // libjpeg rounds the scaled size up
+            if ((width + d - 1) / d >= minWidth && (height + d - 1) / d >= minHeight) {
+                return d;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @param jpeg the bytes of a JPEG image
+     * @return the denominator to decode the image with, see {@link #denominator(int, int, int, int)}.
+     *         1 if the size of the image could not be read
+     */
+    public static int denominator(ByteBuffer jpeg, int minWidth, int minHeight) {
+        int[] size = size(jpeg);
+        return size == null ? 1 : denominator(size[0], size[1], minWidth, minHeight);
+    }
+
+    /**
+     * @return the denominator to decode the image with, see {@link #denominator(ByteBuffer, int, int)}
+     */
+    public static int denominator(byte[] jpeg, int minWidth, int minHeight) {
+        return denominator(ByteBuffer.wrap(jpeg), minWidth, minHeight);
+    }
+
+    // SOF0-SOF15, except DHT (C4), JPG (C8) and DAC (CC) which share the range
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+}
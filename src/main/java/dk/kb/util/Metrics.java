@@ -0,0 +1,317 @@
+package dk.kb.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms per stage and counters for a classification run, fed by the {@link ImagePipeline}
+ * and the engines. The stages are:
+ * <ul>
+ * <li>{@value #READ}: reading the image file</li>
+ * <li>{@value #DECODE}: turning the bytes into the input of the model, including resizing and normalization</li>
+ * <li>{@value #NORMALIZE}: the normalization part of decode, where the engine does it separately (DL4J).
+ *     For TensorFlow it is done in the same graph as the decoding</li>
+ * <li>{@value #INFERENCE}: running the model on a batch</li>
+ * <li>{@value #WRITE}: handing the results on, e.g. printing them or recording them in the journal</li>
+ * </ul>
+ * The metrics can be read over JMX after {@link #register(String)}, and written to the log and a CSV
+ * file at regular intervals after {@link #startReporting(long, File)}. Call {@link #close()} when done.
+ */
+public class Metrics implements MetricsMXBean, Closeable {
+    public static final String READ = "read";
+    public static final String DECODE = "decode";
+    public static final String NORMALIZE = "normalize";
+    public static final String INFERENCE = "inference";
+    public static final String WRITE = "write";
+    public static final long DEFAULT_REPORT_SECONDS = 10;
+
+    private static final String[] Stages = {READ, DECODE, NORMALIZE, INFERENCE, WRITE};
+    private static final double NanosPerMilli = 1e6;
+
+    private Map<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+    private AtomicLong images = new AtomicLong();
+    private AtomicLong bytesRead = new AtomicLong();
+    private AtomicLong cacheHits = new AtomicLong();
+    private AtomicLong failures = new AtomicLong();
+    private volatile long started = System.nanoTime();
+    private boolean running = false;
+    private ScheduledExecutorService reporter;
+    private File csv;
+    private ObjectName objectName;
+
+    public Metrics() {
+        for (String stage: Stages) {
+            histograms.put(stage, new Histogram());
+        }
+    }
+
+    /**
+     * Starts the clock of {@link #getImagesPerSecond()}, unless it is already started.
+     * Until then it counts from the creation of the metrics.
+     */
+    public synchronized void start() {
+        if (!running) {
+            running = true;
+            started = System.nanoTime();
+        }
+    }
+
+    /**
+     * Records the time spent in a stage, from startNanos until now
+     * @param startNanos the start of the stage, from System.nanoTime()
+     * @return now, from System.nanoTime(), for timing the next stage
+     */
+    public long record(String stage, long startNanos) {
+        long now = System.nanoTime();
+        getHistogram(stage).record(now - startNanos);
+        return now;
+    }
+
+    public Histogram getHistogram(String stage) {
+        Histogram histogram = histograms.get(stage);
+        if (histogram == null) {
+            throw new IllegalArgumentException("Unknown stage '" + stage + "'");
+        }
+        return histogram;
+    }
+
+    public void addImages(long count) {
+        images.addAndGet(count);
+    }
+
+    public void addBytesRead(long count) {
+        bytesRead.addAndGet(count);
+    }
+
+    public void addCacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    public void addFailures(long count) {
+        failures.addAndGet(count);
+    }
+
+    @Override
+    public long getImages() {
+        return images.get();
+    }
+
+    /**
+     * @return the number of images classified per second since {@link #start()}
+     */
+    @Override
+    public double getImagesPerSecond() {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        return seconds <= 0 ? 0 : images.get() / seconds;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Histogram> entry: histograms.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getCount());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getMeanMillis() {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Map.Entry<String, Histogram> entry: histograms.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getMean() / NanosPerMilli);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getP50Millis() {
+        return percentileMillis(50);
+    }
+
+    @Override
+    public Map<String, Double> getP90Millis() {
+        return percentileMillis(90);
+    }
+
+    @Override
+    public Map<String, Double> getP99Millis() {
+        return percentileMillis(99);
+    }
+
+    @Override
+    public Map<String, Double> getMaxMillis() {
+        return percentileMillis(100);
+    }
+
+    private Map<String, Double> percentileMillis(double percentile) {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Map.Entry<String, Histogram> entry: histograms.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getPercentile(percentile) / NanosPerMilli);
+        }
+        return result;
+    }
+
+    /**
+     * @return the counters and the latencies of the stages used, one line per stage
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%d images, %.1f images/sec, %.1f MB read, %d cache hits, %d failures",
+                getImages(), getImagesPerSecond(), getBytesRead() / 1e6, getCacheHits(), getFailures()));
+        for (Map.Entry<String, Histogram> entry: histograms.entrySet()) {
+            Histogram h = entry.getValue();
+            if (h.getCount() > 0) {
+                sb.append(String.format(Locale.ROOT, "%n  %-9s count=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                        entry.getKey(), h.getCount(), h.getMean() / NanosPerMilli, h.getPercentile(50) / NanosPerMilli,
+                        h.getPercentile(90) / NanosPerMilli, h.getPercentile(99) / NanosPerMilli, h.getMax() / NanosPerMilli));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Makes the metrics readable over JMX as dk.kb:type=Metrics,name=&lt;name&gt;, replacing earlier metrics of
+     * the same name. Failures are reported, but otherwise ignored.
+     */
+    public void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("dk.kb:type=Metrics,name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            System.err.println("Failed to register the metrics '" + name + "' with JMX: " + e);
+        }
+    }
+
+    /**
+     * Starts the reporting given by the options --metrics-interval=SECONDS and --metrics-csv=FILE.
+     * If only --metrics-csv is given, the interval is {@value #DEFAULT_REPORT_SECONDS} seconds.
+     */
+    public void startReporting(Options options) {
+        if (options.has("metrics-interval") || options.has("metrics-csv")) {
+            startReporting(TimeUnit.SECONDS.toMillis(options.getLong("metrics-interval", DEFAULT_REPORT_SECONDS)),
+                    options.has("metrics-csv") ? new File(options.get("metrics-csv", null)) : null);
+        }
+    }
+
+    /**
+     * Writes the metrics to System.out and a line to the CSV file every intervalMillis, until {@link #stopReporting()}.
+     * @param csv the CSV file to append to, or null
+     */
+    public synchronized void startReporting(long intervalMillis, File csv) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("The metrics interval must be positive. Was " + intervalMillis + "ms");
+        }
+        stopReporting();
+        this.csv = csv;
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-reporter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the reporting, and writes the final metrics to the CSV file
+     */
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+            if (csv != null) {
+                writeCsv();
+            }
+        }
+    }
+
+    /**
+     * Stops the reporting and unregisters the metrics from JMX
+     */
+    @Override
+    public synchronized void close() {
+        stopReporting();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // already unregistered
+            }
+            objectName = null;
+        }
+    }
+
+    private synchronized void report() {
+        System.out.println("Metrics: " + summary());
+        if (csv != null) {
+            writeCsv();
+        }
+    }
+
+    private void writeCsv() {
+        boolean header = !csv.exists() || csv.length() == 0;
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(csv, true), Charset.forName("UTF-8"))) {
+            if (header) {
+                writer.write("timestamp,seconds,images,imagesPerSecond,bytesRead,cacheHits,failures");
+                for (String stage: histograms.keySet()) {
+                    writer.write(String.format(",%1$sCount,%1$sMeanMs,%1$sP50Ms,%1$sP90Ms,%1$sP99Ms,%1$sMaxMs", stage));
+                }
+                writer.write('\n');
+            }
+            writer.write(String.format(Locale.ROOT, "%d,%.1f,%d,%.2f,%d,%d,%d", System.currentTimeMillis(),
+                    (System.nanoTime() - started) / 1e9, getImages(), getImagesPerSecond(), getBytesRead(), getCacheHits(), getFailures()));
+            for (Histogram h: histograms.values()) {
+                writer.write(String.format(Locale.ROOT, ",%d,%.3f,%.3f,%.3f,%.3f,%.3f", h.getCount(), h.getMean() / NanosPerMilli,
+                        h.getPercentile(50) / NanosPerMilli, h.getPercentile(90) / NanosPerMilli,
+                        h.getPercentile(99) / NanosPerMilli, h.getMax() / NanosPerMilli));
+            }
+            writer.write('\n');
+        } catch (IOException e) {
+            System.err.println("Failed to write metrics to '" + csv.getAbsolutePath() + "': " + e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package dk.kb.util;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link Metrics} of a classification run. The latency maps are keyed by stage.
+ */
+public interface MetricsMXBean {
+    long getImages();
+
+    double getImagesPerSecond();
+
+    long getBytesRead();
+
+    long getCacheHits();
+
+    long getFailures();
+
+    Map<String, Long> getCounts();
+
+    Map<String, Double> getMeanMillis();
+
+    Map<String, Double> getP50Millis();
+
+    Map<String, Double> getP90Millis();
+
+    Map<String, Double> getP99Millis();
+
+    Map<String, Double> getMaxMillis();
+}
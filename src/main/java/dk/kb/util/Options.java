@@ -0,0 +1,76 @@
+package dk.kb.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal command-line parser shared by the programs in this project.
+ * Arguments of the form --name=value or --name are options, all other arguments are
+ * positional arguments kept in the order given.
+ */
+public class Options {
+    private List<String> arguments = new ArrayList<String>();
+    private Map<String, String> options = new HashMap<String, String>();
+
+    public Options(String[] args) {
+        for (String arg: args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    options.put(arg.substring(2), "true");
+                } else {
+                    options.put(arg.substring(2, eq), arg.substring(eq + 1));
+                }
+            } else {
+                arguments.add(arg);
+            }
+        }
+    }
+
+    /**
+     * @return the positional arguments
+     */
+    public List<String> getArguments() {
+        return arguments;
+    }
+
+    public boolean has(String name) {
+        return options.containsKey(name);
+    }
+
+    public String get(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The option --" + name + " must be an integer. Was '" + value + "'");
+        }
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The option --" + name + " must be an integer. Was '" + value + "'");
+        }
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,319 @@
+package dk.kb.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An on-disk cache of classification results, so images that are unchanged since the last run
+ * are not decoded and classified again.
+ * An entry is the probability vector of an image, stored in a file named by the SHA-256 hash of the
+ * image bytes, under a directory named by the identity of the model. The model identity is a hash of
+ * the files making up the model, see {@link #modelId(String, File...)}.
+ *
+ * Several JVMs can use the same cache directory: entries are written to a temporary file and moved
+ * in place, so an entry is either complete or absent, and only one thread of one JVM evicts at a time.
+ * When the cache holds more than maxEntries entries, the least recently used entries are evicted
+ * until it is down to 90% of maxEntries.
+ */
+public class ResultCache {
+    public static final long DEFAULT_MAX_ENTRIES = 1000000;
+
+    private static final int Magic = 0x52435631; // "RCV1"
+    private static final String EntrySuffix = ".bin";
+    private static final String LockName = ".evict.lock";
+    private static final long TouchIntervalMillis = 60 * 60 * 1000L;
+    private static final int EvictionSampleSize = 10000;
+    // The file lock only keeps other JVMs out, as a JVM can not lock a file it has already locked
+    private static final AtomicBoolean Evicting = new AtomicBoolean(false);
+
+    private Path root;
+    private Path modelDir;
+    private long maxEntries;
+    private AtomicLong entries = new AtomicLong();
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param root the cache directory, shared by all models
+     * @param modelId the identity of the model whose results are cached
+     * @param maxEntries the max number of entries in the cache directory, for all models
+     */
+    public ResultCache(File root, String modelId, long maxEntries) throws IOException {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The cache size must be at least 1. Was " + maxEntries);
+        }
+        this.root = root.toPath();
+        this.modelDir = this.root.resolve(modelId);
+        this.maxEntries = maxEntries;
+        Files.createDirectories(modelDir);
+        entries.set(countEntries());
+    }
+
+    /**
+     * Makes a cache from the options --cache-dir and --cache-size.
+     * @return the cache, or null if no --cache-dir is given
+     */
+    public static ResultCache create(Options options, String modelId) throws IOException {
+        if (!options.has("cache-dir")) {
+            return null;
+        }
+        return new ResultCache(new File(options.get("cache-dir", null)), modelId,
+                options.getLong("cache-size", DEFAULT_MAX_ENTRIES));
+    }
+
+    /**
+     * @param version a description of anything besides the files affecting the results, e.g. the preprocessing
+     * @param files the files making up the model
+     * @return a hash identifying the model
+     */
+    public static String modelId(String version, File... files) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(version.getBytes(Charset.forName("UTF-8")));
+        byte[] buffer = new byte[65536];
+        for (File file: files) {
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return the key of the image with the given content
+     */
+    public String key(byte[] imageBytes) {
+        return toHex(sha256().digest(imageBytes));
+    }
+
+    /**
+     * @return the key of the image with the given content, the remaining bytes of the buffer
+     */
+    public String key(ByteBuffer imageBytes) {
+        MessageDigest digest = sha256();
+        digest.update(imageBytes.duplicate());
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return the probabilities stored for the key, or null if not in the cache
+     */
+    public float[] get(String key) {
+        Path entry = entryPath(key);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(entry));
+            if (buffer.remaining() < 8 || buffer.getInt() != Magic || buffer.getInt() * 4 != buffer.remaining()) {
+                System.err.println("Removing corrupt cache entry '" + entry + "'");
+                Files.deleteIfExists(entry);
+                misses.incrementAndGet();
+                return null;
+            }
+            float[] probabilities = new float[buffer.remaining() / 4];
+            buffer.asFloatBuffer().get(probabilities);
+            touch(entry);
+            hits.incrementAndGet();
+            return probabilities;
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return null;
+        } catch (IOException e) {
+            System.err.println("Failed to read cache entry '" + entry + "': " + e);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the probabilities for the key. Failures are reported, but otherwise ignored.
+     */
+    public void put(String key, float[] probabilities) {
+        Path entry = entryPath(key);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + probabilities.length * 4);
+        buffer.putInt(Magic).putInt(probabilities.length);
+        buffer.asFloatBuffer().put(probabilities);
+        boolean existed;
+        try {
+            existed = Files.exists(entry);
+            Files.createDirectories(entry.getParent());
+            Path tmp = Files.createTempFile(entry.getParent(), key, ".tmp");
+            Files.write(tmp, buffer.array());
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write cache entry '" + entry + "': " + e);
+            return;
+        }
+        if (!existed && entries.incrementAndGet() > maxEntries) {
+            evict();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is down to 90% of maxEntries.
+     * The recently used time of the entries is estimated from a sample, so memory use does not
+     * depend on the size of the cache. If another thread or JVM is evicting, nothing is done.
+     */
+    public void evict() {
+        if (!Evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            evictLocked();
+        } finally {
+            Evicting.set(false);
+        }
+    }
+
+    private void evictLocked() {
+        try (FileChannel channel = new RandomAccessFile(root.resolve(LockName).toFile(), "rw").getChannel();
+                FileLock lock = channel.tryLock()) {
+            if (lock == null) {
+                return;
+            }
+            final long[] sample = new long[EvictionSampleSize];
+            final Random random = new Random();
+            final long[] count = new long[] {0};
+            walkEntries(new EntryVisitor() {
+                @Override
+                void visit(Path entry, BasicFileAttributes attrs) {
+                    // Reservoir sampling of the last modified times
+                    long n = count[0]++;
+                    if (n < sample.length) {
+                        sample[(int) n] = attrs.lastModifiedTime().toMillis();
+                    } else {
+                        long j = (long) (random.nextDouble() * (n + 1));
+                        if (j < sample.length) {
+                            sample[(int) j] = attrs.lastModifiedTime().toMillis();
+                        }
+                    }
+                }
+            });
+            long target = maxEntries * 9 / 10;
+            if (count[0] <= target) {
+                entries.set(count[0]);
+                return;
+            }
+            int sampled = (int) Math.min(count[0], sample.length);
+            Arrays.sort(sample, 0, sampled);
+            final long cutoff = sample[(int) ((count[0] - target) * sampled / count[0])];
+            final long[] remaining = new long[] {0};
+            walkEntries(new EntryVisitor() {
+                @Override
+                void visit(Path entry, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.lastModifiedTime().toMillis() < cutoff) {
+                        Files.deleteIfExists(entry);
+                    } else {
+                        remaining[0]++;
+                    }
+                }
+            });
+            entries.set(remaining[0]);
+        } catch (OverlappingFileLockException e) {
+            // Locked by this JVM through another class loader
+        } catch (IOException e) {
+            System.err.println("Failed to evict entries from the cache '" + root + "': " + e);
+        }
+    }
+
+    private Path entryPath(String key) {
+        return modelDir.resolve(key.substring(0, 2)).resolve(key + EntrySuffix);
+    }
+
+    /**
+     * Updates the last modified time used for eviction, at most once per TouchIntervalMillis to avoid a write per hit
+     */
+    private void touch(Path entry) throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - Files.getLastModifiedTime(entry).toMillis() > TouchIntervalMillis) {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(now));
+        }
+    }
+
+    private long countEntries() throws IOException {
+        final long[] count = new long[] {0};
+        walkEntries(new EntryVisitor() {
+            @Override
+            void visit(Path entry, BasicFileAttributes attrs) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    private void walkEntries(final EntryVisitor visitor) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (file.getFileName().toString().endsWith(EntrySuffix)) {
+                    try {
+                        visitor.visit(file, attrs);
+                    } catch (NoSuchFileException e) {
+                        // Removed by another JVM
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // Entries may be removed by another JVM while walking
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private abstract static class EntryVisitor {
+        abstract void visit(Path entry, BasicFileAttributes attrs) throws IOException;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b: bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,364 @@
+package dk.kb.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Streams the results of a classification run to a file as they are produced, so nothing is held in memory.
+ * Each row is the path of an image relative to a base directory, its most probable label with the probability,
+ * and the probabilities of all the labels. The formats are
+ * <ul>
+ * <li>csv: a header line "path,label,score,&lt;label 1&gt;,&lt;label 2&gt;,..." and a line per image</li>
+ * <li>jsonl: a JSON object per line, {"path":"a/b.jpg","label":"front","score":0.9,"probabilities":[0.9,0.1]}</li>
+ * <li>binary: a header of the int {@value #MAGIC}, the number of labels and the labels (DataOutput.writeUTF),
+ *     then per image the path (writeUTF) and the probabilities as floats. See {@link #readBinary(File, RunJournal.Replay)}</li>
+ * </ul>
+ * The output is buffered and flushed to disk every flushInterval rows and every flushMillis milliseconds.
+ * An existing file is appended to, so a run resumed with a {@link RunJournal} continues the output of the
+ * earlier run. A last row only partially written before the JVM died is removed when reopening, and the
+ * sink should be given to {@link RunJournal#setOutput(Flushable)}, so it is flushed before the journal and
+ * every image in the journal has its row in the output. Rows written after the last flush of the journal
+ * may then appear twice.
+ */
+public class ResultSink implements Closeable, Flushable {
+    public static final int MAGIC = 0x52535631; // "RSV1"
+    public static final int DEFAULT_FLUSH_INTERVAL = 1000;
+    public static final long DEFAULT_FLUSH_MILLIS = 1000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BufferSize = 1 << 16;
+
+    public enum Format {
+        CSV, JSONL, BINARY;
+
+        /**
+         * @return the format given by the extension of the file: .jsonl or .json for JSONL, .bin for BINARY and otherwise CSV
+         */
+        public static Format fromFile(File file) {
+            String name = file.getName().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".jsonl") || name.endsWith(".json")) {
+                return JSONL;
+            }
+            return name.endsWith(".bin") ? BINARY : CSV;
+        }
+    }
+
+    private File file;
+    private Format format;
+    private String[] labels;
+    private String prefix;
+    private FileOutputStream out;
+    private Writer writer;
+    private DataOutputStream data;
+    private StringBuilder line = new StringBuilder();
+    private int flushInterval;
+    private long flushMillis;
+    private int unflushed = 0;
+    private long lastFlush = System.currentTimeMillis();
+    private long rows = 0;
+
+    /**
+     * @param labels the labels, in the order of the probabilities
+     * @param baseDir the directory the paths are written relative to, or null for absolute paths
+     * @param flushInterval the max number of rows between flushes
+     * @param flushMillis the max number of milliseconds between flushes
+     */
+    public ResultSink(File file, Format format, String[] labels, File baseDir, int flushInterval, long flushMillis) throws IOException {
+        this.file = file;
+        this.format = format;
+        this.labels = labels;
+        this.prefix = baseDir == null ? null : baseDir.getAbsolutePath() + File.separator;
+        this.flushInterval = flushInterval;
+        this.flushMillis = flushMillis;
+        if (file.exists() && file.length() > 0) {
+            truncatePartialLastRow();
+        }
+        boolean append = file.length() > 0;
+        if (append && format == Format.BINARY) {
+            String[] existing = readBinaryHeader(file);
+            if (!Arrays.equals(existing, labels)) {
+                throw new IOException("The labels " + Arrays.toString(existing) + " of the existing output '"
+                        + file.getAbsolutePath() + "' differ from " + Arrays.toString(labels));
+            }
+        }
+        out = new FileOutputStream(file, true);
+        BufferedOutputStream buffered = new BufferedOutputStream(out, BufferSize);
+        if (format == Format.BINARY) {
+            data = new DataOutputStream(buffered);
+            if (!append) {
+                data.writeInt(MAGIC);
+                data.writeInt(labels.length);
+                for (String label: labels) {
+                    data.writeUTF(label);
+                }
+            }
+        } else {
+            writer = new BufferedWriter(new OutputStreamWriter(buffered, UTF8), BufferSize);
+            if (!append && format == Format.CSV) {
+                line.append("path,label,score");
+                for (String label: labels) {
+                    line.append(',');
+                    appendCsv(label);
+                }
+                writer.append(line).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Opens the sink given by the options --output=FILE, --output-format=csv|jsonl|binary (by default given by the
+     * extension of the file, see {@link Format#fromFile(File)}) and --output-flush=N rows.
+     * @param baseDir the directory the paths are written relative to, or null for absolute paths
+     * @return the sink, or null if no --output is given
+     */
+    public static ResultSink create(Options options, String[] labels, File baseDir) throws IOException {
+        if (!options.has("output")) {
+            return null;
+        }
+        File file = new File(options.get("output", null));
+        Format format = options.has("output-format") ?
+                Format.valueOf(options.get("output-format", null).toUpperCase(Locale.ROOT)) : Format.fromFile(file);
+        return new ResultSink(file, format, labels, baseDir, options.getInt("output-flush", DEFAULT_FLUSH_INTERVAL),
+                DEFAULT_FLUSH_MILLIS);
+    }
+
+    /**
+     * Writes the result of an image
+     * @param name the path of the image
+     * @param probabilities the probabilities of the labels
+     */
+    public synchronized void write(String name, float[] probabilities) throws IOException {
+        if (probabilities.length != labels.length) {
+            throw new IllegalArgumentException("Expected " + labels.length + " probabilities for '" + name + "', got "
+                    + probabilities.length);
+        }
+        String path = prefix != null && name.startsWith(prefix) ? name.substring(prefix.length()) : name;
+        if (format == Format.BINARY) {
+            data.writeUTF(path);
+            for (float p: probabilities) {
+                data.writeFloat(p);
+            }
+        } else {
+            int best = 0;
+            for (int i = 1; i < probabilities.length; i++) {
+                if (probabilities[i] > probabilities[best]) {
+                    best = i;
+                }
+            }
+            line.setLength(0);
+            if (format == Format.CSV) {
+                appendCsv(path);
+                line.append(',');
+                appendCsv(labels[best]);
+                line.append(',').append(probabilities[best]);
+                for (float p: probabilities) {
+                    line.append(',').append(p);
+                }
+            } else {
+                line.append("{\"path\":");
+                appendJson(path);
+                line.append(",\"label\":");
+                appendJson(labels[best]);
+                line.append(",\"score\":").append(probabilities[best]).append(",\"probabilities\":[");
+                for (int i = 0; i < probabilities.length; i++) {
+                    line.append(i == 0 ? "" : ",").append(probabilities[i]);
+                }
+                line.append("]}");
+            }
+            writer.append(line).append('\n');
+        }
+        rows++;
+        unflushed++;
+        if (unflushed >= flushInterval || System.currentTimeMillis() - lastFlush >= flushMillis) {
+            flush();
+        }
+    }
+
+    /**
+     * @return the number of rows written by this sink
+     */
+    public synchronized long getRows() {
+        return rows;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the rows to disk
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (data != null) {
+            data.flush();
+        } else {
+            writer.flush();
+        }
+        out.getFD().sync();
+        unflushed = 0;
+        lastFlush = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (data != null) {
+            data.close();
+        } else {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads the rows of a file in the binary format
+     * @return the labels of the file
+     */
+    public static String[] readBinary(File file, RunJournal.Replay replay) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BufferSize))) {
+            String[] labels = readHeader(in, file);
+            while (true) {
+                String path;
+                try {
+                    path = in.readUTF();
+                } catch (EOFException e) {
+                    return labels;
+                }
+                float[] probabilities = new float[labels.length];
+                for (int i = 0; i < probabilities.length; i++) {
+                    probabilities[i] = in.readFloat();
+                }
+                replay.replay(path, probabilities);
+            }
+        }
+    }
+
+    /**
+     * Removes a last row only partially written before the JVM died. In the text formats that is the text after
+     * the last newline, in the binary format the bytes after the last complete record, or the whole file if
+     * the header is not complete
+     */
+    private void truncatePartialLastRow() throws IOException {
+        long end = format == Format.BINARY ? completeBinaryLength() : 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (format != Format.BINARY) {
+                end = raf.length();
+                while (end > 0) {
+                    raf.seek(end - 1);
+                    if (raf.read() == '\n') {
+                        break;
+                    }
+                    end--;
+                }
+            }
+            if (end < raf.length()) {
+                System.err.println("Removing the partially written last row of '" + file.getAbsolutePath() + "'");
+                raf.setLength(end);
+            }
+        }
+    }
+
+    /**
+     * @return the length of the header and the complete records of the binary file
+     */
+    private long completeBinaryLength() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BufferSize))) {
+            String[] existing;
+            try {
+                existing = readHeader(in, file);
+            } catch (EOFException e) {
+                return 0;
+            }
+            long end = 8;
+            for (String label: existing) {
+                end += utfLength(label);
+            }
+            while (true) {
+                try {
+                    long record = utfLength(in.readUTF());
+                    for (int i = 0; i < existing.length; i++) {
+                        in.readFloat();
+                    }
+                    end += record + 4L * existing.length;
+                } catch (EOFException e) {
+                    return end;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes written by DataOutput.writeUTF for the value
+     */
+    private static int utfLength(String value) {
+        int length = 2;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+
+    private static String[] readBinaryHeader(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return readHeader(in, file);
+        }
+    }
+
+    private static String[] readHeader(DataInputStream in, File file) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("'" + file.getAbsolutePath() + "' is not a binary result file");
+        }
+        String[] labels = new String[in.readInt()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = in.readUTF();
+        }
+        return labels;
+    }
+
+    private void appendCsv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                line.append('"');
+            }
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    private void appendJson(String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+}
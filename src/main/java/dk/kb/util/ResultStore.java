@@ -0,0 +1,241 @@
+package dk.kb.util;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The top-K labels of a classification run, stored column by column in primitive arrays instead of an object
+ * per image: for each image, the input id, its name as UTF-8 bytes, the indexes of its K most probable labels
+ * and their probabilities. Adding an image allocates nothing, except a new page every {@value #PageRows} images,
+ * so the memory used is about 12 + 8*K bytes plus the length of the name per image, e.g. 10 million images
+ * with K=3 and 30 character names take about 660MB.
+ *
+ * The input id of an image is the order in which it was added, from 0.
+ * A ResultStore is not thread safe. The {@link ImagePipeline} calls its result handler from one thread at a time.
+ */
+public class ResultStore {
+    public static final int DEFAULT_K = 3;
+
+    private static final int PageBits = 16;
+    static final int PageRows = 1 << PageBits;
+    private static final int PageMask = PageRows - 1;
+    private static final int NamePageBytes = 1 << 20;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private int k;
+    private int size = 0;
+    private int[][] labelPages = new int[0][];
+    private float[][] scorePages = new float[0][];
+    private long[][] nameStartPages = new long[0][]; // the name page in the high 32 bits, the offset in the low
+    private int[][] nameLengthPages = new int[0][];
+    private byte[][] namePages = new byte[0][];
+    private int nameOffset = 0;
+    private int[] topLabels;
+    private float[] topScores;
+
+    /**
+     * @param k the number of labels kept per image
+     */
+    public ResultStore(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("At least 1 label must be kept per image. Was " + k);
+        }
+        this.k = k;
+        this.topLabels = new int[k];
+        this.topScores = new float[k];
+    }
+
+    /**
+     * Adds the K best labels of an image.
+     * @param name the name of the image, e.g. its path
+     * @param probabilities the probabilities of the labels of the image, starting at offset
+     * @param labels the number of labels
+     * @return the input id of the image
+     */
+    public int add(CharSequence name, float[] probabilities, int offset, int labels) {
+        if (size == Integer.MAX_VALUE) {
+            throw new IllegalStateException("The store is full with " + size + " images");
+        }
+        int row = size & PageMask;
+        if (row == 0) {
+            addPage();
+        }
+        int page = size >>> PageBits;
+        int found = topK(probabilities, offset, labels, k, topLabels, topScores);
+        int[] labelPage = labelPages[page];
+        float[] scorePage = scorePages[page];
+        for (int rank = 0; rank < k; rank++) {
+            labelPage[row * k + rank] = rank < found ? topLabels[rank] : -1;
+            scorePage[row * k + rank] = rank < found ? topScores[rank] : 0;
+        }
+        addName(page, row, name);
+        return size++;
+    }
+
+    /**
+     * Adds the K best labels of an image.
+     * @return the input id of the image
+     */
+    public int add(CharSequence name, float[] probabilities) {
+        return add(name, probabilities, 0, probabilities.length);
+    }
+
+    private void addPage() {
+        int pages = labelPages.length + 1;
+        labelPages = Arrays.copyOf(labelPages, pages);
+        scorePages = Arrays.copyOf(scorePages, pages);
+        nameStartPages = Arrays.copyOf(nameStartPages, pages);
+        nameLengthPages = Arrays.copyOf(nameLengthPages, pages);
+        labelPages[pages - 1] = new int[PageRows * k];
+        scorePages[pages - 1] = new float[PageRows * k];
+        nameStartPages[pages - 1] = new long[PageRows];
+        nameLengthPages[pages - 1] = new int[PageRows];
+    }
+
+    // Encodes the name as UTF-8 directly into the name pages. A name never spans two pages
+    private void addName(int page, int row, CharSequence name) {
+        int length = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < name.length() && Character.isLowSurrogate(name.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        if (namePages.length == 0 || nameOffset + length > namePages[namePages.length - 1].length) {
+            namePages = Arrays.copyOf(namePages, namePages.length + 1);
+            namePages[namePages.length - 1] = new byte[Math.max(NamePageBytes, length)];
+            nameOffset = 0;
+        }
+        byte[] bytes = namePages[namePages.length - 1];
+        nameStartPages[page][row] = ((long) (namePages.length - 1) << 32) | nameOffset;
+        nameLengthPages[page][row] = length;
+        int pos = nameOffset;
+        for (int i = 0; i < name.length(); i++) {
+            int c = name.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < name.length() && Character.isLowSurrogate(name.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, name.charAt(++i));
+            } else if (Character.isSurrogate((char) c)) {
+                c = 0xFFFD; // an unpaired surrogate is replaced, as by String.getBytes
+            }
+            if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xC0 | c >> 6);
+                bytes[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (c < 0x10000) {
+                bytes[pos++] = (byte) (0xE0 | c >> 12);
+                bytes[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[pos++] = (byte) (0x80 | c & 0x3F);
+            } else {
+                bytes[pos++] = (byte) (0xF0 | c >> 18);
+                bytes[pos++] = (byte) (0x80 | c >> 12 & 0x3F);
+                bytes[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        nameOffset = pos;
+    }
+
+    /**
+     * @return the number of images added
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of labels kept per image
+     */
+    public int getK() {
+        return k;
+    }
+
+    public String getName(int id) {
+        check(id);
+        long start = nameStartPages[id >>> PageBits][id & PageMask];
+        return new String(namePages[(int) (start >>> 32)], (int) start, nameLengthPages[id >>> PageBits][id & PageMask], UTF8);
+    }
+
+    /**
+     * @param rank 0 for the most probable label, 1 for the runner-up and so on
+     * @return the index of the label, or -1 if the image has fewer than rank+1 labels
+     */
+    public int getLabel(int id, int rank) {
+        check(id);
+        return labelPages[id >>> PageBits][(id & PageMask) * k + rank];
+    }
+
+    /**
+     * @param rank 0 for the most probable label, 1 for the runner-up and so on
+     * @return the probability of the label, or 0 if the image has fewer than rank+1 labels
+     */
+    public float getScore(int id, int rank) {
+        check(id);
+        return scorePages[id >>> PageBits][(id & PageMask) * k + rank];
+    }
+
+    /**
+     * @return the number of images whose most probable label is the given label
+     */
+    public int count(int label) {
+        int count = 0;
+        for (int id = 0; id < size; id++) {
+            if (getLabel(id, 0) == label) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the approximate number of bytes used by the store
+     */
+    public long getMemoryBytes() {
+        long bytes = (long) labelPages.length * PageRows * (8L * k + 12);
+        for (byte[] names: namePages) {
+            bytes += names.length;
+        }
+        return bytes;
+    }
+
+    private void check(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("No image with id " + id + " among " + size + " images");
+        }
+    }
+
+    /**
+     * Finds the k highest probabilities of an image by insertion into the k best so far, so it takes
+     * O(labels * k) time and allocates nothing, whatever the number of labels.
+     * @param probabilities the probabilities of the labels of the image, starting at offset
+     * @param labels the number of labels
+     * @param topLabels receives the label indexes of the k highest probabilities, highest first
+     * @param topScores receives the k highest probabilities, highest first
+     * @return the number of labels found, the smaller of k and labels
+     */
+    public static int topK(float[] probabilities, int offset, int labels, int k, int[] topLabels, float[] topScores) {
+        int found = 0;
+        for (int j = 0; j < labels; j++) {
+            float score = probabilities[offset + j];
+            if (found == k && score <= topScores[k - 1]) {
+                continue;
+            }
+            int pos = found < k ? found++ : k - 1;
+            while (pos > 0 && topScores[pos - 1] < score) {
+                topScores[pos] = topScores[pos - 1];
+                topLabels[pos] = topLabels[pos - 1];
+                pos--;
+            }
+            topScores[pos] = score;
+            topLabels[pos] = j;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,268 @@
+package dk.kb.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An append-only journal of the images completed in a classification run, with their probabilities,
+ * so a run that is stopped can be restarted without classifying the completed images again.
+ * Each line is the name of an image and its probabilities separated by a tab. The journal is flushed
+ * to disk every flushInterval entries and every flushMillis milliseconds, so at most the entries since
+ * the last flush are lost if the JVM dies. A partially written last line is removed when reopening.
+ * The completed images are held in memory as 64 bit hashes of their names, 11 to 21 bytes per image,
+ * so a run of millions of images does not hold their paths. Two names with the same hash would make the
+ * second one count as completed, which is unlikely before billions of images.
+ */
+public class RunJournal implements Closeable {
+    public static final int DEFAULT_FLUSH_INTERVAL = 1000;
+    public static final long DEFAULT_FLUSH_MILLIS = 10000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the entries of the journal
+     */
+    public interface Replay {
+        void replay(String name, float[] probabilities);
+    }
+
+    private File file;
+    private LongSet done = new LongSet();
+    private FileOutputStream out;
+    private BufferedWriter writer;
+    private int flushInterval;
+    private long flushMillis;
+    private int unflushed = 0;
+    private long lastFlush = System.currentTimeMillis();
+    private Flushable output;
+
+    /**
+     * Opens the journal, reading the entries of an earlier run if the file exists.
+     * @param file the journal file
+     * @param flushInterval the max number of entries between flushes
+     * @param flushMillis the max number of milliseconds between flushes
+     */
+    public RunJournal(File file, int flushInterval, long flushMillis) throws IOException {
+        this.file = file;
+        this.flushInterval = flushInterval;
+        this.flushMillis = flushMillis;
+        if (file.exists()) {
+            truncatePartialLastLine();
+            replay(new Replay() {
+                @Override
+                public void replay(String name, float[] probabilities) {
+                    done.add(LongSet.hash(name));
+                }
+            });
+        }
+        out = new FileOutputStream(file, true);
+        writer = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+    }
+
+    /**
+     * Opens the journal given by the option --journal, flushed every --journal-flush entries.
+     * @return the journal, or null if no --journal is given
+     */
+    public static RunJournal create(Options options) throws IOException {
+        if (!options.has("journal")) {
+            return null;
+        }
+        RunJournal journal = new RunJournal(new File(options.get("journal", null)),
+                options.getInt("journal-flush", DEFAULT_FLUSH_INTERVAL), DEFAULT_FLUSH_MILLIS);
+        if (journal.size() > 0) {
+            System.out.println("Resuming run with " + journal.size() + " images already completed according to the journal '"
+                    + journal.file.getAbsolutePath() + "'");
+        }
+        return journal;
+    }
+
+    /**
+     * @return the number of images completed
+     */
+    public synchronized int size() {
+        return done.size();
+    }
+
+    public synchronized boolean isDone(String name) {
+        return done.contains(LongSet.hash(name));
+    }
+
+    /**
+     * Records an image as completed
+     */
+    public synchronized void record(String name, float[] probabilities) throws IOException {
+        if (!done.add(LongSet.hash(name))) {
+            return;
+        }
+        writer.write(escape(name));
+        writer.write('\t');
+        for (int i = 0; i < probabilities.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(Float.toString(probabilities[i]));
+        }
+        writer.write('\n');
+        unflushed++;
+        if (unflushed >= flushInterval || System.currentTimeMillis() - lastFlush >= flushMillis) {
+            flush();
+        }
+    }
+
+    /**
+     * @param output the output of the run, e.g. a {@link ResultSink}, flushed before each flush of the journal,
+     *        so the output of every image recorded in the journal is on disk
+     */
+    public synchronized void setOutput(Flushable output) {
+        this.output = output;
+    }
+
+    /**
+     * Writes the recorded entries to disk
+     */
+    public synchronized void flush() throws IOException {
+        if (output != null) {
+            output.flush();
+        }
+        writer.flush();
+        out.getFD().sync();
+        unflushed = 0;
+        lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads the entries written to the journal file, including those of earlier runs
+     */
+    public void replay(Replay replay) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                float[] probabilities;
+                try {
+                    String[] values = line.substring(tab + 1).split(",");
+                    probabilities = new float[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        probabilities[i] = Float.parseFloat(values[i]);
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring malformed line in the journal '" + file.getAbsolutePath() + "': " + line);
+                    continue;
+                }
+                replay.replay(unescape(line.substring(0, tab)), probabilities);
+            }
+        }
+    }
+
+    /**
+     * @return a filter accepting the files not already completed according to the journal
+     */
+    public FileFilter notDone() {
+        return new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return !isDone(file.getAbsolutePath());
+            }
+        };
+    }
+
+    /**
+     * @return an iterator over the files not already completed according to the journal. If the files are from an
+     *         {@link ImageFileIterator}, the completed archive entries are skipped there, without reading them
+     */
+    public Iterator<File> skipDone(final Iterator<File> files) {
+        if (files instanceof ImageFileIterator) {
+            ((ImageFileIterator) files).setFilter(notDone());
+        }
+        return new Iterator<File>() {
+            private File next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && files.hasNext()) {
+                    File candidate = files.next();
+                    if (!isDone(candidate.getAbsolutePath())) {
+                        next = candidate;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public File next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                File result = next;
+                next = null;
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        writer.close();
+    }
+
+    /**
+     * Removes a last line only partially written before the JVM died
+     */
+    private void truncatePartialLastLine() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long end = raf.length();
+            while (end > 0) {
+                raf.seek(end - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                end--;
+            }
+            if (end < raf.length()) {
+                raf.setLength(end);
+            }
+        }
+    }
+
+    private static String escape(String name) {
+        return name.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String name) {
+        if (name.indexOf('\\') < 0) {
+            return name;
+        }
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '\\' && i + 1 < name.length()) {
+                char n = name.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,113 @@
+package dk.kb.deeplearning4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.datavec.api.io.labels.ParentPathLabelGenerator;
+import org.datavec.api.split.CollectionInputSplit;
+import org.datavec.api.split.FileSplit;
+import org.datavec.api.split.InputSplit;
+import org.datavec.image.recordreader.ImageRecordReader;
+import org.datavec.image.transform.FlipImageTransform;
+import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+public class ImageShardsTest extends TestCase {
+    private File dataset;
+    private InputSplit split;
+    private ParentPathLabelGenerator labelMaker = new ParentPathLabelGenerator();
+
+    @Override
+    protected void setUp() throws IOException {
+        dataset = new File(Files.createTempDirectory("shards").toFile(), "dataset");
+        new File(dataset, "back").mkdirs();
+        new File(dataset, "front").mkdirs();
+        UseModelTest.createImages(new File(dataset, "back"), 3);
+        UseModelTest.createImages(new File(dataset, "front"), 2);
+        // As the samples TrainFrontBackNetwork trains on, the split has a fixed order
+        split = new CollectionInputSplit(Arrays.asList(new FileSplit(dataset, new String[] {"jpg"}, new Random(42)).locations()));
+    }
+
+    public void testShardsMatchRecordReader() throws Exception {
+        ImageRecordReader recordReader = new ImageRecordReader(600, 400, 1, labelMaker);
+        recordReader.initialize(split);
+        List<String> labels = recordReader.getLabels();
+        DataSetIterator expected = new RecordReaderDataSetIterator(recordReader, 2, 1, labels.size());
+
+        try (ImageShards shards = ImageShards.forDataset(dataset, 600, 400, 1)) {
+            int[] records = shards.add(split, labelMaker);
+            assertEquals(5, records.length);
+            DataSetIterator actual = new ShardDataSetIterator(shards, records, labels, 2, null);
+            for (int epoch = 0; epoch < 2; epoch++) {
+                int batches = 0;
+                while (expected.hasNext()) {
+                    DataSet e = expected.next();
+                    DataSet a = actual.next();
+                    assertEquals(e.getFeatures(), a.getFeatures());
+                    assertEquals(e.getLabels(), a.getLabels());
+                    batches++;
+                }
+                assertFalse(actual.hasNext());
+                assertEquals(3, batches);
+                expected.reset();
+                actual.reset();
+            }
+        }
+    }
+
+    public void testImagesAreDecodedOnce() throws Exception {
+        File dir;
+        int[] records;
+        try (ImageShards shards = ImageShards.forDataset(dataset, 600, 400, 1)) {
+            dir = shards.getDir();
+            records = shards.add(split, labelMaker);
+            assertTrue("Adding again decodes nothing", Arrays.equals(records, shards.add(split, labelMaker)));
+        }
+        try (ImageShards shards = ImageShards.forDataset(dataset, 600, 400, 1)) {
+            assertEquals(5, shards.size());
+            assertTrue("Reopened shards decode nothing", Arrays.equals(records, shards.add(split, labelMaker)));
+
+            File changed = new File(split.locations()[0]);
+            assertTrue(changed.setLastModified(changed.lastModified() - 10000));
+            int[] again = shards.add(split, labelMaker);
+            assertEquals(6, shards.size());
+            assertEquals(5, again[0]);
+            assertEquals(shards.getLabel(records[0]), shards.getLabel(again[0]));
+        }
+        try {
+            new ImageShards(dir, 300, 200, 1);
+            fail("Shards of another size should not be opened");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testTransformsApplyToCachedPixels() throws Exception {
+        try (ImageShards shards = ImageShards.forDataset(dataset, 600, 400, 1)) {
+            int[] records = shards.add(split, labelMaker);
+            List<String> labels = Arrays.asList("back", "front");
+            DataSet plain = new ShardDataSetIterator(shards, records, labels, 5, null).next();
+            // Flip mode 1 flips around the vertical axis
+            DataSet flipped = new ShardDataSetIterator(shards, records, labels, 5, new FlipImageTransform(1)).next();
+            assertEquals(plain.getLabels(), flipped.getLabels());
+            assertTrue(Arrays.equals(plain.getFeatures().shape(), flipped.getFeatures().shape()));
+            assertEquals(plain.getFeatures().getFloat(new int[] {2, 0, 10, 0}), flipped.getFeatures().getFloat(new int[] {2, 0, 10, 399}));
+            assertEquals(sum(plain.getFeatures().data().asFloat()), sum(flipped.getFeatures().data().asFloat()), 1e-3);
+        }
+    }
+
+    private static double sum(float[] values) {
+        double sum = 0;
+        for (float value: values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,70 @@
+package dk.kb.deeplearning4j;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.deeplearning4j.datasets.iterator.ExistingDataSetIterator;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class ParallelTrainerTest extends TestCase {
+
+    public void testSingleWorkerTrainsAsFit() {
+        List<DataSet> batches = TrainingFixtures.batches(6, new Random(1));
+        MultiLayerNetwork expected = TrainingFixtures.network();
+        for (DataSet batch: batches) {
+            expected.fit(batch);
+        }
+        MultiLayerNetwork actual = TrainingFixtures.network();
+        try (ParallelTrainer trainer = new ParallelTrainer(actual, 1, 3)) {
+            trainer.fit(new ExistingDataSetIterator(batches));
+        }
+        assertEquals(expected.params(), actual.params());
+    }
+
+    public void testAveragesReplicas() {
+        List<DataSet> batches = TrainingFixtures.batches(2, new Random(2));
+        MultiLayerNetwork first = TrainingFixtures.network();
+        MultiLayerNetwork second = TrainingFixtures.network();
+        first.fit(batches.get(0));
+        second.fit(batches.get(1));
+        INDArray params = first.params().add(second.params()).divi(2);
+        INDArray state = first.getUpdater().getStateViewArray().add(second.getUpdater().getStateViewArray()).divi(2);
+
+        MultiLayerNetwork network = TrainingFixtures.network();
+        try (ParallelTrainer trainer = new ParallelTrainer(network, 2, 1)) {
+            trainer.fit(new ExistingDataSetIterator(batches));
+            assertTrue(trainer.summary(), trainer.summary().contains("averaged 1 times"));
+        }
+        assertTrue(params.equalsWithEps(network.params(), 1e-6));
+        assertTrue(state.equalsWithEps(network.getUpdater().getStateViewArray(), 1e-6));
+    }
+
+    public void testParallelTrainingLearns() {
+        Random random = new Random(3);
+        MultiLayerNetwork network = TrainingFixtures.network();
+        DataSet test = TrainingFixtures.batches(1, random).get(0);
+        double before = network.score(test);
+        try (ParallelTrainer trainer = new ParallelTrainer(network, 4, 2)) {
+            for (int epoch = 0; epoch < 5; epoch++) {
+                trainer.fit(new ExistingDataSetIterator(TrainingFixtures.batches(20, random)));
+            }
+        }
+        assertTrue("The score should improve from " + before, network.score(test) < before / 2);
+    }
+
+    public void testWorkerFailuresAreThrown() {
+        DataSet wrong = new DataSet(Nd4j.ones(2, 7), Nd4j.ones(2, 2));
+        try (ParallelTrainer trainer = new ParallelTrainer(TrainingFixtures.network(), 2, 1)) {
+            trainer.fit(new ExistingDataSetIterator(Arrays.asList(wrong)));
+            fail("A minibatch of the wrong size should fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("worker failed"));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package dk.kb.deeplearning4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.datavec.api.io.labels.ParentPathLabelGenerator;
+import org.datavec.api.split.CollectionInputSplit;
+import org.datavec.api.split.FileSplit;
+import org.datavec.image.transform.FlipImageTransform;
+import org.datavec.image.transform.ImageTransform;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
+
+public class PrefetchDataSetIteratorTest extends TestCase {
+    private File dataset;
+    private ImageShards shards;
+    private int[] records;
+    private List<String> labels = Arrays.asList("back", "front");
+
+    @Override
+    protected void setUp() throws IOException {
+        dataset = new File(Files.createTempDirectory("prefetch").toFile(), "dataset");
+        new File(dataset, "back").mkdirs();
+        new File(dataset, "front").mkdirs();
+        UseModelTest.createImages(new File(dataset, "back"), 4);
+        UseModelTest.createImages(new File(dataset, "front"), 3);
+        shards = ImageShards.forDataset(dataset, 600, 400, 1);
+        records = shards.add(new CollectionInputSplit(Arrays.asList(
+                new FileSplit(dataset, new String[] {"jpg"}, new Random(42)).locations())), new ParentPathLabelGenerator());
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        shards.close();
+    }
+
+    public void testDeliversMinibatchesInOrder() throws Exception {
+        ShardDataSetIterator expected = new ShardDataSetIterator(shards, records, labels, 2, null);
+        expected.setPreProcessor(new ImagePreProcessingScaler(0, 1));
+        try (PrefetchDataSetIterator actual = new PrefetchDataSetIterator(
+                new ShardDataSetIterator(shards, records, labels, 2, null), 3, 2)) {
+            actual.setPreProcessor(new ImagePreProcessingScaler(0, 1));
+            actual.next();
+            actual.reset(); // abandons the epoch
+            for (int epoch = 0; epoch < 2; epoch++) {
+                int batches = 0;
+                while (expected.hasNext()) {
+                    assertTrue(actual.hasNext());
+                    DataSet e = expected.next();
+                    DataSet a = actual.next();
+                    assertEquals(e.getFeatures(), a.getFeatures());
+                    assertEquals(e.getLabels(), a.getLabels());
+                    batches++;
+                }
+                assertFalse(actual.hasNext());
+                assertEquals(4, batches);
+                expected.reset();
+                actual.reset();
+            }
+            assertTrue(actual.getStarvedMillis() >= 0);
+            assertTrue(actual.summary(), actual.summary().contains("Trainer starved"));
+            try {
+                actual.next(3);
+                fail("Only minibatches of the prefetched size can be given");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testWorkersUseTheirOwnTransforms() throws Exception {
+        // Flip mode 1 always flips around the vertical axis, so the result does not depend on the thread
+        DataSet expected = new ShardDataSetIterator(shards, records, labels, 7, new FlipImageTransform(1)).next();
+        ShardDataSetIterator source = new ShardDataSetIterator(shards, records, labels, 1, null);
+        source.setTransform(new ThreadLocal<ImageTransform>() {
+            @Override
+            protected ImageTransform initialValue() {
+                return new FlipImageTransform(1);
+            }
+        });
+        try (PrefetchDataSetIterator actual = new PrefetchDataSetIterator(source, 4, 3)) {
+            for (int i = 0; i < records.length; i++) {
+                DataSet image = actual.next();
+                assertEquals(expected.getFeatures().getRow(i), image.getFeatures().getRow(0));
+                assertEquals(expected.getLabels().getRow(i), image.getLabels().getRow(0));
+            }
+            assertFalse(actual.hasNext());
+        }
+    }
+}
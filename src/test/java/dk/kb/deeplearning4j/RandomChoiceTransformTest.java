@@ -0,0 +1,64 @@
+package dk.kb.deeplearning4j;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.datavec.image.data.ImageWritable;
+import org.datavec.image.transform.ImageTransform;
+
+public class RandomChoiceTransformTest extends TestCase {
+
+    public void testChoosesByWeight() {
+        final int[] counts = new int[2];
+        RandomChoiceTransform choice = new RandomChoiceTransform(new Random(42))
+                .add(null, 1)
+                .add(counting(counts, 0), 2)
+                .add(counting(counts, 1), 1);
+        ImageWritable image = new ImageWritable(null);
+        int unchanged = 0;
+        for (int i = 0; i < 40000; i++) {
+            if (choice.transform(image) == image) {
+                unchanged++;
+            }
+        }
+        assertEquals(10000, unchanged, 500);
+        assertEquals(20000, counts[0], 500);
+        assertEquals(10000, counts[1], 500);
+    }
+
+    public void testParsesMix() {
+        assertNotNull(RandomChoiceTransform.parse(RandomChoiceTransform.DEFAULT_MIX, new Random(1)));
+        assertNotNull(RandomChoiceTransform.parse("flip", new Random(1)));
+        ImageWritable image = new ImageWritable(null);
+        assertSame(image, RandomChoiceTransform.parse("none:3", new Random(1)).transform(image));
+        try {
+            RandomChoiceTransform.parse("none:1,rotate:2", new Random(1));
+            fail("Unknown transforms should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("rotate"));
+        }
+        try {
+            RandomChoiceTransform.parse("flip:-1", new Random(1));
+            fail("Negative weights should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // A transform that counts its calls and returns a new image
+    private static ImageTransform counting(final int[] counts, final int index) {
+        return new ImageTransform() {
+            @Override
+            public ImageWritable transform(ImageWritable image) {
+                counts[index]++;
+                return new ImageWritable(null);
+            }
+
+            @Override
+            public ImageWritable transform(ImageWritable image, Random random) {
+                return transform(image);
+            }
+        };
+    }
+}
@@ -0,0 +1,107 @@
+package dk.kb.deeplearning4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.deeplearning4j.api.storage.Persistable;
+import org.deeplearning4j.api.storage.StatsStorageRouter;
+import org.deeplearning4j.api.storage.StorageMetaData;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.ui.stats.api.StatsReport;
+import org.deeplearning4j.ui.stats.api.StatsType;
+import org.nd4j.linalg.dataset.DataSet;
+
+public class SampledStatsListenerTest extends TestCase {
+
+    public void testSamplesStatsByInterval() {
+        Collector collector = new Collector();
+        AsyncStatsStorageRouter router = new AsyncStatsStorageRouter(collector, 100);
+        // The memory interval is rounded up to 10
+        SampledStatsListener listener = new SampledStatsListener(router, 5, 10, 8);
+        MultiLayerNetwork network = TrainingFixtures.network();
+        network.setListeners(listener);
+        for (DataSet batch: TrainingFixtures.batches(20, new Random(1))) {
+            network.fit(batch);
+        }
+        router.close();
+
+        assertEquals(1, collector.staticInfo.size());
+        assertEquals(4, collector.updates.size());
+        assertEquals(0, router.getDropped());
+        for (Persistable update: collector.updates) {
+            StatsReport report = (StatsReport) update;
+            boolean tenth = report.getIterationCount() % 10 == 0;
+            assertTrue(report.hasScore());
+            assertTrue(report.hasPerformance());
+            assertEquals("Histograms at " + report.getIterationCount(), tenth, report.hasHistograms(StatsType.Parameters));
+            assertEquals("Memory at " + report.getIterationCount(), tenth, report.hasMemoryUse());
+            assertFalse(report.hasHistograms(StatsType.Activations));
+        }
+        assertTrue(listener.summary(), listener.summary().contains("20 iterations, 4 reports"));
+        assertTrue(listener.getOverheadNanos() > 0);
+    }
+
+    public void testDropsUpdatesWhenStorageFallsBehind() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        Collector blocked = new Collector() {
+            @Override
+            public void putUpdate(Persistable update) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.putUpdate(update);
+            }
+        };
+        AsyncStatsStorageRouter router = new AsyncStatsStorageRouter(blocked, 2);
+        for (int i = 0; i < 6; i++) {
+            router.putUpdate((Persistable) null);
+        }
+        assertTrue("Dropped " + router.getDropped(), router.getDropped() >= 3);
+        release.countDown();
+        router.close();
+        assertEquals(6, router.getWritten() + router.getDropped());
+        assertEquals(router.getWritten(), blocked.updates.size());
+    }
+
+    // Keeps what is written in memory
+    private static class Collector implements StatsStorageRouter {
+        final List<Persistable> staticInfo = Collections.synchronizedList(new ArrayList<Persistable>());
+        final List<Persistable> updates = Collections.synchronizedList(new ArrayList<Persistable>());
+
+        @Override
+        public void putStorageMetaData(StorageMetaData storageMetaData) {
+        }
+
+        @Override
+        public void putStorageMetaData(Collection<? extends StorageMetaData> storageMetaData) {
+        }
+
+        @Override
+        public void putStaticInfo(Persistable staticInfo) {
+            this.staticInfo.add(staticInfo);
+        }
+
+        @Override
+        public void putStaticInfo(Collection<? extends Persistable> staticInfo) {
+            this.staticInfo.addAll(staticInfo);
+        }
+
+        @Override
+        public void putUpdate(Persistable update) {
+            updates.add(update);
+        }
+
+        @Override
+        public void putUpdate(Collection<? extends Persistable> updates) {
+            this.updates.addAll(updates);
+        }
+    }
+}
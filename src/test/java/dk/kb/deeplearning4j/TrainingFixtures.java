@@ -0,0 +1,59 @@
+package dk.kb.deeplearning4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.Nesterovs;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+
+/**
+ * A small network and data to train it on, for the tests of the training
+ */
+final class TrainingFixtures {
+
+    private TrainingFixtures() {
+    }
+
+    static MultiLayerNetwork network() {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .seed(42)
+                .weightInit(WeightInit.XAVIER)
+                .learningRate(0.1)
+                .updater(new Nesterovs(0.9))
+                .list()
+                .layer(0, new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
+                        .nIn(4).nOut(2).activation(Activation.SOFTMAX).build())
+                .build();
+        MultiLayerNetwork network = new MultiLayerNetwork(conf);
+        network.init();
+        return network;
+    }
+
+    // Minibatches of 8 examples, labelled by whether the sum of the features is positive
+    static List<DataSet> batches(int count, Random random) {
+        List<DataSet> batches = new ArrayList<DataSet>();
+        for (int b = 0; b < count; b++) {
+            float[] features = new float[8 * 4];
+            float[] labels = new float[8 * 2];
+            for (int i = 0; i < 8; i++) {
+                float sum = 0;
+                for (int j = 0; j < 4; j++) {
+                    features[i * 4 + j] = (float) random.nextGaussian();
+                    sum += features[i * 4 + j];
+                }
+                labels[i * 2 + (sum > 0 ? 1 : 0)] = 1;
+            }
+            batches.add(new DataSet(Nd4j.create(features, new int[] {8, 4}), Nd4j.create(labels, new int[] {8, 2})));
+        }
+        return batches;
+    }
+}
@@ -0,0 +1,138 @@
+package dk.kb.deeplearning4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.deeplearning4j.datasets.iterator.ExistingDataSetIterator;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+public class TrainingRunTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("trainingrun").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public void testStopsWhenNoLongerImproving() throws IOException {
+        MultiLayerNetwork network = TrainingFixtures.network();
+        TrainingRun run = new TrainingRun(dir, 10);
+        run.setPatience(2);
+        run.setMinImprovement(10); // nothing after the first evaluation is an improvement
+        MultiLayerNetwork best;
+        try {
+            best = run.train(network, fitter(network), data(4, 1), data(2, 2));
+        } finally {
+            run.close();
+        }
+        assertEquals(3, run.getEpoch());
+        assertEquals(1, run.getBestEpoch());
+        assertTrue(run.getStopReason(), run.getStopReason().contains("no improvement in 2 evaluations"));
+        assertNotSame(network, best);
+        assertFalse(best.params().equals(network.params()));
+        assertTrue(new File(dir, "checkpoint.zip").exists());
+        assertTrue(new File(dir, "best.zip").exists());
+        // The run is done, so the next run starts afresh
+        assertNull(new TrainingRun(dir, 10).resume());
+    }
+
+    public void testResumesFromLastCheckpoint() throws IOException {
+        DataSetIterator train = data(4, 3);
+        DataSetIterator test = data(2, 4);
+        MultiLayerNetwork expected = TrainingFixtures.network();
+        for (int epoch = 0; epoch < 4; epoch++) {
+            train.reset();
+            expected.fit(train);
+        }
+
+        // The first run fails in its third epoch
+        final MultiLayerNetwork network = TrainingFixtures.network();
+        TrainingRun run = new TrainingRun(dir, 4);
+        try {
+            run.train(network, new TrainingRun.Fitter() {
+                int epochs = 0;
+
+                @Override
+                public void fit(DataSetIterator epoch) {
+                    if (++epochs == 3) {
+                        throw new IllegalStateException("Interrupted");
+                    }
+                    network.fit(epoch);
+                }
+            }, train, test);
+            fail("The training should fail");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            run.close();
+        }
+
+        run = new TrainingRun(dir, 4);
+        MultiLayerNetwork resumed = run.resume();
+        assertNotNull(resumed);
+        assertEquals(2, run.getEpoch());
+        try {
+            run.train(resumed, fitter(resumed), train, test);
+        } finally {
+            run.close();
+        }
+        assertEquals(4, run.getEpoch());
+        assertTrue(run.getStopReason(), run.getStopReason().contains("all 4 epochs"));
+        assertEquals("The resumed training should continue with the updater state", expected.params(), resumed.params());
+    }
+
+    public void testStopsBeforeExceedingTimeBudget() throws IOException {
+        final MultiLayerNetwork network = TrainingFixtures.network();
+        TrainingRun run = new TrainingRun(dir, 10);
+        run.setWallBudgetMillis(300);
+        try {
+            run.train(network, new TrainingRun.Fitter() {
+                @Override
+                public void fit(DataSetIterator epoch) {
+                    network.fit(epoch);
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, data(1, 5), data(1, 6));
+        } finally {
+            run.close();
+        }
+        assertEquals(1, run.getEpoch());
+        assertTrue(run.getStopReason(), run.getStopReason().contains("time budget"));
+    }
+
+    private static TrainingRun.Fitter fitter(final MultiLayerNetwork network) {
+        return new TrainingRun.Fitter() {
+            @Override
+            public void fit(DataSetIterator epoch) {
+                network.fit(epoch);
+            }
+        };
+    }
+
+    private static DataSetIterator data(int batches, long seed) {
+        List<DataSet> data = TrainingFixtures.batches(batches, new Random(seed));
+        return new ExistingDataSetIterator(data);
+    }
+}
@@ -0,0 +1,168 @@
+package dk.kb.deeplearning4j;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.datavec.image.loader.NativeImageLoader;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import dk.kb.util.ImagePipeline;
+import dk.kb.util.Metrics;
+
+public class UseModelTest extends TestCase {
+    private static MultiLayerNetwork network;
+    private List<File> images;
+
+    @Override
+    protected void setUp() throws IOException {
+        if (network == null) {
+            network = Models.lenetModel(42, 1, 1, 2, 600, 400);
+            network.init();
+        }
+        images = createImages(Files.createTempDirectory("usemodel").toFile(), 5);
+    }
+
+    public void testBatchedResultsMatchSingleImages() throws Exception {
+        NativeImageLoader loader = new NativeImageLoader(600, 400, 1);
+        List<float[]> expected = new ArrayList<float[]>();
+        for (File image: images) {
+            INDArray output = UseModel.evaluateImage(network, loader, image);
+            expected.add(output.data().asFloat());
+        }
+
+        List<Result> batched = UseModel.evaluateImages(network, loader, images);
+        assertEquals(images.size(), batched.size());
+        for (int i = 0; i < images.size(); i++) {
+            assertEquals(images.get(i).getAbsolutePath(), batched.get(i).getObjectName());
+            assertProbabilities(expected.get(i), batched.get(i).getProbabilities());
+        }
+
+        ImagePipeline<INDArray, Result> pipeline = UseModel.createPipeline(network);
+        pipeline.setBatchSize(3);
+        final List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+        pipeline.run(images.iterator(), new ImagePipeline.ResultHandler<Result>() {
+            @Override
+            public void handle(Result result) {
+                results.add(result);
+            }
+        });
+        assertEquals(images.size(), results.size());
+        assertTrue("Expected a batch of more than one image", pipeline.getMetrics().getHistogram(Metrics.INFERENCE).getCount() < images.size());
+        for (Result r: results) {
+            assertProbabilities(expected.get(images.indexOf(new File(r.getObjectName()))), r.getProbabilities());
+        }
+    }
+
+    public void testReplicasRunConcurrently() throws Exception {
+        NativeImageLoader loader = new NativeImageLoader(600, 400, 1);
+        List<float[]> expected = new ArrayList<float[]>();
+        for (Result r: UseModel.evaluateImages(network, loader, images)) {
+            expected.add(r.getProbabilities());
+        }
+
+        NetworkReplicas replicas = new NetworkReplicas(network, 3);
+        ImagePipeline<INDArray, Result> pipeline = UseModel.createPipeline(replicas, null);
+        assertEquals(3, pipeline.getInferers());
+        pipeline.setBatchSize(1);
+        final List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+        pipeline.run(images.iterator(), new ImagePipeline.ResultHandler<Result>() {
+            @Override
+            public void handle(Result result) {
+                results.add(result);
+            }
+        });
+        assertEquals(images.size(), results.size());
+        for (Result r: results) {
+            assertProbabilities(expected.get(images.indexOf(new File(r.getObjectName()))), r.getProbabilities());
+        }
+
+        MultiLayerNetwork replica = replicas.acquire();
+        MultiLayerNetwork other = replicas.acquire();
+        assertNotSame(replica, other);
+        replicas.release(replica);
+        replicas.release(other);
+    }
+
+    public void testWorkspacesMatchBatches() throws Exception {
+        NativeImageLoader loader = new NativeImageLoader(600, 400, 1);
+        List<Result> expected = UseModel.evaluateImages(network, loader, images);
+
+        ImagePipeline<INDArray, Result> pipeline = UseModel.createPipeline(new NetworkReplicas(network, 1), null, true);
+        pipeline.setBatchSize(2);
+        final List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+        pipeline.run(images.iterator(), new ImagePipeline.ResultHandler<Result>() {
+            @Override
+            public void handle(Result result) {
+                results.add(result);
+            }
+        });
+        assertEquals(images.size(), results.size());
+        for (Result r: results) {
+            Result e = expected.get(images.indexOf(new File(r.getObjectName())));
+            assertEquals(e.getLabelIndex(), r.getLabelIndex());
+            assertEquals(e.getAccuracy(), r.getAccuracy(), 1e-5);
+            assertProbabilities(e.getProbabilities(), r.getProbabilities());
+        }
+    }
+
+    public void testScaledLoaderMatchesFullDecode() throws Exception {
+        BufferedImage large = new BufferedImage(1600, 2400, BufferedImage.TYPE_BYTE_GRAY);
+        for (int x = 0; x < large.getWidth(); x++) {
+            for (int y = 0; y < large.getHeight(); y++) {
+                int v = (x + y) * 255 / (large.getWidth() + large.getHeight());
+                large.setRGB(x, y, v << 16 | v << 8 | v);
+            }
+        }
+        File file = File.createTempFile("large", ".jpg");
+        ImageIO.write(large, "jpg", file);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+
+        ScaledImageLoader scaled = new ScaledImageLoader(600, 400, 1);
+        assertEquals(4, scaled.denominator(bytes));
+        INDArray expected = new NativeImageLoader(600, 400, 1).asMatrix(file);
+        INDArray actual = scaled.asMatrix(bytes);
+        assertTrue(Arrays.equals(expected.shape(), actual.shape()));
+        double meanDifference = expected.sub(actual).norm1Number().doubleValue() / expected.length();
+        assertTrue("The mean difference was " + meanDifference, meanDifference < 2);
+
+        // Images too small to be reduced are loaded as by NativeImageLoader
+        assertEquals(1, scaled.denominator(Files.readAllBytes(images.get(0).toPath())));
+        assertEquals(new NativeImageLoader(600, 400, 1).asMatrix(images.get(0)), scaled.asMatrix(images.get(0)));
+        file.delete();
+    }
+
+    private static void assertProbabilities(float[] expected, float[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int j = 0; j < expected.length; j++) {
+            assertEquals(expected[j], actual[j], 1e-5);
+        }
+    }
+
+    static List<File> createImages(File dir, int count) throws IOException {
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < count; i++) {
+            BufferedImage image = new BufferedImage(400 + 10 * i, 600, BufferedImage.TYPE_BYTE_GRAY);
+            for (int x = 0; x < image.getWidth(); x++) {
+                for (int y = 0; y < image.getHeight(); y++) {
+                    int v = (x * (i + 1) + y) & 0xff;
+                    image.setRGB(x, y, v << 16 | v << 8 | v);
+                }
+            }
+            File f = new File(dir, "image" + i + ".jpg");
+            ImageIO.write(image, "jpg", f);
+            files.add(f);
+        }
+        return files;
+    }
+}
@@ -0,0 +1,96 @@
+package dk.kb.deeplearning4j;
+
+import junit.framework.TestCase;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import dk.kb.util.ResultStore;
+
+public class WorkspaceInferenceTest extends TestCase {
+    private static final int Labels = 3;
+    private static final int Height = 60;
+    private static final int Width = 40;
+
+    private static MultiLayerNetwork network;
+
+    @Override
+    protected void setUp() {
+        if (network == null) {
+            network = Models.lenetModel(42, 1, 1, Labels, Height, Width);
+            network.init();
+        }
+    }
+
+    public void testOutputMatchesNetwork() {
+        WorkspaceInference inference = new WorkspaceInference(network, 4, 1, Height, Width);
+        for (int i = 0; i < inference.getBatchSize(); i++) {
+            inference.getSlot(i).assign(i / 4.0);
+        }
+        INDArray expected = network.output(inference.getInput().dup());
+        float[] probabilities = inference.output();
+        assertEquals(Labels, inference.getLabels());
+        assertEquals(4 * Labels, probabilities.length);
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < Labels; j++) {
+                assertEquals(expected.getFloat(i, j), probabilities[i * Labels + j], 1e-5);
+            }
+        }
+    }
+
+    public void testShortBatch() {
+        WorkspaceInference inference = new WorkspaceInference(network, 4, 1, Height, Width);
+        inference.output();
+        for (int i = 0; i < 3; i++) {
+            inference.getSlot(i).assign((i + 1) / 5.0);
+        }
+        INDArray expected = network.output(inference.getInput().dup());
+        float[] probabilities = inference.output(3);
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < Labels; j++) {
+                assertEquals(expected.getFloat(i, j), probabilities[i * Labels + j], 1e-5);
+            }
+        }
+    }
+
+    public void testMemoryStaysFlatOver10kImages() {
+        WorkspaceInference inference = new WorkspaceInference(network, 10, 1, Height, Width);
+        INDArray input = inference.getInput();
+        int[] best = new int[1];
+        float[] score = new float[1];
+        // Warm up, so the workspaces have reached their size
+        for (int batch = 0; batch < 20; batch++) {
+            input.assign(batch % 7 / 7.0);
+            inference.output();
+        }
+        long before = Pointer.totalBytes();
+        long max = before;
+        long workspaces = workspaceBytes();
+        assertTrue("The activations should be kept in workspaces", workspaces > 0);
+        for (int batch = 0; batch < 1000; batch++) {
+            input.assign(batch % 7 / 7.0);
+            float[] probabilities = inference.output();
+            for (int i = 0; i < inference.getBatchSize(); i++) {
+                ResultStore.topK(probabilities, i * Labels, Labels, 1, best, score);
+            }
+            max = Math.max(max, Pointer.totalBytes());
+        }
+        assertEquals("The workspaces should be reused, not grown", workspaces, workspaceBytes());
+        // Without workspaces the activations of a batch take about 250KB, so 1000 batches would take hundreds of MB
+        assertTrue("The off-heap memory should stay flat, but grew by " + (max - before) + " bytes",
+                max - before < 1024 * 1024);
+    }
+
+    // The size of the workspaces MultiLayerNetwork uses in inference on this thread, or 0 if it uses none
+    private static long workspaceBytes() {
+        long bytes = 0;
+        for (String id: new String[] {"LOOP_EXTERNAL", "LOOP_FF"}) {
+            if (Nd4j.getWorkspaceManager().checkIfWorkspaceExists(id)) {
+                bytes += Nd4j.getWorkspaceManager().getWorkspaceForCurrentThread(id).getCurrentSize();
+            }
+        }
+        return bytes;
+    }
+}
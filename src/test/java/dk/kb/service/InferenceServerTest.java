@@ -0,0 +1,126 @@
+package dk.kb.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import dk.kb.util.ImagePipeline;
+
+public class InferenceServerTest extends TestCase {
+    private InferenceServer server;
+    private List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Override
+    protected void setUp() throws IOException {
+        // A stand-in model: the "image" is a number, and the probability of "high" is the number divided by 100
+        ImagePipeline<Integer, float[]> pipeline = new ImagePipeline<Integer, float[]>(
+                new ImagePipeline.Decoder<Integer>() {
+                    @Override
+                    public Integer decode(File file, ByteBuffer bytes) {
+                        return Integer.valueOf(Charset.forName("UTF-8").decode(bytes).toString());
+                    }
+                },
+                new ImagePipeline.Classifier<Integer, float[]>() {
+                    @Override
+                    public List<float[]> classify(List<File> files, List<Integer> decoded) {
+                        batchSizes.add(decoded.size());
+                        List<float[]> results = new ArrayList<float[]>();
+                        for (int value: decoded) {
+                            results.add(new float[] {1 - value / 100f, value / 100f});
+                        }
+                        return results;
+                    }
+                });
+        pipeline.setBatchSize(8);
+        pipeline.setInferers(1);
+        server = new InferenceServer(new InetSocketAddress("localhost", 0), 16);
+        server.addModel("numbers", pipeline, Arrays.asList("low", "high"), new InferenceServer.Probabilities<float[]>() {
+            @Override
+            public float[] of(float[] result) {
+                return result;
+            }
+        }, 50);
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.close();
+    }
+
+    public void testConcurrentRequestsAreBatched() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(16);
+        List<Future<String>> responses = new ArrayList<Future<String>>();
+        for (int i = 0; i < 32; i++) {
+            final int value = i;
+            responses.add(clients.submit(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return request("POST", "/numbers/classify?name=n" + value, String.valueOf(value), 200);
+                }
+            }));
+        }
+        for (int i = 0; i < 32; i++) {
+            String response = responses.get(i).get();
+            assertTrue(response, response.startsWith("{\"name\":\"n" + i + "\",\"label\":\"" + (i > 50 ? "high" : "low") + "\""));
+            assertTrue(response, response.contains("\"high\":" + (i / 100f)));
+        }
+        clients.shutdown();
+
+        int largest = 0;
+        int total = 0;
+        for (int size: batchSizes) {
+            assertTrue("Batch of size " + size, size <= 8);
+            largest = Math.max(largest, size);
+            total += size;
+        }
+        assertEquals(32, total);
+        assertTrue("Expected concurrent requests to be batched: " + batchSizes, largest > 1);
+        assertTrue(request("GET", "/health", null, 200).contains("\"images\":32"));
+    }
+
+    public void testBadRequests() throws IOException {
+        assertTrue(request("POST", "/numbers/classify", "not a number", 400).contains("could not be decoded"));
+        request("POST", "/numbers/classify", "", 400);
+        request("GET", "/numbers/classify", null, 405);
+        assertTrue(request("GET", "/health", null, 200).contains("\"images\":0"));
+    }
+
+    private String request(String method, String path, String body, int expectedStatus) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes("UTF-8"));
+            }
+        }
+        assertEquals(expectedStatus, connection.getResponseCode());
+        try (InputStream in = expectedStatus == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                response.write(buffer, 0, read);
+            }
+            return response.toString("UTF-8");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package dk.kb.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class MicroBatcherTest extends TestCase {
+
+    public void testCloseDuringConcurrentProcessing() throws InterruptedException {
+        for (int round = 0; round < 50; round++) {
+            final MicroBatcher<Integer, Integer> batcher = new MicroBatcher<Integer, Integer>(
+                    new MicroBatcher.BatchProcessor<Integer, Integer>() {
+                        @Override
+                        public List<Integer> process(List<Integer> batch) {
+                            List<Integer> results = new ArrayList<Integer>(batch.size());
+                            for (int item: batch) {
+                                results.add(item * 2);
+                            }
+                            return results;
+                        }
+                    }, 4, 1, 2, 64);
+            final AtomicInteger wrong = new AtomicInteger();
+            List<Thread> callers = new ArrayList<Thread>();
+            for (int t = 0; t < 8; t++) {
+                Thread caller = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 1000; i++) {
+                            try {
+                                if (batcher.process(i) != i * 2) {
+                                    wrong.incrementAndGet();
+                                }
+                            } catch (RejectedExecutionException e) {
+                                // closed or full
+                            } catch (InterruptedException | ExecutionException e) {
+                                wrong.incrementAndGet();
+                            }
+                        }
+                    }
+                };
+                caller.setDaemon(true);
+                caller.start();
+                callers.add(caller);
+            }
+            Thread.sleep(round % 5);
+            batcher.close();
+            for (Thread caller: callers) {
+                caller.join(10000);
+                assertFalse("A caller is still waiting after close in round " + round, caller.isAlive());
+            }
+            assertEquals(0, wrong.get());
+            try {
+                batcher.process(1);
+                fail("Expected the closed batcher to reject items");
+            } catch (RejectedExecutionException e) {
+                // expected
+            } catch (ExecutionException e) {
+                fail("Expected the closed batcher to reject items");
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package dk.kb.tensorflow;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.tensorflow.Graph;
+import org.tensorflow.Output;
+
+import dk.kb.util.JpegScale;
+
+public class FrontBackClassifierTest extends TestCase {
+    private File modelDir;
+    private List<File> images;
+
+    @Override
+    protected void setUp() throws IOException {
+        File dir = Files.createTempDirectory("frontback").toFile();
+        modelDir = new File(dir, "model");
+        createModel(modelDir);
+        images = createImages(new File(dir, "images"), 5);
+    }
+
+    public void testReusedGraphsGiveTheResultsOfFreshClassifiers() {
+        for (boolean fused: new boolean[] {false, true}) {
+            double[] fresh = new double[images.size()];
+            for (int i = 0; i < images.size(); i++) {
+                try (FrontBackClassifier fbc = new FrontBackClassifier(modelDir, fused)) {
+                    fresh[i] = fbc.evaluate(images.get(i)).getAccuracy();
+                }
+            }
+            FrontBackClassifier fbc = new FrontBackClassifier(modelDir, fused);
+            try {
+                for (int round = 0; round < 2; round++) {
+                    for (int i = 0; i < images.size(); i++) {
+                        assertEquals("Image " + i + ", fused " + fused, fresh[i], fbc.evaluate(images.get(i)).getAccuracy(), 1e-6);
+                    }
+                }
+            } finally {
+                fbc.close();
+            }
+            try {
+                fbc.evaluate(images.get(0));
+                fail("The sessions should be released by close");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testBatchMatchesSingleEvaluation() {
+        for (boolean fused: new boolean[] {false, true}) {
+            try (FrontBackClassifier fbc = new FrontBackClassifier(modelDir, fused)) {
+                fbc.setBatchSize(3);
+                List<TensorFlowResult> batched = fbc.evaluateBatch(images);
+                assertEquals(images.size(), batched.size());
+                for (int i = 0; i < images.size(); i++) {
+                    TensorFlowResult single = fbc.evaluate(images.get(i));
+                    assertEquals("Image " + i + ", fused " + fused, single.getAccuracy(), batched.get(i).getAccuracy(), 1e-6);
+                    assertEquals(single.getLabel(), batched.get(i).getLabel());
+                }
+            }
+        }
+    }
+
+    public void testNoTensorsLeftAfterEvaluation() {
+        long liveBefore = ManagedTensor.liveCount();
+        for (boolean fused: new boolean[] {false, true}) {
+            try (FrontBackClassifier fbc = new FrontBackClassifier(modelDir, fused)) {
+                fbc.setBatchSize(2);
+                TensorFlowResult single = fbc.evaluate(images.get(0));
+                assertEquals(liveBefore, ManagedTensor.liveCount());
+
+                List<TensorFlowResult> batched = fbc.evaluateBatch(images);
+                assertEquals(images.size(), batched.size());
+                assertEquals(single.getAccuracy(), batched.get(0).getAccuracy(), 1e-6);
+                assertEquals(liveBefore, ManagedTensor.liveCount());
+
+                assertEquals(images.size(), fbc.evaluateDir(images.get(0).getParentFile()).size());
+                assertEquals(liveBefore, ManagedTensor.liveCount());
+                int read = fbc.getReadBuffers().getAllocated();
+                assertEquals(images.size(), fbc.evaluateDir(images.get(0).getParentFile()).size());
+                assertEquals("The read buffers should be reused", read, fbc.getReadBuffers().getAllocated());
+
+                int allocated = fbc.getInputBuffers().getAllocated();
+                fbc.evaluateBatch(images);
+                assertEquals("The input buffers should be reused", allocated, fbc.getInputBuffers().getAllocated());
+            }
+        }
+    }
+
+    public void testLargeImagesAreDecodedReducedInAllModes() throws IOException {
+        File dir = Files.createTempDirectory("frontback-large").toFile();
+        BufferedImage image = new BufferedImage(1000, 900, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, (x / 4 & 0xff) << 16 | (y / 4 & 0xff) << 8 | 0x40);
+            }
+        }
+        File large = new File(dir, "large.jpg");
+        ImageIO.write(image, "jpg", large);
+        assertEquals(4, JpegScale.denominator(Files.readAllBytes(large.toPath()), 224, 224));
+
+        Double expected = null;
+        for (boolean fused: new boolean[] {false, true}) {
+            try (FrontBackClassifier fbc = new FrontBackClassifier(modelDir, fused)) {
+                long runs = fbc.getSessionRuns();
+                double single = fbc.evaluate(large).getAccuracy();
+                assertEquals("Session runs, fused " + fused, fused ? 1 : 2, fbc.getSessionRuns() - runs);
+                if (expected == null) {
+                    expected = single;
+                }
+                assertEquals(expected, single, 1e-6);
+                assertEquals(expected, fbc.evaluateBatch(Arrays.asList(large)).get(0).getAccuracy(), 1e-6);
+                assertEquals(expected, fbc.evaluateDir(dir).get(0).getAccuracy(), 1e-6);
+            }
+        }
+    }
+
+    /**
+     * Writes a tiny stand-in for a retrained model: the probabilities of the two labels depend on the mean of the input.
+     */
+    static void createModel(File dir) throws IOException {
+        dir.mkdirs();
+        try (Graph g = new Graph()) {
+            GraphBuilder b = new GraphBuilder(g);
+            Output<Float> input = b.placeholder("input", Float.class);
+            Output<Float> mean = g.opBuilder("Mean", "Mean")
+                    .addInput(input).addInput(b.constant("axes", new int[] {1, 2, 3})).build().<Float>output(0);
+            Output<Float> column = b.expandDims(mean, b.constant("dim", 1));
+            Output<Float> logits = g.opBuilder("MatMul", "MatMul")
+                    .addInput(column).addInput(b.constant("weights", new float[][] {{0.01f, -0.01f}}, Float.class))
+                    .build().<Float>output(0);
+            g.opBuilder("Softmax", "final_result").addInput(logits).build();
+            Files.write(new File(dir, "graph.pb").toPath(), g.toGraphDef());
+        }
+        Files.write(new File(dir, "labels.txt").toPath(), "back\nfront\n".getBytes("UTF-8"));
+    }
+
+    static List<File> createImages(File dir, int count) throws IOException {
+        dir.mkdirs();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < count; i++) {
+            BufferedImage image = new BufferedImage(300 + i, 400, BufferedImage.TYPE_INT_RGB);
+            for (int x = 0; x < image.getWidth(); x++) {
+                for (int y = 0; y < image.getHeight(); y++) {
+                    image.setRGB(x, y, ((x * i) & 0xff) << 16 | (y & 0xff) << 8 | (i * 20 & 0xff));
+                }
+            }
+            File f = new File(dir, "image" + i + ".jpg");
+            ImageIO.write(image, "jpg", f);
+            files.add(f);
+        }
+        return files;
+    }
+}
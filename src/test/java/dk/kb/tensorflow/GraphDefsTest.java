@@ -0,0 +1,50 @@
+package dk.kb.tensorflow;
+
+import junit.framework.TestCase;
+
+import org.tensorflow.Graph;
+import org.tensorflow.Output;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+
+public class GraphDefsTest extends TestCase {
+
+    public void testReplaceNode() {
+        byte[] model;
+        try (Graph g = new Graph()) {
+            GraphBuilder b = new GraphBuilder(g);
+            Output<Float> input = b.placeholder("input", Float.class);
+            g.opBuilder("Identity", "output").addInput(b.sub(input, b.constant("one", 1f))).build();
+            model = g.toGraphDef();
+        }
+        byte[] replacement;
+        try (Graph g = new Graph()) {
+            GraphBuilder b = new GraphBuilder(g, "preprocess");
+            b.identity("input", b.div(b.placeholder("x", Float.class), b.constant("two", 2f)));
+            replacement = g.toGraphDef();
+        }
+        try (Graph g = new Graph()) {
+            g.importGraphDef(GraphDefs.replaceNode(model, "input", replacement));
+            assertEquals("Identity", g.operation("input").type());
+            try (Session s = new Session(g);
+                    Tensor<Float> x = Tensor.create(10f, Float.class);
+                    Tensor<Float> result = s.runner().feed("preprocess/x", x).fetch("output").run().get(0).expect(Float.class)) {
+                assertEquals(4f, result.floatValue());
+            }
+        }
+    }
+
+    public void testReplaceMissingNode() {
+        byte[] model;
+        try (Graph g = new Graph()) {
+            new GraphBuilder(g).constant("one", 1f);
+            model = g.toGraphDef();
+        }
+        try {
+            GraphDefs.replaceNode(model, "input", new byte[0]);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
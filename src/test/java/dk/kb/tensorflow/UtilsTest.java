@@ -0,0 +1,46 @@
+package dk.kb.tensorflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.tensorflow.Tensor;
+
+import dk.kb.util.ByteBufferPool;
+
+public class UtilsTest extends TestCase {
+
+    public void testEncodedImagesBecomeStringTensors() throws IOException {
+        // Below and above the threshold, so both reading and mapping are used, and lengths with 1-3 byte varints
+        for (int size: new int[] {0, 100, 20000, (int) Utils.MAP_THRESHOLD + 12345}) {
+            byte[] content = new byte[size];
+            for (int i = 0; i < size; i++) {
+                content[i] = (byte) (i * 7 + size);
+            }
+            File file = File.createTempFile("image", ".jpg");
+            Files.write(file.toPath(), content);
+
+            ByteBuffer encoded = Utils.readEncodedImage(file.toPath());
+            ByteBuffer bytes = Utils.imageBytes(encoded);
+            byte[] viewed = new byte[bytes.remaining()];
+            bytes.get(viewed);
+            assertTrue("The view of " + size + " bytes", Arrays.equals(content, viewed));
+            try (Tensor<String> tensor = Utils.toStringTensor(encoded)) {
+                assertEquals(0, tensor.numDimensions());
+                assertTrue("The tensor of " + size + " bytes", Arrays.equals(content, tensor.bytesValue()));
+            }
+
+            ByteBufferPool pool = new ByteBufferPool(Utils.ENCODING_HEADROOM);
+            ByteBuffer pooled = pool.read(file.toPath());
+            try (Tensor<String> tensor = Utils.toStringTensor(Utils.encodeInPlace(pooled))) {
+                assertTrue("The tensor encoded in place of " + size + " bytes", Arrays.equals(content, tensor.bytesValue()));
+            }
+            pool.release(pooled);
+            file.delete();
+        }
+    }
+}
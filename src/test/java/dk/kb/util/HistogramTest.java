@@ -0,0 +1,33 @@
+package dk.kb.util;
+
+import junit.framework.TestCase;
+
+public class HistogramTest extends TestCase {
+
+    public void testPercentilesWithinPrecision() {
+        Histogram h = new Histogram();
+        for (long v = 1; v <= 100000; v++) {
+            h.record(v * 1000);
+        }
+        assertEquals(100000, h.getCount());
+        assertEquals(100000000L, h.getMax());
+        assertEquals(50000500.0, h.getMean(), 1);
+        for (double p: new double[] {1, 50, 90, 99, 99.9}) {
+            double expected = p * 1000000;
+            long actual = h.getPercentile(p);
+            assertTrue("p" + p + "=" + actual, actual >= expected && actual <= expected * (1 + 1.0 / 16));
+        }
+        assertEquals(100000000L, h.getPercentile(100));
+    }
+
+    public void testSmallAndExtremeValues() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.getPercentile(50));
+        h.record(-5);
+        h.record(3);
+        h.record(Long.MAX_VALUE);
+        assertEquals(0, h.getPercentile(33));
+        assertEquals(3, h.getPercentile(66));
+        assertEquals(Long.MAX_VALUE, h.getPercentile(100));
+    }
+}
@@ -0,0 +1,164 @@
+package dk.kb.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+public class ImageFileIteratorTest extends TestCase {
+
+    public void testRecursiveWalkWithExtensions() throws IOException {
+        File root = Files.createTempDirectory("walk").toFile();
+        File sub = new File(new File(root, "a"), "b");
+        sub.mkdirs();
+        new File(root, "empty").mkdir();
+        new File(root, "dir.jpg").mkdir();
+        touch(new File(root, "1.jpg"));
+        touch(new File(root, "2.JPEG"));
+        touch(new File(root, "notes.txt"));
+        touch(new File(sub, "3.jpg"));
+
+        Set<String> names = new HashSet<String>();
+        try (ImageFileIterator files = new ImageFileIterator(root)) {
+            while (files.hasNext()) {
+                names.add(files.next().getName());
+            }
+        }
+        assertEquals(3, names.size());
+        assertTrue(names.contains("1.jpg"));
+        assertTrue(names.contains("2.JPEG"));
+        assertTrue(names.contains("3.jpg"));
+
+        try (ImageFileIterator files = new ImageFileIterator(root, "txt")) {
+            assertEquals("notes.txt", files.next().getName());
+            assertFalse(files.hasNext());
+        }
+    }
+
+    public void testWalksArchives() throws IOException {
+        File root = Files.createTempDirectory("archives").toFile();
+        Files.write(new File(root, "plain.jpg").toPath(), bytes(1));
+        File zip = new File(root, "bundle.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            addZipEntry(out, "scans/", null);
+            addZipEntry(out, "scans/a.jpg", bytes(2));
+            addZipEntry(out, "scans/b.JPEG", bytes(3));
+            addZipEntry(out, "notes.txt", bytes(4));
+        }
+        File tar = new File(root, "bundle.tar");
+        try (TarArchiveOutputStream out = new TarArchiveOutputStream(new FileOutputStream(tar))) {
+            addTarEntry(out, "c.jpg", bytes(5000));
+            addTarEntry(out, "d.jpg", bytes(6));
+        }
+        File tgz = new File(root, "bundle.tgz");
+        try (TarArchiveOutputStream out = new TarArchiveOutputStream(new GZIPOutputStream(new FileOutputStream(tgz)))) {
+            addTarEntry(out, "e.jpg", bytes(7));
+        }
+
+        Map<String, byte[]> read = new HashMap<String, byte[]>();
+        try (ImageFileIterator files = new ImageFileIterator(root)) {
+            while (files.hasNext()) {
+                File file = files.next();
+                read.put(file.getAbsolutePath(), files.read(file));
+            }
+        }
+        assertEquals(read.keySet().toString(), 6, read.size());
+        String s = ImageArchive.SEPARATOR;
+        assertTrue(Arrays.equals(bytes(1), read.get(new File(root, "plain.jpg").getAbsolutePath())));
+        assertTrue(Arrays.equals(bytes(2), read.get(zip.getAbsolutePath() + s + "scans" + File.separator + "a.jpg")));
+        assertTrue(Arrays.equals(bytes(3), read.get(zip.getAbsolutePath() + s + "scans" + File.separator + "b.JPEG")));
+        assertTrue(Arrays.equals(bytes(5000), read.get(tar.getAbsolutePath() + s + "c.jpg")));
+        assertTrue(Arrays.equals(bytes(6), read.get(tar.getAbsolutePath() + s + "d.jpg")));
+        assertTrue(Arrays.equals(bytes(7), read.get(tgz.getAbsolutePath() + s + "e.jpg")));
+
+        try (ImageFileIterator files = new ImageFileIterator(zip)) {
+            File file = files.next();
+            assertEquals(zip.getAbsolutePath() + s + "scans" + File.separator + "a.jpg", file.getAbsolutePath());
+            assertTrue("An archive can be the root", Arrays.equals(bytes(2), files.read(file)));
+        }
+    }
+
+    public void testSkipsFilteredEntriesWithoutReadingThem() throws IOException {
+        File root = Files.createTempDirectory("filtered").toFile();
+        final File tgz = new File(root, "bundle.tar.gz");
+        try (TarArchiveOutputStream out = new TarArchiveOutputStream(new GZIPOutputStream(new FileOutputStream(tgz)))) {
+            addTarEntry(out, "master.tif", bytes(100000));
+            addTarEntry(out, "a.jpg", bytes(8));
+            addTarEntry(out, "b.jpg", bytes(9));
+        }
+        try (ImageArchive archive = ImageArchive.open(tgz)) {
+            assertEquals("b.jpg", archive.nextEntry(new ImageArchive.EntryFilter() {
+                @Override
+                public boolean accept(String entry) {
+                    return entry.equals("b.jpg");
+                }
+            }));
+            assertNull(archive.nextEntry());
+            for (String skipped: new String[] {"master.tif", "a.jpg"}) {
+                try {
+                    archive.read(skipped);
+                    fail("The skipped entry " + skipped + " should not be held");
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+            assertTrue(Arrays.equals(bytes(9), archive.read("b.jpg")));
+        }
+
+        final String done = tgz.getAbsolutePath() + ImageArchive.SEPARATOR + "a.jpg";
+        try (ImageFileIterator files = new ImageFileIterator(root)) {
+            files.setFilter(new FileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    return !file.getAbsolutePath().equals(done);
+                }
+            });
+            File file = files.next();
+            assertEquals(tgz.getAbsolutePath() + ImageArchive.SEPARATOR + "b.jpg", file.getAbsolutePath());
+            assertTrue(Arrays.equals(bytes(9), files.read(file)));
+            assertFalse(files.hasNext());
+        }
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + length);
+        }
+        return bytes;
+    }
+
+    private static void addZipEntry(ZipOutputStream out, String name, byte[] bytes) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        if (bytes != null) {
+            out.write(bytes);
+        }
+        out.closeEntry();
+    }
+
+    private static void addTarEntry(TarArchiveOutputStream out, String name, byte[] bytes) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        out.putArchiveEntry(entry);
+        out.write(bytes);
+        out.closeArchiveEntry();
+    }
+
+    private static void touch(File f) throws IOException {
+        Files.write(f.toPath(), new byte[] {1});
+    }
+}
@@ -0,0 +1,214 @@
+package dk.kb.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class ImagePipelineTest extends TestCase {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public void testAllFilesClassifiedInBatches() throws Exception {
+        File dir = Files.createTempDirectory("pipeline").toFile();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 50; i++) {
+            File f = new File(dir, i + ".jpg");
+            Files.write(f.toPath(), String.valueOf(i).getBytes("UTF-8"));
+            files.add(f);
+        }
+        files.add(new File(dir, "missing.jpg"));
+        files.add(new File(dir, "undecodable.jpg"));
+        Files.write(files.get(files.size() - 1).toPath(), "x".getBytes("UTF-8"));
+
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        ImagePipeline<Integer, String> pipeline = new ImagePipeline<Integer, String>(
+                new ImagePipeline.Decoder<Integer>() {
+                    @Override
+                    public Integer decode(File file, ByteBuffer bytes) {
+                        return Integer.valueOf(UTF8.decode(bytes).toString());
+                    }
+                },
+                new ImagePipeline.Classifier<Integer, String>() {
+                    @Override
+                    public List<String> classify(List<File> files, List<Integer> decoded) {
+                        synchronized (batchSizes) {
+                            batchSizes.add(decoded.size());
+                        }
+                        List<String> results = new ArrayList<String>();
+                        for (int i = 0; i < files.size(); i++) {
+                            results.add(files.get(i).getName() + "=" + decoded.get(i));
+                        }
+                        return results;
+                    }
+                });
+        pipeline.setReaders(2);
+        pipeline.setDecoders(3);
+        pipeline.setInferers(2);
+        pipeline.setQueueSize(4);
+        pipeline.setBatchSize(8);
+        final Set<String> results = new HashSet<String>();
+        int classified = pipeline.run(files.iterator(), new ImagePipeline.ResultHandler<String>() {
+            @Override
+            public void handle(String result) {
+                results.add(result);
+            }
+        });
+        assertEquals(50, classified);
+        assertEquals(50, results.size());
+        assertTrue(results.contains("42.jpg=42"));
+        for (int size: batchSizes) {
+            assertTrue("Batch of size " + size, size >= 1 && size <= 8);
+        }
+
+        Metrics metrics = pipeline.getMetrics();
+        assertEquals(50, metrics.getImages());
+        assertEquals(2, metrics.getFailures());
+        assertEquals(51, metrics.getHistogram(Metrics.READ).getCount());
+        assertEquals(50, metrics.getHistogram(Metrics.DECODE).getCount());
+        assertEquals(batchSizes.size(), metrics.getHistogram(Metrics.INFERENCE).getCount());
+        assertEquals(50, metrics.getHistogram(Metrics.WRITE).getCount());
+    }
+
+    public void testCacheAndHandlerFailuresAreSkipped() throws Exception {
+        List<File> files = numberedFiles(10);
+        ImagePipeline<Integer, String> pipeline = numberPipeline();
+        pipeline.setCache(new ImagePipeline.Cache<String>() {
+            @Override
+            public String key(ByteBuffer bytes) {
+                return UTF8.decode(bytes.duplicate()).toString();
+            }
+
+            @Override
+            public String get(File file, String key) {
+                return key.equals("0") ? "cached" : null;
+            }
+
+            @Override
+            public void put(String key, String result) {
+                throw new IllegalStateException("The cache is full");
+            }
+        });
+        final Set<String> results = new HashSet<String>();
+        int classified = pipeline.run(files.iterator(), new ImagePipeline.ResultHandler<String>() {
+            @Override
+            public void handle(String result) {
+                if (result.equals("5.jpg=5")) {
+                    throw new ArrayIndexOutOfBoundsException(-1);
+                }
+                results.add(result);
+            }
+        });
+        assertEquals(9, classified);
+        assertEquals(9, results.size());
+        assertTrue(results.contains("cached"));
+        assertEquals(1, pipeline.getMetrics().getCacheHits());
+        assertEquals(1, pipeline.getMetrics().getFailures());
+    }
+
+    public void testReadBuffersAreReleased() throws Exception {
+        List<File> files = numberedFiles(30);
+        Files.write(files.get(7).toPath(), "x".getBytes("UTF-8"));
+        final ByteBufferPool buffers = new ByteBufferPool(16);
+        ImagePipeline<Integer, String> pipeline = new ImagePipeline<Integer, String>(new ImagePipeline.Decoder<Integer>() {
+            @Override
+            public Integer decode(File file, ByteBuffer bytes) {
+                assertTrue(bytes.isDirect());
+                assertEquals(buffers.getHeadroom(), bytes.position());
+                return Integer.valueOf(UTF8.decode(bytes).toString());
+            }
+        }, numberPipeline().getClassifier());
+        pipeline.setReadBuffers(buffers);
+        pipeline.setCache(new ImagePipeline.Cache<String>() {
+            @Override
+            public String key(ByteBuffer bytes) {
+                return UTF8.decode(bytes.duplicate()).toString();
+            }
+
+            @Override
+            public String get(File file, String key) {
+                return key.equals("3") ? "cached" : null;
+            }
+
+            @Override
+            public void put(String key, String result) {
+            }
+        });
+        pipeline.setQueueSize(4);
+        int classified = pipeline.run(files.iterator(), new ImagePipeline.ResultHandler<String>() {
+            @Override
+            public void handle(String result) {
+            }
+        });
+        assertEquals(29, classified);
+        int allocated = buffers.getAllocated();
+        assertTrue("Allocated " + allocated, allocated >= 1 && allocated < 30);
+        // Decoded, cached and undecodable images alike have their buffers back in the pool
+        List<ByteBuffer> free = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < allocated; i++) {
+            free.add(buffers.acquire(1));
+        }
+        assertEquals(allocated, buffers.getAllocated());
+    }
+
+    public void testWorkerFailureStopsTheRun() throws Exception {
+        List<File> files = numberedFiles(20);
+        ImagePipeline<Integer, String> pipeline = new ImagePipeline<Integer, String>(numberDecoder(),
+                new ImagePipeline.Classifier<Integer, String>() {
+                    @Override
+                    public List<String> classify(List<File> files, List<Integer> decoded) {
+                        throw new AssertionError("Broken model");
+                    }
+                });
+        pipeline.setQueueSize(2);
+        try {
+            pipeline.run(files.iterator(), new ImagePipeline.ResultHandler<String>() {
+                @Override
+                public void handle(String result) {
+                }
+            });
+            fail("The run should fail rather than wait for the stopped worker");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+    }
+
+    private static List<File> numberedFiles(int count) throws IOException {
+        File dir = Files.createTempDirectory("pipeline").toFile();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < count; i++) {
+            File f = new File(dir, i + ".jpg");
+            Files.write(f.toPath(), String.valueOf(i).getBytes("UTF-8"));
+            files.add(f);
+        }
+        return files;
+    }
+
+    private static ImagePipeline.Decoder<Integer> numberDecoder() {
+        return new ImagePipeline.Decoder<Integer>() {
+            @Override
+            public Integer decode(File file, ByteBuffer bytes) {
+                return Integer.valueOf(UTF8.decode(bytes).toString());
+            }
+        };
+    }
+
+    private static ImagePipeline<Integer, String> numberPipeline() {
+        return new ImagePipeline<Integer, String>(numberDecoder(), new ImagePipeline.Classifier<Integer, String>() {
+            @Override
+            public List<String> classify(List<File> files, List<Integer> decoded) {
+                List<String> results = new ArrayList<String>();
+                for (int i = 0; i < files.size(); i++) {
+                    results.add(files.get(i).getName() + "=" + decoded.get(i));
+                }
+                return results;
+            }
+        });
+    }
+}
@@ -0,0 +1,45 @@
+package dk.kb.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+public class JpegScaleTest extends TestCase {
+
+    public void testReadsSizeFromFrameHeader() throws IOException {
+        byte[] jpeg = jpeg(1234, 567);
+        assertTrue(Arrays.equals(new int[] {1234, 567}, JpegScale.size(jpeg)));
+
+        assertNull(JpegScale.size(new byte[0]));
+        assertNull(JpegScale.size("not a jpeg image".getBytes("UTF-8")));
+        assertNull("Truncated before the frame header", JpegScale.size(Arrays.copyOf(jpeg, 10)));
+        assertEquals(1, JpegScale.denominator("not a jpeg image".getBytes("UTF-8"), 224, 224));
+    }
+
+    public void testChoosesLargestReductionCoveringTheInput() throws IOException {
+        assertEquals(1, JpegScale.denominator(300, 400, 224, 224));
+        assertEquals(2, JpegScale.denominator(448, 448, 224, 224));
+        assertEquals(1, JpegScale.denominator(446, 448, 224, 224));
+        assertEquals(4, JpegScale.denominator(1000, 3000, 224, 224));
+        assertEquals(8, JpegScale.denominator(4000, 3000, 224, 224));
+        // The scaled size is rounded up, so 1785/8 gives 224
+        assertEquals(8, JpegScale.denominator(1785, 1785, 224, 224));
+        assertEquals(4, JpegScale.denominator(1784, 1785, 224, 224));
+        assertEquals(4, JpegScale.denominator(1600, 2400, 400, 600));
+        assertEquals(2, JpegScale.denominator(2400, 1600, 400, 600));
+
+        assertEquals(2, JpegScale.denominator(jpeg(500, 460), 224, 224));
+    }
+
+    private static byte[] jpeg(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+}
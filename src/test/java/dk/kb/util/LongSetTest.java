@@ -0,0 +1,33 @@
+package dk.kb.util;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class LongSetTest extends TestCase {
+
+    public void testMatchesHashSet() {
+        Random random = new Random(1);
+        LongSet set = new LongSet();
+        Set<Long> expected = new HashSet<Long>();
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextInt(50000) - 100;
+            assertEquals(expected.add(value), set.add(value));
+        }
+        assertEquals(expected.size(), set.size());
+        for (long value = -200; value < 50000; value++) {
+            assertEquals("Contains " + value, expected.contains(value), set.contains(value));
+        }
+    }
+
+    public void testHashSpreadsPaths() {
+        Set<Long> hashes = new HashSet<Long>();
+        for (int i = 0; i < 100000; i++) {
+            hashes.add(LongSet.hash("/data/scans/" + i + ".jpg"));
+        }
+        assertEquals(100000, hashes.size());
+        assertFalse(LongSet.hash("a.jpg") == LongSet.hash("b.jpg"));
+    }
+}
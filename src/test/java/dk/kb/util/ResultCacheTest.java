@@ -0,0 +1,80 @@
+package dk.kb.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ResultCacheTest extends TestCase {
+
+    public void testPutGetAndModelIdentity() throws IOException {
+        File dir = Files.createTempDirectory("cache").toFile();
+        ResultCache cache = new ResultCache(dir, "model-a", 100);
+        String key = cache.key(new byte[] {1, 2, 3});
+        assertNull(cache.get(key));
+        cache.put(key, new float[] {0.25f, 0.75f});
+        assertTrue(Arrays.equals(new float[] {0.25f, 0.75f}, cache.get(key)));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        assertTrue("Visible to other instances", Arrays.equals(new float[] {0.25f, 0.75f}, new ResultCache(dir, "model-a", 100).get(key)));
+        assertNull("Not shared between models", new ResultCache(dir, "model-b", 100).get(key));
+    }
+
+    public void testEvictsOldestEntries() throws IOException {
+        File dir = Files.createTempDirectory("cache").toFile();
+        ResultCache cache = new ResultCache(dir, "model", 10);
+        for (int i = 0; i < 10; i++) {
+            String key = cache.key(new byte[] {(byte) i});
+            cache.put(key, new float[] {i});
+            File entry = new File(new File(new File(dir, "model"), key.substring(0, 2)), key + ".bin");
+            assertTrue(entry.setLastModified(1000000000000L + i * 1000000L));
+        }
+        cache.put(cache.key(new byte[] {(byte) 10}), new float[] {10});
+        assertNull("The oldest entry is evicted", cache.get(cache.key(new byte[] {0})));
+        assertNotNull("The newest entry is kept", cache.get(cache.key(new byte[] {10})));
+    }
+
+    public void testConcurrentPutsPastTheLimit() throws Exception {
+        File dir = Files.createTempDirectory("cache").toFile();
+        final ResultCache cache = new ResultCache(dir, "model", 20);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 50; i++) {
+                            cache.put(cache.key(new byte[] {(byte) thread, (byte) i}), new float[] {i});
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertEquals("Puts should not fail: " + failures, 0, failures.size());
+        cache.evict();
+        assertTrue("Evicted down to the limit", countEntries(dir) <= 20);
+    }
+
+    private static int countEntries(File dir) {
+        int count = 0;
+        File[] files = dir.listFiles();
+        for (File file: files == null ? new File[0] : files) {
+            count += file.isDirectory() ? countEntries(file) : file.getName().endsWith(".bin") ? 1 : 0;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,154 @@
+package dk.kb.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ResultSinkTest extends TestCase {
+    private static final String[] Labels = {"back", "front"};
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("sink").toFile();
+    }
+
+    public void testCsvWithRelativePaths() throws IOException {
+        File csv = new File(dir, "out.csv");
+        assertEquals(ResultSink.Format.CSV, ResultSink.Format.fromFile(csv));
+        try (ResultSink sink = new ResultSink(csv, ResultSink.Format.CSV, Labels, dir, 100, 10000)) {
+            sink.write(new File(dir, "a/b.jpg").getAbsolutePath(), new float[] {0.25f, 0.75f});
+            sink.write("/elsewhere/c, \"d\".jpg", new float[] {0.5f, 0.5f});
+        }
+        assertEquals(Arrays.asList("path,label,score,back,front", "a/b.jpg,front,0.75,0.25,0.75",
+                "\"/elsewhere/c, \"\"d\"\".jpg\",back,0.5,0.5,0.5"), read(csv));
+
+        try (ResultSink sink = new ResultSink(csv, ResultSink.Format.CSV, Labels, dir, 100, 10000)) {
+            sink.write(new File(dir, "e.jpg").getAbsolutePath(), new float[] {1f, 0f});
+        }
+        assertEquals("Appended without a second header", 4, read(csv).size());
+    }
+
+    public void testJsonLines() throws IOException {
+        File jsonl = new File(dir, "out.jsonl");
+        assertEquals(ResultSink.Format.JSONL, ResultSink.Format.fromFile(jsonl));
+        try (ResultSink sink = new ResultSink(jsonl, ResultSink.Format.JSONL, Labels, dir, 100, 10000)) {
+            sink.write(new File(dir, "a\"b.jpg").getAbsolutePath(), new float[] {0.25f, 0.75f});
+        }
+        assertEquals(Arrays.asList("{\"path\":\"a\\\"b.jpg\",\"label\":\"front\",\"score\":0.75,\"probabilities\":[0.25,0.75]}"),
+                read(jsonl));
+    }
+
+    public void testBinaryRoundTrip() throws IOException {
+        File bin = new File(dir, "out.bin");
+        assertEquals(ResultSink.Format.BINARY, ResultSink.Format.fromFile(bin));
+        try (ResultSink sink = new ResultSink(bin, ResultSink.Format.BINARY, Labels, dir, 100, 10000)) {
+            sink.write(new File(dir, "a.jpg").getAbsolutePath(), new float[] {0.25f, 0.75f});
+        }
+        try (ResultSink sink = new ResultSink(bin, ResultSink.Format.BINARY, Labels, dir, 100, 10000)) {
+            sink.write(new File(dir, "b.jpg").getAbsolutePath(), new float[] {0.5f, 0.5f});
+        }
+        final List<String> names = new ArrayList<String>();
+        final List<float[]> probabilities = new ArrayList<float[]>();
+        String[] labels = ResultSink.readBinary(bin, new RunJournal.Replay() {
+            @Override
+            public void replay(String name, float[] p) {
+                names.add(name);
+                probabilities.add(p);
+            }
+        });
+        assertTrue(Arrays.equals(Labels, labels));
+        assertEquals(Arrays.asList("a.jpg", "b.jpg"), names);
+        assertTrue(Arrays.equals(new float[] {0.25f, 0.75f}, probabilities.get(0)));
+
+        try {
+            new ResultSink(bin, ResultSink.Format.BINARY, new String[] {"other", "labels"}, dir, 100, 10000);
+            fail("Expected appending with other labels to fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testFlushesEveryInterval() throws IOException {
+        File csv = new File(dir, "flush.csv");
+        try (ResultSink sink = new ResultSink(csv, ResultSink.Format.CSV, Labels, dir, 3, 10000)) {
+            sink.write("a.jpg", new float[] {0.25f, 0.75f});
+            sink.write("b.jpg", new float[] {0.25f, 0.75f});
+            assertEquals("Buffered until the interval", 0, csv.length());
+            sink.write("c.jpg", new float[] {0.25f, 0.75f});
+            assertEquals(4, read(csv).size());
+        }
+    }
+
+    public void testAppendRemovesTornLastRow() throws IOException {
+        File csv = new File(dir, "torn.csv");
+        try (ResultSink sink = new ResultSink(csv, ResultSink.Format.CSV, Labels, dir, 100, 10000)) {
+            sink.write("a.jpg", new float[] {0.25f, 0.75f});
+        }
+        Files.write(csv.toPath(), "b.jpg,fr".getBytes("UTF-8"), StandardOpenOption.APPEND);
+        try (ResultSink sink = new ResultSink(csv, ResultSink.Format.CSV, Labels, dir, 100, 10000)) {
+            sink.write("c.jpg", new float[] {1f, 0f});
+        }
+        assertEquals(Arrays.asList("path,label,score,back,front", "a.jpg,front,0.75,0.25,0.75", "c.jpg,back,1.0,1.0,0.0"),
+                read(csv));
+
+        File bin = new File(dir, "torn.bin");
+        try (ResultSink sink = new ResultSink(bin, ResultSink.Format.BINARY, Labels, dir, 100, 10000)) {
+            sink.write("a.jpg", new float[] {0.25f, 0.75f});
+            sink.write("b.jpg", new float[] {0.5f, 0.5f});
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(bin, "rw")) {
+            raf.setLength(raf.length() - 3); // in the middle of the probabilities of b.jpg
+        }
+        try (ResultSink sink = new ResultSink(bin, ResultSink.Format.BINARY, Labels, dir, 100, 10000)) {
+            sink.write("c.jpg", new float[] {1f, 0f});
+        }
+        final List<String> names = new ArrayList<String>();
+        ResultSink.readBinary(bin, new RunJournal.Replay() {
+            @Override
+            public void replay(String name, float[] p) {
+                names.add(name);
+            }
+        });
+        assertEquals(Arrays.asList("a.jpg", "c.jpg"), names);
+
+        File header = new File(dir, "header.bin");
+        Files.write(header.toPath(), new byte[] {0x52, 0x53, 0x56, 0x31, 0, 0});
+        try (ResultSink sink = new ResultSink(header, ResultSink.Format.BINARY, Labels, dir, 100, 10000)) {
+            sink.write("a.jpg", new float[] {0.25f, 0.75f});
+        }
+        names.clear();
+        assertTrue("The torn header should be written anew", Arrays.equals(Labels, ResultSink.readBinary(header, new RunJournal.Replay() {
+            @Override
+            public void replay(String name, float[] p) {
+                names.add(name);
+            }
+        })));
+        assertEquals(Arrays.asList("a.jpg"), names);
+    }
+
+    public void testJournalFlushesTheSinkFirst() throws IOException {
+        File csv = new File(dir, "journalled.csv");
+        try (ResultSink sink = new ResultSink(csv, ResultSink.Format.CSV, Labels, dir, 100, 100000);
+                RunJournal journal = new RunJournal(new File(dir, "journal"), 2, 100000)) {
+            journal.setOutput(sink);
+            for (String name: new String[] {"a.jpg", "b.jpg"}) {
+                sink.write(name, new float[] {0.25f, 0.75f});
+                journal.record(name, new float[] {0.25f, 0.75f});
+            }
+            assertEquals("Every image in the journal should have its row on disk", 3, read(csv).size());
+        }
+    }
+
+    private static List<String> read(File file) throws IOException {
+        return Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+    }
+}
@@ -0,0 +1,73 @@
+package dk.kb.util;
+
+import junit.framework.TestCase;
+
+public class ResultStoreTest extends TestCase {
+
+    public void testKeepsTopKAndRunnerUps() {
+        ResultStore store = new ResultStore(2);
+        assertEquals(0, store.add("a.jpg", new float[] {0.1f, 0.6f, 0.3f}));
+        assertEquals(1, store.add("b/\u00e6\u00f8\u00e5 \ud83d\udcf7.jpg", new float[] {0.9f, 0.1f, 0.0f}));
+        assertEquals(2, store.add("c.jpg", new float[] {1.0f}));
+        assertEquals(3, store.size());
+
+        assertEquals("a.jpg", store.getName(0));
+        assertEquals(1, store.getLabel(0, 0));
+        assertEquals(0.6f, store.getScore(0, 0));
+        assertEquals(2, store.getLabel(0, 1));
+        assertEquals(0.3f, store.getScore(0, 1));
+
+        assertEquals("b/\u00e6\u00f8\u00e5 \ud83d\udcf7.jpg", store.getName(1));
+        assertEquals(0, store.getLabel(1, 0));
+
+        assertEquals("Fewer labels than K", -1, store.getLabel(2, 1));
+        assertEquals(2, store.count(0));
+        assertEquals(1, store.count(1));
+        try {
+            store.getName(3);
+            fail("Expected an exception for an unknown id");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testTopK() {
+        float[] probabilities = {0.9f, 0.1f, 0.3f, 0.5f, 0.2f};
+        int[] labels = new int[3];
+        float[] scores = new float[3];
+        assertEquals(3, ResultStore.topK(probabilities, 1, 4, 3, labels, scores));
+        assertEquals(2, labels[0]);
+        assertEquals(1, labels[1]);
+        assertEquals(3, labels[2]);
+        assertEquals(0.5f, scores[0]);
+        assertEquals(0.2f, scores[2]);
+
+        assertEquals(2, ResultStore.topK(probabilities, 0, 2, 3, labels, scores));
+        assertEquals(0, labels[0]);
+        assertEquals(1, labels[1]);
+    }
+
+    public void testCompactOverManyPages() {
+        ResultStore store = new ResultStore(3);
+        float[] probabilities = new float[1000];
+        StringBuilder name = new StringBuilder();
+        int images = 3 * ResultStore.PageRows + 17;
+        for (int i = 0; i < images; i++) {
+            probabilities[i % 1000] = 1;
+            name.setLength(0);
+            name.append("dir/image").append(i).append(".jpg");
+            store.add(name, probabilities);
+            probabilities[i % 1000] = 0;
+        }
+        assertEquals(images, store.size());
+        for (int i = 0; i < images; i += 997) {
+            assertEquals("dir/image" + i + ".jpg", store.getName(i));
+            assertEquals(i % 1000, store.getLabel(i, 0));
+            assertEquals(1f, store.getScore(i, 0));
+            assertEquals(0f, store.getScore(i, 2));
+        }
+        // 12 + 8*3 bytes per image plus about 18 bytes of name, rounded up to whole pages
+        assertTrue("Expected less than 80 bytes per image, was " + store.getMemoryBytes() / images,
+                store.getMemoryBytes() / images < 80);
+    }
+}
@@ -0,0 +1,66 @@
+package dk.kb.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class RunJournalTest extends TestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = new File(Files.createTempDirectory("journal").toFile(), "run.journal");
+    }
+
+    public void testResume() throws IOException {
+        try (RunJournal journal = new RunJournal(file, 1, 10000)) {
+            journal.record(new File("a.jpg").getAbsolutePath(), new float[] {0.25f, 0.75f});
+            journal.record(new File("b\tc.jpg").getAbsolutePath(), new float[] {1f, 0f});
+        }
+
+        try (RunJournal journal = new RunJournal(file, 1, 10000)) {
+            assertEquals(2, journal.size());
+            List<File> files = Arrays.asList(new File("a.jpg"), new File("b\tc.jpg"), new File("d.jpg"));
+            Iterator<File> remaining = journal.skipDone(files.iterator());
+            assertEquals(new File("d.jpg"), remaining.next());
+            assertFalse(remaining.hasNext());
+
+            final List<String> names = new ArrayList<String>();
+            journal.replay(new RunJournal.Replay() {
+                @Override
+                public void replay(String name, float[] probabilities) {
+                    names.add(name);
+                    if (name.endsWith("a.jpg")) {
+                        assertEquals(0.75f, probabilities[1]);
+                    }
+                }
+            });
+            assertEquals(Arrays.asList(new File("a.jpg").getAbsolutePath(), new File("b\tc.jpg").getAbsolutePath()), names);
+        }
+    }
+
+    public void testPartialLastLineIsDropped() throws IOException {
+        try (RunJournal journal = new RunJournal(file, 1, 10000)) {
+            journal.record("a.jpg", new float[] {0.5f, 0.5f});
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("b.jpg\t0.12".getBytes("UTF-8"));
+        }
+
+        try (RunJournal journal = new RunJournal(file, 1, 10000)) {
+            assertEquals(1, journal.size());
+            assertFalse(journal.isDone("b.jpg"));
+            journal.record("b.jpg", new float[] {0.1f, 0.9f});
+        }
+        try (RunJournal journal = new RunJournal(file, 1, 10000)) {
+            assertEquals(2, journal.size());
+        }
+    }
+}